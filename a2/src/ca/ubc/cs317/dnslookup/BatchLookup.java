@@ -0,0 +1,253 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/** Resolves a file of host names concurrently. Each line of the file has a host name and an
+ * optional record type (A by default); the host name of a PTR lookup may be an address (e.g.
+ * "10.1.2.3 PTR"). Empty lines and anything after a # are ignored. Lookups run on virtual threads
+ * when the JVM supports them (or on a pool of platform threads if not), with at most a fixed
+ * number of lookups in progress at any time. Results are written as soon as
+ * each lookup completes, in CSV or JSON Lines format, so their order is not that of the file.
+ */
+public class BatchLookup {
+
+    public enum Format { CSV, JSON }
+
+    private final Function<DNSNode, Set<ResourceRecord>> resolver;
+    private final Predicate<DNSNode> cached;
+    private final int concurrency;
+    private final Format format;
+    private final PrintWriter out;
+
+    /** Creates a batch that resolves names with a given function.
+     *
+     * @param resolver    Function returning the results of a lookup.
+     * @param cached      Tells if a lookup can be answered from the cache, before it is resolved.
+     * @param concurrency Maximum number of lookups in progress at the same time.
+     * @param format      Format of the results.
+     * @param out         Stream the results are written to.
+     */
+    public BatchLookup(Function<DNSNode, Set<ResourceRecord>> resolver, Predicate<DNSNode> cached,
+                       int concurrency, Format format, OutputStream out) {
+        if (concurrency < 1) throw new IllegalArgumentException("Concurrency must be positive");
+        this.resolver = resolver;
+        this.cached = cached;
+        this.concurrency = concurrency;
+        this.format = format;
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+    }
+
+    /** Statistics of a batch run. */
+    public static class Summary {
+        private final long lookups;
+        private final long unanswered;
+        private final long invalid;
+        private final long cacheHits;
+        private final long elapsedNanos;
+        private final LatencyHistogram latency;
+
+        private Summary(long lookups, long unanswered, long invalid, long cacheHits, long elapsedNanos,
+                        LatencyHistogram latency) {
+            this.lookups = lookups;
+            this.unanswered = unanswered;
+            this.invalid = invalid;
+            this.cacheHits = cacheHits;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+        }
+
+        public long getLookups() {
+            return lookups;
+        }
+
+        /** Number of lookups that returned no result. */
+        public long getUnanswered() {
+            return unanswered;
+        }
+
+        /** Number of lines that could not be parsed. */
+        public long getInvalid() {
+            return invalid;
+        }
+
+        public double getQueriesPerSecond() {
+            return elapsedNanos == 0 ? 0 : lookups * 1e9 / elapsedNanos;
+        }
+
+        /** Fraction of the lookups answered from the cache, without querying any server. */
+        public double getCacheHitRatio() {
+            return lookups == 0 ? 0 : (double) cacheHits / lookups;
+        }
+
+        /** Latency of the lookups, in microseconds. */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d lookups (%d unanswered, %d invalid lines) in %.2f s: %.1f queries/s, " +
+                            "latency p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, cache hit ratio %.1f%%",
+                    lookups, unanswered, invalid, elapsedNanos / 1e9, getQueriesPerSecond(),
+                    latency.getValueAtPercentile(50) / 1e3, latency.getValueAtPercentile(95) / 1e3,
+                    latency.getValueAtPercentile(99) / 1e3, 100 * getCacheHitRatio());
+        }
+    }
+
+    /** Resolves every name in a file, writing the results as they complete.
+     *
+     * @param file File with one host name and optional record type per line.
+     * @return Statistics of the run.
+     * @throws IOException if the file could not be read.
+     */
+    public Summary run(Path file) throws IOException {
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder lookups = new LongAdder(), unanswered = new LongAdder(), cacheHits = new LongAdder();
+        long invalid = 0;
+        Semaphore permits = new Semaphore(concurrency);
+        ExecutorService executor = VirtualThreads.newExecutor("dns-batch", concurrency);
+        long start = System.nanoTime();
+
+        if (format == Format.CSV) writeLine("name,type,ttl,data,latency_ms,cached");
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.split("#", 2)[0].trim();
+                if (line.isEmpty()) continue;
+                DNSNode node = parseLine(line);
+                if (node == null) {
+                    System.err.println("Invalid batch line: " + line);
+                    invalid++;
+                    continue;
+                }
+
+                // Do not read further than needed if lookups are slower than the file
+                permits.acquireUninterruptibly();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            boolean hit = cached.test(node);
+                            long lookupStart = System.nanoTime();
+                            Set<ResourceRecord> results;
+                            try {
+                                results = resolver.apply(node);
+                            } catch (RuntimeException e) {
+                                results = Collections.emptySet();
+                            }
+                            long elapsed = System.nanoTime() - lookupStart;
+
+                            latency.record(elapsed / 1000);
+                            lookups.increment();
+                            if (hit) cacheHits.increment();
+                            if (results.isEmpty()) unanswered.increment();
+                            writeResults(node, results, elapsed, hit);
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+        } finally {
+            // Wait for the lookups in progress
+            permits.acquireUninterruptibly(concurrency);
+            executor.shutdown();
+            synchronized (out) {
+                out.flush();
+            }
+        }
+        return new Summary(lookups.sum(), unanswered.sum(), invalid, cacheHits.sum(),
+                System.nanoTime() - start, latency);
+    }
+
+    /** Parses a line with a host name and an optional record type.
+     *
+     * @return The node to be looked up, or null if the line is not valid.
+     */
+    private static DNSNode parseLine(String line) {
+        String[] fields = line.split("\\s+");
+        if (fields.length > 2) return null;
+        try {
+            RecordType type = fields.length == 2 ? RecordType.valueOf(fields[1].toUpperCase()) : RecordType.A;
+            String hostName = DNSReverseName.forQuery(fields[0], type);
+            DNSQueryEncoder.checkName(hostName);
+            return new DNSNode(hostName, type);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void writeResults(DNSNode node, Set<ResourceRecord> results, long elapsedNanos, boolean hit) {
+        String latencyMillis = String.format("%.3f", elapsedNanos / 1e6);
+        StringBuilder text = new StringBuilder();
+        if (format == Format.CSV) {
+            if (results.isEmpty())
+                appendCSVRow(text, node, "", "", latencyMillis, hit);
+            for (ResourceRecord record : results)
+                appendCSVRow(text, node, Long.toString(record.getTTL()), record.getTextResult(), latencyMillis, hit);
+        } else {
+            text.append("{\"name\":");
+            appendJSONString(text, node.getHostName());
+            text.append(",\"type\":\"").append(node.getType()).append("\",\"latencyMs\":").append(latencyMillis)
+                    .append(",\"cached\":").append(hit).append(",\"results\":[");
+            boolean first = true;
+            for (ResourceRecord record : results) {
+                if (!first) text.append(',');
+                first = false;
+                text.append("{\"type\":\"").append(record.getType()).append("\",\"ttl\":").append(record.getTTL())
+                        .append(",\"data\":");
+                appendJSONString(text, record.getTextResult());
+                text.append('}');
+            }
+            text.append("]}\n");
+        }
+        synchronized (out) {
+            out.print(text);
+            out.flush();
+        }
+    }
+
+    private void writeLine(String line) {
+        synchronized (out) {
+            out.println(line);
+        }
+    }
+
+    private static void appendCSVRow(StringBuilder text, DNSNode node, String ttl, String data,
+                                     String latencyMillis, boolean hit) {
+        appendCSVField(text, node.getHostName()).append(',').append(node.getType()).append(',').append(ttl)
+                .append(',');
+        appendCSVField(text, data).append(',').append(latencyMillis).append(',').append(hit).append('\n');
+    }
+
+    private static StringBuilder appendCSVField(StringBuilder text, String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0)
+            return text.append(value);
+        return text.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    static void appendJSONString(StringBuilder text, String value) {
+        text.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                text.append('\\').append(c);
+            else if (c < 0x20)
+                text.append(String.format("\\u%04x", (int) c));
+            else
+                text.append(c);
+        }
+        text.append('"');
+    }
+}
@@ -1,19 +1,65 @@
 package ca.ubc.cs317.dnslookup;
 
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
- * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * of the TTL (time-to-live) returned by the server, and are never returned to the user after
+ * they expire. Queries known to have no answer are also cached, as negative results (RFC 2308).
+ *
+ * Each node keeps the earliest expiration time among its records, so a read only has to compare
+ * that time with the coarse DNSClock to know that every record is still valid. Nodes are also
+ * scheduled in a timing wheel at their earliest expiration time, so expired records are removed
+ * in the background even for names that are never read again.
+ *
+ * The size of the cache can be limited both in number of records and in estimated bytes. When
+ * a limit is reached, whole nodes are evicted according to a W-TinyLFU policy (see
+ * EvictionPolicy), which keeps frequently used names in the cache.
+ *
+ * Frequently used names may also be refreshed ahead of time: when a name read often enough has
+ * a record in the last part of its TTL, a prefetcher is asked to resolve it again in the
+ * background, so the new records replace the old ones before they expire.
+ *
+ * The cache is safe for use by multiple threads. Nodes are kept in a lock-free sorted map, and
+ * the records of each node in an array that is replaced, never modified, when the node is written,
+ * so reads never block and a node with a few records takes little more heap than the records.
+ * Writes to the same node are serialized by a lock on that node only, so lookups for different
+ * names never contend.
+ *
+ * Address (A and AAAA) records are also indexed by address, so that the names known to resolve
+ * to an address can be found without a scan of the cache, e.g. to answer a reverse (PTR) lookup
+ * of an address that was recently resolved forward. The index is updated along with the records
+ * of each node, and costs about 100 bytes per address record.
  */
 public class DNSCache {
 
+    private static final long EXPIRY_TICK_MILLIS = 250;
+    private static final int EXPIRY_WHEEL_SLOTS = 1024;
+    /** Estimated heap used by a node regardless of its records: entry, map nodes and key. */
+    private static final long NODE_OVERHEAD = 200;
+    private static final ResourceRecord[] NO_RECORDS = new ResourceRecord[0];
+
     private static DNSCache instance = new DNSCache();
 
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private final ConcurrentNavigableMap<DNSNode, CacheEntry> cachedResults = new ConcurrentSkipListMap<>();
+    /** Nodes with a cached record for each address. Arrays are replaced, never modified. */
+    private final ConcurrentHashMap<AddressKey, DNSNode[]> addressIndex = new ConcurrentHashMap<>();
+    private final TimingWheel<CacheEntry> expiryWheel =
+            new TimingWheel<>("dns-cache-expiry", EXPIRY_TICK_MILLIS, EXPIRY_WHEEL_SLOTS, this::expire);
+    private final EvictionPolicy policy = new EvictionPolicy(Long.MAX_VALUE, Long.MAX_VALUE);
+
+    private volatile double prefetchFraction = 0;
+    private volatile int prefetchMinFrequency = Integer.MAX_VALUE;
+    private volatile Consumer<DNSNode> prefetcher = null;
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -24,21 +70,82 @@ public class DNSCache {
         return instance;
     }
 
+    /** Limits the size of the cache. Nodes are evicted, if needed, the next time a record is added.
+     *
+     * @param maxRecords Maximum number of records, or Long.MAX_VALUE for no limit.
+     * @param maxBytes   Maximum estimated heap used by the cache, or Long.MAX_VALUE for no limit.
+     */
+    public void setLimits(long maxRecords, long maxBytes) {
+        policy.setLimits(maxRecords, maxBytes);
+    }
+
+    /** Enables refresh-ahead of frequently used names. When a node read at least a minimum number
+     * of times recently (as estimated by the eviction policy) is read while one of its records has
+     * less than a fraction of its original TTL left, the prefetcher is called once with the node.
+     * The prefetcher should resolve the node again without blocking the caller, and add the new
+     * records with addResult. Only records added after this call are refreshed.
+     *
+     * @param fraction     Fraction of the TTL at which records are refreshed, or 0 to disable refresh-ahead.
+     * @param minFrequency Minimum estimated number of recent reads of a node (at most 15).
+     * @param prefetcher   Callback starting the refresh of a node.
+     */
+    public void setPrefetch(double fraction, int minFrequency, Consumer<DNSNode> prefetcher) {
+        this.prefetchMinFrequency = minFrequency;
+        this.prefetcher = prefetcher;
+        this.prefetchFraction = fraction;
+    }
+
+    /** Checks if a node has a record in the last part of its TTL, and would be refreshed ahead.
+     *
+     * @param node DNS query (host name and record type).
+     * @return True if a refresh of the node is due.
+     */
+    public boolean isRefreshDue(DNSNode node) {
+        CacheEntry entry = cachedResults.get(node);
+        return entry != null && DNSClock.currentTimeMillis() >= entry.refreshTime;
+    }
+
+    /** Returns the node the cache keeps the records of a query under, or the given node if none
+     * is cached. Records created for the returned node (e.g. all records of an RRset decoded from
+     * a response) share the node of the cache key instead of each having their own.
+     *
+     * @param node DNS query (host name and record type).
+     * @return A node equal to the given one.
+     */
+    public DNSNode getNode(DNSNode node) {
+        CacheEntry entry = cachedResults.get(node);
+        return entry != null ? entry.node : node;
+    }
+
+    /** Returns the current size, limits and eviction counters of the cache.
+     *
+     * @return A snapshot of the cache statistics.
+     */
+    public DNSCacheStats getStats() {
+        return policy.stats();
+    }
+
     /** Returns a set of resource records already cached for a particular query. If no results
      * are cached for the specified query, returns an empty set. Expired results are removed
      * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * only returns previously cached results. The returned set is read-only, and may reflect
+     * records added concurrently by other threads.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
+        CacheEntry entry = cachedResults.get(node);
+        if (entry == null)
             return Collections.emptySet();
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+        long now = DNSClock.currentTimeMillis();
+        if (entry.hasExpired(now))
+            removeExpired(entry);
+        policy.recordAccess(entry);
+        if (now >= entry.refreshTime)
+            requestPrefetch(entry);
+        return entry.view;
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
@@ -52,28 +159,295 @@ public class DNSCache {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        CacheEntry entry;
+        long recordsDelta = 0, bytesDelta = 0;
+        boolean added = false, replaced = false;
+        while (true) {
+            entry = cachedResults.computeIfAbsent(record.getNode(), CacheEntry::new);
+            synchronized (entry) {
+                // The entry may have been discarded (empty) after we found it, in which case retry
+                if (entry.retired) continue;
+
+                ResourceRecord[] records = entry.records;
+                int index = indexOf(records, record);
+                ResourceRecord oldRecord = index < 0 ? null : records[index];
+                if (oldRecord == null || oldRecord.expiresBefore(record)) {
+                    if (entry.isEmpty())
+                        bytesDelta += nodeOverhead(entry);
+
+                    if (index < 0) {
+                        index = records.length;
+                        records = Arrays.copyOf(records, records.length + 1);
+                        if (record.hasAddress())
+                            indexAddress(record, entry.node);
+                    } else {
+                        records = records.clone();
+                    }
+                    records[index] = record;
+                    entry.records = records;
+                    entry.writeTime = DNSClock.currentTimeMillis();
+                    entry.earliestExpiration = Math.min(entry.earliestExpiration, record.getExpirationTime());
+                    scheduleExpiration(entry);
+                    updateRefreshTime(entry);
+
+                    bytesDelta += record.estimateSize();
+                    added = true;
+                    replaced = oldRecord != null;
+                    if (oldRecord != null)
+                        bytesDelta -= oldRecord.estimateSize();
+                    else
+                        recordsDelta++;
+
+                    // An answer for this node replaces any negative result
+                    if (entry.negative != null) {
+                        bytesDelta -= entry.negative.estimateSize();
+                        recordsDelta--;
+                        entry.negative = null;
+                    }
+                }
+                break;
+            }
         }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+        // The policy is updated after releasing the entry, since it may lock other entries to evict them
+        if (recordsDelta != 0 || bytesDelta != 0)
+            policy.recordWrite(entry, recordsDelta, bytesDelta, this::evict);
+
+        if (added) {
+            DNSEvents.CacheInsert event = new DNSEvents.CacheInsert();
+            if (event.shouldCommit()) {
+                event.name = record.getHostName();
+                event.type = record.getType().name();
+                event.ttl = record.getTTL();
+                event.replaced = replaced;
+                event.commit();
+            }
+        }
+    }
+
+    /** Replaces all the records of a node by a new set of records, e.g. the complete RRset of a
+     * node in the answer section of a response (RFC 2181, section 5.4.1). Records of the node that
+     * are not in the new set are removed in the same step, so readers see either the old records
+     * or the new ones, never a mix of both. Expired records of the new set are ignored, and the
+     * cache is not modified if none is left.
+     *
+     * @param node    DNS query (host name and record type) of the records.
+     * @param records New records of the node.
+     */
+    public void replaceResults(DNSNode node, Collection<ResourceRecord> records) {
+        List<ResourceRecord> valid = new ArrayList<>(records.size());
+        for (ResourceRecord record : records)
+            if (record.isStillValid() && !valid.contains(record))
+                valid.add(record);
+        if (valid.isEmpty()) return;
+        ResourceRecord[] replacement = valid.toArray(NO_RECORDS);
+
+        CacheEntry entry;
+        ResourceRecord[] oldRecords;
+        long recordsDelta, bytesDelta;
+        while (true) {
+            entry = cachedResults.computeIfAbsent(node, CacheEntry::new);
+            synchronized (entry) {
+                if (entry.retired) continue;
+
+                oldRecords = entry.records;
+                recordsDelta = replacement.length - oldRecords.length;
+                bytesDelta = entry.isEmpty() ? nodeOverhead(entry) : 0;
+                for (ResourceRecord record : oldRecords) {
+                    bytesDelta -= record.estimateSize();
+                    if (record.hasAddress() && indexOf(replacement, record) < 0)
+                        unindexAddress(record, entry.node);
+                }
+                long earliest = Long.MAX_VALUE;
+                for (ResourceRecord record : replacement) {
+                    bytesDelta += record.estimateSize();
+                    if (record.hasAddress() && indexOf(oldRecords, record) < 0)
+                        indexAddress(record, entry.node);
+                    earliest = Math.min(earliest, record.getExpirationTime());
+                }
+                entry.records = replacement;
+                entry.writeTime = DNSClock.currentTimeMillis();
+
+                // An answer for this node replaces any negative result
+                if (entry.negative != null) {
+                    bytesDelta -= entry.negative.estimateSize();
+                    recordsDelta--;
+                    entry.negative = null;
+                }
+                entry.earliestExpiration = earliest;
+                scheduleExpiration(entry);
+                updateRefreshTime(entry);
+                break;
+            }
+        }
+
+        if (recordsDelta != 0 || bytesDelta != 0)
+            policy.recordWrite(entry, recordsDelta, bytesDelta, this::evict);
+
+        for (ResourceRecord record : replacement) {
+            DNSEvents.CacheInsert event = new DNSEvents.CacheInsert();
+            if (!event.shouldCommit()) break;
+            event.name = record.getHostName();
+            event.type = record.getType().name();
+            event.ttl = record.getTTL();
+            event.replaced = indexOf(oldRecords, record) >= 0;
+            event.commit();
+        }
+    }
+
+    /** Returns the time at which records were last added to a node or replaced, e.g. to know if
+     * new records were received since a refresh of the node started.
+     *
+     * @param node DNS query (host name and record type).
+     * @return The time of the last write, based on DNSClock, or Long.MIN_VALUE if the node is not
+     *         cached.
+     */
+    public long getWriteTime(DNSNode node) {
+        CacheEntry entry = cachedResults.get(node);
+        return entry == null ? Long.MIN_VALUE : entry.writeTime;
+    }
+
+    /** Returns the negative result cached for a particular query, i.e., the fact that the query was
+     * recently found to have no answer. A negative result is only returned while no record is
+     * cached for the query.
+     *
+     * @param node DNS query (host name and record type) to obtain a cached negative result.
+     * @return The negative result for the query, or null if none is cached.
+     */
+    public NegativeResult getNegativeResult(DNSNode node) {
+        CacheEntry entry = cachedResults.get(node);
+        if (entry == null)
+            return null;
+
+        if (entry.hasExpired(DNSClock.currentTimeMillis()))
+            removeExpired(entry);
+        NegativeResult negative = entry.negative;
+        if (negative == null || entry.records.length > 0)
+            return null;
+        policy.recordAccess(entry);
+        return negative;
+    }
+
+    /** Adds a negative result to the DNS cache. If the cache already has a negative result for the
+     * same query, it is replaced if the new one expires after the existing one. Negative results
+     * count towards the limits of the cache like a single record.
+     *
+     * @param negative Negative result obtained from a DNS server.
+     */
+    public void addNegativeResult(NegativeResult negative) {
+
+        if (!negative.isStillValid()) return;
+
+        CacheEntry entry;
+        long recordsDelta = 0, bytesDelta = 0;
+        while (true) {
+            entry = cachedResults.computeIfAbsent(negative.getNode(), CacheEntry::new);
+            synchronized (entry) {
+                if (entry.retired) continue;
+
+                NegativeResult oldNegative = entry.negative;
+                if (oldNegative == null || oldNegative.getExpirationTime() < negative.getExpirationTime()) {
+                    if (entry.isEmpty())
+                        bytesDelta += nodeOverhead(entry);
+                    entry.negative = negative;
+                    entry.earliestExpiration = Math.min(entry.earliestExpiration, negative.getExpirationTime());
+                    scheduleExpiration(entry);
+
+                    bytesDelta += negative.estimateSize();
+                    if (oldNegative != null)
+                        bytesDelta -= oldNegative.estimateSize();
+                    else
+                        recordsDelta++;
+                }
+                break;
+            }
+        }
+
+        if (recordsDelta != 0 || bytesDelta != 0)
+            policy.recordWrite(entry, recordsDelta, bytesDelta, this::evict);
+    }
+
+    /** Returns the cached address (A or AAAA) records whose address is a given address, i.e., the
+     * records of the names known to resolve to the address. Expired records are not returned.
+     *
+     * @param address IPv4 or IPv6 address.
+     * @return A potentially empty set of address records with this address.
+     */
+    public Set<ResourceRecord> getRecordsForAddress(InetAddress address) {
+        AddressKey key = AddressKey.of(address);
+        DNSNode[] nodes = addressIndex.get(key);
+        if (nodes == null)
+            return Collections.emptySet();
+
+        long now = DNSClock.currentTimeMillis();
+        Set<ResourceRecord> results = new HashSet<>();
+        for (DNSNode node : nodes) {
+            CacheEntry entry = cachedResults.get(node);
+            if (entry == null) continue;
+            for (ResourceRecord record : entry.records) {
+                if (record.getExpirationTime() > now && record.hasAddress() && key.matches(record)) {
+                    results.add(record);
+                    policy.recordAccess(entry);
+                }
+            }
+        }
+        return results;
+    }
+
+    /** Returns the number of nodes indexed under an address, whether or not their records for it
+     * are still valid. The entries of the index are removed with the records, when they expire or
+     * are evicted or replaced, so this is the number of cached nodes with a record for the address.
+     *
+     * @param address IPv4 or IPv6 address.
+     * @return The number of nodes indexed under the address.
+     */
+    public int getIndexedNodes(InetAddress address) {
+        DNSNode[] nodes = addressIndex.get(AddressKey.of(address));
+        return nodes == null ? 0 : nodes.length;
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
      * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * the action is performed. Queries are visited in sorted order.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        long now = DNSClock.currentTimeMillis();
+        for (CacheEntry entry : cachedResults.values()) {
+            if (entry.hasExpired(now))
+                removeExpired(entry);
+            if (entry.records.length > 0)
+                consumer.accept(entry.node, entry.view);
+        }
+    }
+
+    /** Visits the nodes of the cache that have valid records, in sorted order, starting after a
+     * given node, until the visitor returns false. Unlike forEachNode, the traversal takes no lock
+     * and removes nothing, so it may take any time without holding up lookups: expired records are
+     * skipped instead. The records of each node are seen as they were at one point in time, but
+     * nodes added or removed during the traversal may or may not be visited.
+     *
+     * @param after   Node after which the traversal starts, or null to start at the first node.
+     * @param visitor Called with each node and its valid records; returns false to stop.
+     */
+    public void scan(DNSNode after, BiPredicate<DNSNode, List<ResourceRecord>> visitor) {
+        Map<DNSNode, CacheEntry> nodes = after == null ? cachedResults : cachedResults.tailMap(after, false);
+        for (CacheEntry entry : nodes.values()) {
+            ResourceRecord[] records = entry.records;
+            if (records.length == 0) continue;
+
+            List<ResourceRecord> valid = Arrays.asList(records);
+            long now = DNSClock.currentTimeMillis();
+            if (entry.hasExpired(now)) {
+                valid = new ArrayList<>(records.length);
+                for (ResourceRecord record : records)
+                    if (record.getExpirationTime() > now)
+                        valid.add(record);
+                if (valid.isEmpty()) continue;
+            }
+            if (!visitor.test(entry.node, Collections.unmodifiableList(valid)))
+                return;
         }
     }
 
@@ -84,10 +458,289 @@ public class DNSCache {
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        long now = DNSClock.currentTimeMillis();
+        for (CacheEntry entry : cachedResults.values()) {
+            if (entry.hasExpired(now))
+                removeExpired(entry);
+            for (ResourceRecord record : entry.records)
+                consumer.accept(entry.node, record);
+        }
+    }
+
+    /** Perform a specific action for each negative result in the cache, in sorted order of their
+     * queries. Expired results are removed before the action is performed.
+     *
+     * @param consumer Action to be performed for each negative result.
+     */
+    public void forEachNegativeResult(Consumer<NegativeResult> consumer) {
+        long now = DNSClock.currentTimeMillis();
+        for (CacheEntry entry : cachedResults.values()) {
+            if (entry.hasExpired(now))
+                removeExpired(entry);
+            NegativeResult negative = entry.negative;
+            if (negative != null && entry.records.length == 0)
+                consumer.accept(negative);
+        }
+    }
+
+    /** Removes the expired records of a node, and discards the node itself if no record is left. */
+    private void removeExpired(CacheEntry entry) {
+        long bytesDelta = 0;
+        int recordsDelta = 0;
+        boolean retired;
+        synchronized (entry) {
+            if (entry.retired) return;
+
+            long now = DNSClock.currentTimeMillis();
+            long earliest = Long.MAX_VALUE;
+            ResourceRecord[] records = entry.records;
+            ResourceRecord[] valid = new ResourceRecord[records.length];
+            int count = 0;
+            for (ResourceRecord record : records) {
+                long expiration = record.getExpirationTime();
+                if (expiration <= now) {
+                    recordsDelta--;
+                    bytesDelta -= record.estimateSize();
+                    if (record.hasAddress())
+                        unindexAddress(record, entry.node);
+                } else {
+                    earliest = Math.min(earliest, expiration);
+                    valid[count++] = record;
+                }
+            }
+            if (count < records.length)
+                entry.records = count == 0 ? NO_RECORDS : Arrays.copyOf(valid, count);
+
+            if (entry.negative != null) {
+                if (entry.negative.getExpirationTime() <= now) {
+                    recordsDelta--;
+                    bytesDelta -= entry.negative.estimateSize();
+                    entry.negative = null;
+                } else {
+                    earliest = Math.min(earliest, entry.negative.getExpirationTime());
+                }
+            }
+            entry.earliestExpiration = earliest;
+            updateRefreshTime(entry);
+
+            retired = entry.isEmpty();
+            if (retired) {
+                entry.retired = true;
+                cachedResults.remove(entry.node, entry);
+            } else {
+                scheduleExpiration(entry);
+            }
+        }
+
+        if (retired)
+            policy.remove(entry);
+        else if (recordsDelta != 0)
+            policy.recordWrite(entry, recordsDelta, bytesDelta, this::evict);
+    }
+
+    /** Recomputes the time at which a node should be refreshed ahead, from its current records.
+     * Must be called while holding the lock on the entry.
+     */
+    private void updateRefreshTime(CacheEntry entry) {
+        double fraction = prefetchFraction;
+        long refreshTime = Long.MAX_VALUE;
+        if (fraction > 0) {
+            for (ResourceRecord record : entry.records)
+                refreshTime = Math.min(refreshTime, record.getRefreshTime(fraction));
         }
+        entry.refreshTime = refreshTime;
     }
 
-}
\ No newline at end of file
+    /** Calls the prefetcher for a node due for a refresh, if the node is used often enough and
+     * was not already requested for its current records.
+     */
+    private void requestPrefetch(CacheEntry entry) {
+        Consumer<DNSNode> prefetcher = this.prefetcher;
+        if (prefetcher == null || prefetchFraction <= 0) return;
+        if (policy.frequency(entry.node) < prefetchMinFrequency) return;
+        synchronized (entry) {
+            if (entry.retired || entry.prefetchedFor == entry.refreshTime) return;
+            entry.prefetchedFor = entry.refreshTime;
+        }
+        prefetcher.accept(entry.node);
+    }
+
+    /** Adds a node to the address index, for a record of the node. Must be called while holding
+     * the lock on the node's entry.
+     */
+    private void indexAddress(ResourceRecord record, DNSNode node) {
+        addressIndex.compute(new AddressKey(record), (key, nodes) -> {
+            if (nodes == null) return new DNSNode[]{node};
+            for (DNSNode indexed : nodes)
+                if (indexed.equals(node)) return nodes;
+            DNSNode[] added = Arrays.copyOf(nodes, nodes.length + 1);
+            added[nodes.length] = node;
+            return added;
+        });
+    }
+
+    /** Removes a node from the address index, for a record of the node that is removed. Must be
+     * called while holding the lock on the node's entry.
+     */
+    private void unindexAddress(ResourceRecord record, DNSNode node) {
+        addressIndex.computeIfPresent(new AddressKey(record), (key, nodes) -> {
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i].equals(node)) {
+                    if (nodes.length == 1) return null;
+                    DNSNode[] remaining = new DNSNode[nodes.length - 1];
+                    System.arraycopy(nodes, 0, remaining, 0, i);
+                    System.arraycopy(nodes, i + 1, remaining, i, nodes.length - i - 1);
+                    return remaining;
+                }
+            }
+            return nodes;
+        });
+    }
+
+    /** Returns the index of the record equivalent to a given record in an array, or -1 if none. */
+    private static int indexOf(ResourceRecord[] records, ResourceRecord record) {
+        for (int i = 0; i < records.length; i++)
+            if (records[i].equals(record))
+                return i;
+        return -1;
+    }
+
+    /** Estimated heap used by a node in addition to its records. */
+    private static long nodeOverhead(CacheEntry entry) {
+        return NODE_OVERHEAD + 2L * entry.node.getHostName().length();
+    }
+
+    /** Called by the eviction policy to remove a node and all its records from the cache. */
+    private boolean evict(EvictionPolicy.Node node) {
+        CacheEntry entry = (CacheEntry) node;
+        synchronized (entry) {
+            if (entry.retired) return false;
+            entry.retired = true;
+            cachedResults.remove(entry.node, entry);
+            for (ResourceRecord record : entry.records)
+                if (record.hasAddress())
+                    unindexAddress(record, entry.node);
+            return true;
+        }
+    }
+
+    /** Schedules a node in the timing wheel at its earliest expiration time, unless it is already
+     * scheduled at that time or earlier. Must be called while holding the lock on the entry.
+     */
+    private void scheduleExpiration(CacheEntry entry) {
+        if (entry.earliestExpiration < entry.scheduledExpiration) {
+            entry.scheduledExpiration = entry.earliestExpiration;
+            expiryWheel.schedule(entry, entry.earliestExpiration);
+        }
+    }
+
+    /** Called by the timing wheel when a node reaches a scheduled expiration time. */
+    private void expire(CacheEntry entry, long deadline) {
+        synchronized (entry) {
+            if (entry.scheduledExpiration == deadline)
+                entry.scheduledExpiration = Long.MAX_VALUE;
+        }
+        removeExpired(entry);
+    }
+
+    /** Key of the address index: an IPv6 address, or an IPv4-mapped one, as stored in records. */
+    private static final class AddressKey {
+        private final long high;
+        private final long low;
+
+        private AddressKey(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        private AddressKey(ResourceRecord record) {
+            this(record.getAddressHigh(), record.getAddressLow());
+        }
+
+        private static AddressKey of(InetAddress address) {
+            ByteBuffer bytes = ByteBuffer.wrap(address.getAddress());
+            return bytes.limit() == 4 ? new AddressKey(0, ResourceRecord.mapIPv4(bytes.getInt(0)))
+                    : new AddressKey(bytes.getLong(0), bytes.getLong(8));
+        }
+
+        private boolean matches(ResourceRecord record) {
+            return record.getAddressHigh() == high && record.getAddressLow() == low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof AddressKey)) return false;
+            AddressKey key = (AddressKey) o;
+            return high == key.high && low == key.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(high) + Long.hashCode(low);
+        }
+    }
+
+    /** The records (or negative result) cached for a single node. Records are kept in an array
+     * that is replaced by a new one, under the lock on the entry, whenever a record is added,
+     * replaced or removed, so readers always see a consistent set of records without locking.
+     * Nodes have few records, so an equivalent record is found by a linear search.
+     */
+    private static class CacheEntry extends EvictionPolicy.Node {
+        private final DNSNode node;
+        private volatile ResourceRecord[] records = NO_RECORDS;
+        private volatile NegativeResult negative = null;
+        private boolean retired = false;
+
+        /** Lower bound of the expiration time of every record of this node. */
+        private volatile long earliestExpiration = Long.MAX_VALUE;
+
+        /** Earliest time at which this node is scheduled in the timing wheel. */
+        private long scheduledExpiration = Long.MAX_VALUE;
+
+        /** Time at which a record of this node enters the last part of its TTL. */
+        private volatile long refreshTime = Long.MAX_VALUE;
+
+        /** Time at which a record was last added to this node or replaced. */
+        private volatile long writeTime = Long.MIN_VALUE;
+
+        /** Refresh time for which a prefetch was last requested, so it is requested only once. */
+        private long prefetchedFor = Long.MIN_VALUE;
+
+        private CacheEntry(DNSNode node) {
+            super(node);
+            this.node = node;
+        }
+
+        /** Returns true if this node has neither records nor a negative result. Must be called
+         * while holding the lock on the entry.
+         */
+        private boolean isEmpty() {
+            return records.length == 0 && negative == null;
+        }
+
+        private boolean hasExpired(long now) {
+            return now >= earliestExpiration;
+        }
+
+        /** Read-only view of the current records. Each iteration goes over the array current
+         * when it starts, so replaced records are never seen once the replacement is done.
+         */
+        private final Set<ResourceRecord> view = new AbstractSet<ResourceRecord>() {
+            @Override
+            public Iterator<ResourceRecord> iterator() {
+                return Collections.unmodifiableList(Arrays.asList(records)).iterator();
+            }
+
+            @Override
+            public int size() {
+                return records.length;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof ResourceRecord && indexOf(records, (ResourceRecord) o) >= 0;
+            }
+        };
+    }
+}
@@ -0,0 +1,244 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.List;
+
+/** Exports the records of the DNS cache to a text file, in zone file (RFC 1035, section 5) or
+ * JSON Lines format, e.g. to inspect a large cache or feed it to other tools.
+ *
+ * The export streams the cache with DNSCache.scan, so it takes no lock and lookups go on while it
+ * runs. Records may be filtered by domain, record type and minimum remaining TTL, and exported in
+ * pages of a limited number of nodes (host name and type): each page returns the node to start
+ * the next page after. Lines are encoded into a direct buffer written to a file channel in large
+ * blocks. As with snapshots, the file is written under a temporary name and then renamed.
+ */
+public class DNSCacheExport {
+
+    public enum Format {ZONE, JSONL}
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Text accumulated before being encoded into the buffer. */
+    private static final int TEXT_SIZE = 16 * 1024;
+
+    private DNSCacheExport() {
+    }
+
+    /** Selects the records to be exported. */
+    public static class Filter {
+        private final String domain;
+        private final String dottedDomain;
+        private final RecordType type;
+        private final long minTTL;
+
+        /**
+         * @param domain Only export names in this domain (the domain itself or its subdomains), or
+         *               null for all names.
+         * @param type   Only export records of this type, or null for all types.
+         * @param minTTL Only export records with at least this remaining TTL, in seconds.
+         */
+        public Filter(String domain, RecordType type, long minTTL) {
+            this.domain = domain == null ? null : DNSNameTable.canonicalize(domain);
+            this.dottedDomain = this.domain == null ? null : "." + this.domain;
+            this.type = type;
+            this.minTTL = minTTL;
+        }
+
+        private boolean matches(DNSNode node) {
+            if (type != null && node.getType() != type) return false;
+            if (node.getType() == RecordType.OTHER) return false; // No data to export
+            if (domain == null || domain.isEmpty()) return true;
+            String name = node.getHostName();
+            return name.equals(domain) || name.endsWith(dottedDomain);
+        }
+
+        private boolean matches(ResourceRecord record) {
+            return record.getTTL() >= minTTL;
+        }
+    }
+
+    /** Result of exporting a page of records. */
+    public static class Page {
+        private final int nodes;
+        private final int records;
+        private final DNSNode next;
+
+        private Page(int nodes, int records, DNSNode next) {
+            this.nodes = nodes;
+            this.records = records;
+            this.next = next;
+        }
+
+        /** Number of nodes (host name and type) with at least one record exported. */
+        public int getNodes() {
+            return nodes;
+        }
+
+        public int getRecords() {
+            return records;
+        }
+
+        /** Node after which the next page starts, or null if this page is the last one. */
+        public DNSNode getNext() {
+            return next;
+        }
+    }
+
+    /** Exports a page of records of a cache to a file.
+     *
+     * @param cache    Cache to be exported.
+     * @param file     Path of the file to be written.
+     * @param format   Format of the file.
+     * @param filter   Records to be exported.
+     * @param after    Node after which the page starts (see Page.getNext), or null for the first page.
+     * @param maxNodes Maximum number of nodes in the page, or Integer.MAX_VALUE for all of them.
+     * @return The number of nodes and records exported, and where the next page starts.
+     * @throws IOException if the file could not be written.
+     */
+    public static Page export(DNSCache cache, Path file, Format format, Filter filter, DNSNode after,
+                              int maxNodes) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        int[] counts = new int[2];
+        DNSNode[] last = new DNSNode[1];
+        boolean[] more = new boolean[1];
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Writer writer = new Writer(channel);
+            if (format == Format.ZONE)
+                writer.text.append("; DNS cache export, ").append(Instant.now()).append('\n');
+
+            IOException[] error = new IOException[1];
+            cache.scan(after, (node, records) -> {
+                if (!filter.matches(node)) return true;
+                if (counts[0] == maxNodes) {
+                    // Only stop once another node would be exported, so the last page has no next one
+                    if (anyMatch(filter, records)) {
+                        more[0] = true;
+                        return false;
+                    }
+                    return true;
+                }
+                int exported = 0;
+                for (ResourceRecord record : records) {
+                    if (!filter.matches(record)) continue;
+                    if (format == Format.ZONE)
+                        appendZoneLine(writer.text, node, record);
+                    else
+                        appendJSONLine(writer.text, node, record);
+                    exported++;
+                }
+                if (exported == 0) return true;
+                counts[0]++;
+                counts[1] += exported;
+                last[0] = node;
+                try {
+                    writer.flushText(false);
+                } catch (IOException e) {
+                    error[0] = e;
+                    return false;
+                }
+                return true;
+            });
+            if (error[0] != null) throw error[0];
+            writer.flushText(true);
+            writer.flushBuffer();
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new Page(counts[0], counts[1], more[0] ? last[0] : null);
+    }
+
+    private static boolean anyMatch(Filter filter, List<ResourceRecord> records) {
+        for (ResourceRecord record : records)
+            if (filter.matches(record)) return true;
+        return false;
+    }
+
+    /** Appends a record in zone file format: owner, TTL, class, type and data. */
+    private static void appendZoneLine(StringBuilder text, DNSNode node, ResourceRecord record) {
+        appendAbsoluteName(text, node.getHostName()).append('\t').append(record.getTTL())
+                .append("\tIN\t").append(node.getType()).append('\t');
+        switch (node.getType()) {
+            case NS:
+            case CNAME:
+            case PTR:
+                appendAbsoluteName(text, record.getTextResult());
+                break;
+            case MX:
+                text.append(DNSResponseEncoder.MX_PREFERENCE).append(' ');
+                appendAbsoluteName(text, record.getTextResult());
+                break;
+            case SOA:
+                // MNAME RNAME SERIAL REFRESH RETRY EXPIRE MINIMUM, as decoded by DNSMessageReader
+                String[] fields = record.getTextResult().split(" ");
+                appendAbsoluteName(text, fields[0]).append(' ');
+                appendAbsoluteName(text, fields[1]);
+                for (int i = 2; i < fields.length; i++)
+                    text.append(' ').append(fields[i]);
+                break;
+            default:
+                text.append(record.getTextResult());
+                break;
+        }
+        text.append('\n');
+    }
+
+    private static void appendJSONLine(StringBuilder text, DNSNode node, ResourceRecord record) {
+        text.append("{\"name\":");
+        BatchLookup.appendJSONString(text, node.getHostName());
+        text.append(",\"type\":\"").append(node.getType()).append("\",\"ttl\":").append(record.getTTL())
+                .append(",\"data\":");
+        BatchLookup.appendJSONString(text, record.getTextResult());
+        text.append("}\n");
+    }
+
+    /** Appends a name with its trailing dot, so that it is not relative to an origin. */
+    private static StringBuilder appendAbsoluteName(StringBuilder text, String name) {
+        return name.isEmpty() ? text.append('.') : text.append(name).append('.');
+    }
+
+    /** Encodes text in UTF-8 into a direct buffer, written to the channel whenever it is full. */
+    private static class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final StringBuilder text = new StringBuilder(TEXT_SIZE + 1024);
+
+        private Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Encodes the accumulated text into the buffer, if there is enough of it or if forced. */
+        private void flushText(boolean force) throws IOException {
+            if (text.length() < TEXT_SIZE && !force) return;
+            CharBuffer chars = CharBuffer.wrap(text);
+            while (true) {
+                CoderResult result = encoder.encode(chars, buffer, false);
+                if (result.isUnderflow()) break;
+                if (result.isOverflow())
+                    flushBuffer();
+                else
+                    result.throwException();
+            }
+            text.setLength(0);
+        }
+
+        private void flushBuffer() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+}
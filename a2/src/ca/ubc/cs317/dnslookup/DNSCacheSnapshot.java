@@ -0,0 +1,223 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/** Saves the contents of the DNS cache to a binary file, and loads it back, so that a restarted
+ * resolver does not start with an empty cache.
+ *
+ * The file starts with a header (magic number, format version, and the number of records and
+ * negative results), followed by each record and then each negative result. Expiration times
+ * are stored as absolute epoch times, so that entries that expired while the resolver was not
+ * running are dropped when the file is loaded. Files are read through a memory-mapped channel,
+ * without copying them to the heap first.
+ */
+public class DNSCacheSnapshot {
+
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + 8 + 4 + 4;
+    private static final int COUNTS_OFFSET = 4 + 2 + 8;
+    /** Largest possible entry: two length-prefixed strings plus fixed-size fields. */
+    private static final int MAX_ENTRY_SIZE = 2 * (2 + 0xFFFF) + 16;
+    private static final int BUFFER_SIZE = 2 * MAX_ENTRY_SIZE;
+
+    private static final byte TEXT_RESULT = 0;
+
+    private DNSCacheSnapshot() {
+    }
+
+    /** Result of saving or loading a snapshot. */
+    public static class Summary {
+        private final int records;
+        private final int negativeResults;
+        private final int expired;
+
+        private Summary(int records, int negativeResults, int expired) {
+            this.records = records;
+            this.negativeResults = negativeResults;
+            this.expired = expired;
+        }
+
+        public int getRecords() {
+            return records;
+        }
+
+        public int getNegativeResults() {
+            return negativeResults;
+        }
+
+        /** Number of entries dropped on load because they expired after the snapshot was saved. */
+        public int getExpired() {
+            return expired;
+        }
+    }
+
+    /** Saves every valid record and negative result of a cache to a file. The file is written
+     * under a temporary name and then renamed, so an existing snapshot is never left incomplete.
+     *
+     * @param cache Cache to be saved.
+     * @param file  Path of the snapshot file.
+     * @return The number of records and negative results saved.
+     * @throws IOException if the file could not be written.
+     */
+    public static Summary save(DNSCache cache, Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        // Offset converting DNSClock times into epoch times
+        long clockOffset = System.currentTimeMillis() - DNSClock.currentTimeMillis();
+        int[] counts = new int[2];
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(MAGIC).putShort(VERSION).putLong(System.currentTimeMillis()).putInt(0).putInt(0);
+
+            IOException[] error = new IOException[1];
+            cache.forEachRecord((node, record) -> {
+                if (error[0] != null) return;
+                try {
+                    ensureRemaining(channel, buffer);
+                    putString(buffer, node.getHostName());
+                    buffer.putShort((short) node.getType().getCode());
+                    buffer.putLong(record.getExpirationTime() + clockOffset);
+                    if (record.hasAddress()) {
+                        buffer.put((byte) record.getAddressLength());
+                        record.putAddress(buffer);
+                    } else {
+                        buffer.put(TEXT_RESULT);
+                        putString(buffer, record.getTextResult());
+                    }
+                    counts[0]++;
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            cache.forEachNegativeResult(negative -> {
+                if (error[0] != null) return;
+                try {
+                    ensureRemaining(channel, buffer);
+                    putString(buffer, negative.getNode().getHostName());
+                    buffer.putShort((short) negative.getNode().getType().getCode());
+                    buffer.putLong(negative.getExpirationTime() + clockOffset);
+                    buffer.put((byte) (negative.isNameError() ? 1 : 0));
+                    putString(buffer, negative.getZone());
+                    counts[1]++;
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) throw error[0];
+
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+
+            // Fill in the counts, now that they are known
+            ByteBuffer header = ByteBuffer.allocate(8).putInt(counts[0]).putInt(counts[1]);
+            header.flip();
+            channel.write(header, COUNTS_OFFSET);
+            channel.force(false);
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new Summary(counts[0], counts[1], 0);
+    }
+
+    /** Loads the records and negative results of a snapshot file into a cache. Entries that have
+     * expired since the snapshot was saved are dropped.
+     *
+     * @param cache Cache the entries are added to.
+     * @param file  Path of the snapshot file.
+     * @return The number of records and negative results loaded, and the number of entries dropped.
+     * @throws IOException if the file could not be read, or is not a valid snapshot.
+     */
+    public static Summary load(DNSCache cache, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE)
+                throw new IOException("File is too short to be a cache snapshot");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC)
+                throw new IOException("File is not a cache snapshot");
+            short version = buffer.getShort();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version);
+            buffer.getLong(); // Time the snapshot was saved
+            int recordCount = buffer.getInt();
+            int negativeCount = buffer.getInt();
+
+            // Offset converting epoch times into DNSClock times
+            long clockOffset = DNSClock.currentTimeMillis() - System.currentTimeMillis();
+            long now = DNSClock.currentTimeMillis();
+            int records = 0, negativeResults = 0, expired = 0;
+
+            DNSNode recordNode = null;
+            for (int i = 0; i < recordCount; i++) {
+                // Records of a node are saved together, and share the node of the cache key
+                String hostName = DNSNameTable.canonicalize(getString(buffer));
+                RecordType type = RecordType.getByCode(buffer.getShort() & 0xFFFF);
+                if (recordNode == null || recordNode.getHostName() != hostName || recordNode.getType() != type)
+                    recordNode = cache.getNode(new DNSNode(hostName, type));
+                long expirationTime = buffer.getLong() + clockOffset;
+                int kind = buffer.get();
+                ResourceRecord record;
+                if (kind == TEXT_RESULT) {
+                    record = ResourceRecord.expiringAt(recordNode, expirationTime, getString(buffer), null);
+                } else if (kind == 4 || kind == 16) {
+                    if (buffer.remaining() < kind) throw new BufferUnderflowException();
+                    record = ResourceRecord.expiringAt(recordNode, expirationTime, buffer, buffer.position(), kind);
+                    buffer.position(buffer.position() + kind);
+                } else {
+                    throw new IOException("Invalid address length " + kind + " in cache snapshot");
+                }
+                if (expirationTime <= now) {
+                    expired++;
+                    continue;
+                }
+                cache.addResult(record);
+                records++;
+            }
+
+            for (int i = 0; i < negativeCount; i++) {
+                DNSNode node = new DNSNode(getString(buffer), RecordType.getByCode(buffer.getShort() & 0xFFFF));
+                long expirationTime = buffer.getLong() + clockOffset;
+                boolean nameError = buffer.get() != 0;
+                String zone = getString(buffer);
+                if (expirationTime <= now) {
+                    expired++;
+                    continue;
+                }
+                cache.addNegativeResult(NegativeResult.expiringAt(node, expirationTime, nameError, zone));
+                negativeResults++;
+            }
+            return new Summary(records, negativeResults, expired);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Cache snapshot is truncated", e);
+        }
+    }
+
+    /** Writes the buffer to the channel if it may not have enough space for another entry. */
+    private static void ensureRemaining(FileChannel channel, ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() >= MAX_ENTRY_SIZE) return;
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,75 @@
+package ca.ubc.cs317.dnslookup;
+
+/** Snapshot of the size, limits and eviction counters of the DNS cache. */
+public class DNSCacheStats {
+
+    private final long records;
+    private final long bytes;
+    private final long maxRecords;
+    private final long maxBytes;
+    private final long evictionCount;
+    private final long evictedRecords;
+    private final long evictedBytes;
+    private final long rejectedCount;
+
+    public DNSCacheStats(long records, long bytes, long maxRecords, long maxBytes, long evictionCount,
+                         long evictedRecords, long evictedBytes, long rejectedCount) {
+        this.records = records;
+        this.bytes = bytes;
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.evictionCount = evictionCount;
+        this.evictedRecords = evictedRecords;
+        this.evictedBytes = evictedBytes;
+        this.rejectedCount = rejectedCount;
+    }
+
+    /** Number of records currently in the cache, including records that expired but were not
+     * removed yet.
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /** Estimated heap size of the records currently in the cache, in bytes. */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** Maximum number of records, or Long.MAX_VALUE if the number of records is not limited. */
+    public long getMaxRecords() {
+        return maxRecords;
+    }
+
+    /** Maximum estimated size in bytes, or Long.MAX_VALUE if the size is not limited. */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Number of nodes (with all their records) evicted to keep the cache within its limits. */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public long getEvictedRecords() {
+        return evictedRecords;
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    /** Number of new nodes evicted because they were less popular than the nodes already cached. */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d records (max %s), %d bytes (max %s), %d evictions (%d records, %d bytes), " +
+                        "%d rejected on admission",
+                records, maxRecords == Long.MAX_VALUE ? "unlimited" : String.valueOf(maxRecords),
+                bytes, maxBytes == Long.MAX_VALUE ? "unlimited" : String.valueOf(maxBytes),
+                evictionCount, evictedRecords, evictedBytes, rejectedCount);
+    }
+}
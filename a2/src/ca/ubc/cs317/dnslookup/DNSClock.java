@@ -0,0 +1,42 @@
+package ca.ubc.cs317.dnslookup;
+
+/** Coarse monotonic clock used to track the expiration of cached records. Reading the clock only
+ * reads a volatile field, so it is cheap enough to be called on every cache access. The value is
+ * advanced by a background thread based on System.nanoTime, so it never goes backwards when the
+ * wall clock is adjusted, and is expressed in milliseconds aligned with the epoch time at which
+ * the application started.
+ */
+public class DNSClock {
+
+    private static final long TICK_MILLIS = 10;
+
+    private static final long originMillis = System.currentTimeMillis();
+    private static final long originNanos = System.nanoTime();
+    private static volatile long now = originMillis;
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                now = originMillis + (System.nanoTime() - originNanos) / 1_000_000;
+                try {
+                    Thread.sleep(TICK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "dns-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private DNSClock() {
+    }
+
+    /** Returns the current time, with a resolution of a few milliseconds.
+     *
+     * @return The current time, in milliseconds since the epoch.
+     */
+    public static long currentTimeMillis() {
+        return now;
+    }
+}
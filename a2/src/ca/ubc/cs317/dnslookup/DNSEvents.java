@@ -0,0 +1,119 @@
+package ca.ubc.cs317.dnslookup;
+
+import jdk.jfr.*;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/** JDK Flight Recorder events of the resolver: each query sent to a server, the decoding of each
+ * response, cache reads and insertions, and the referrals and CNAME records followed by lookups.
+ * Events cost almost nothing when no recording is running, so they are always emitted; a
+ * recording is started with e.g. -XX:StartFlightRecording=filename=dns.jfr, and read with
+ * "jfr print --categories DNS dns.jfr" or JDK Mission Control.
+ *
+ * Events are created with the usual pattern: begin() before the work for duration events, then
+ * fields are only filled and the event committed if shouldCommit() returns true, so nothing is
+ * formatted unless the event is recorded.
+ */
+final class DNSEvents {
+
+    private DNSEvents() {
+    }
+
+    @Name("ca.ubc.cs317.dnslookup.Query")
+    @Label("DNS Query")
+    @Category("DNS")
+    @Description("A query sent to a server, from sending it to receiving its response or giving up")
+    @StackTrace(false)
+    static class Query extends Event {
+        @Label("Name") String name;
+        @Label("Type") String type;
+        @Label("Server") String server;
+        @Label("Transaction ID") int transactionID;
+        @Label("Attempt") @Description("1 for the first transmission, 2 for the first retransmission...")
+        int attempt;
+        @Label("TCP") boolean tcp;
+        @Label("Query Size") @DataAmount int querySize;
+        @Label("Response Size") @DataAmount int responseSize;
+        @Label("Timed Out") @Description("No response was received (or the caller stopped waiting)")
+        boolean timedOut;
+
+        void set(DNSNode node, InetAddress server, int transactionID, int attempt, boolean tcp,
+                 int querySize, ByteBuffer response) {
+            this.name = node.getHostName();
+            this.type = node.getType().name();
+            this.server = server.getHostAddress();
+            this.transactionID = transactionID;
+            this.attempt = attempt;
+            this.tcp = tcp;
+            this.querySize = querySize;
+            this.responseSize = response == null ? 0 : response.limit();
+            this.timedOut = response == null;
+        }
+    }
+
+    @Name("ca.ubc.cs317.dnslookup.Decode")
+    @Label("DNS Response Decoding")
+    @Category("DNS")
+    @Description("Decoding of a response and caching of its records")
+    @StackTrace(false)
+    static class Decode extends Event {
+        @Label("Transaction ID") int transactionID;
+        @Label("Response Size") @DataAmount int responseSize;
+        @Label("Records") int records;
+        @Label("Response Code") int rcode;
+    }
+
+    @Name("ca.ubc.cs317.dnslookup.CacheLookup")
+    @Label("DNS Cache Lookup")
+    @Category("DNS")
+    @Description("A lookup answered from the cache (hit), or needing queries to servers (miss)")
+    @StackTrace(false)
+    static class CacheLookup extends Event {
+        @Label("Name") String name;
+        @Label("Type") String type;
+        @Label("Hit") boolean hit;
+    }
+
+    @Name("ca.ubc.cs317.dnslookup.CacheInsert")
+    @Label("DNS Cache Insert")
+    @Category("DNS")
+    @Description("A record added to the cache, or replacing an equivalent one")
+    @StackTrace(false)
+    static class CacheInsert extends Event {
+        @Label("Name") String name;
+        @Label("Type") String type;
+        @Label("TTL") @Timespan(Timespan.SECONDS) long ttl;
+        @Label("Replaced") @Description("An equivalent record expiring earlier was replaced")
+        boolean replaced;
+    }
+
+    @Name("ca.ubc.cs317.dnslookup.Referral")
+    @Label("DNS Referral")
+    @Category("DNS")
+    @Description("Resolution of a name at the nameservers of a zone, after a referral to them")
+    @StackTrace(false)
+    static class Referral extends Event {
+        @Label("Name") String name;
+        @Label("Type") String type;
+        @Label("Zone") String zone;
+        @Label("Nameservers") int nameservers;
+        @Label("Glue") @Description("Nameservers whose address was known without resolving it")
+        int glue;
+        @Label("Depth") @Description("Number of server levels queried above this one")
+        int depth;
+        @Label("Answered") boolean answered;
+    }
+
+    @Name("ca.ubc.cs317.dnslookup.CNAME")
+    @Label("DNS CNAME Chase")
+    @Category("DNS")
+    @Description("Resolution of the canonical name of an alias")
+    @StackTrace(false)
+    static class CNAME extends Event {
+        @Label("Name") String name;
+        @Label("Type") String type;
+        @Label("Target") String target;
+        @Label("Answered") boolean answered;
+    }
+}
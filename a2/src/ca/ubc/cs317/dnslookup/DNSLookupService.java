@@ -3,16 +3,53 @@ package ca.ubc.cs317.dnslookup;
 import java.io.Console;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
 
 public class DNSLookupService {
 
     private static boolean p1Flag = false; // isolating part 1
     private static final int MAX_INDIRECTION_LEVEL = 10;
-    private static InetAddress rootServer;
+    private static final long PARALLEL_TIMEOUT_MILLIS = 5000;
+    private static volatile boolean parallelQueries = false;
+    private static volatile long staggerDelayMillis = 200;
+    private static final int DEFAULT_BATCH_CONCURRENCY = 64;
+    /** Maximum time to wait for a lookup of the same node started by another caller. */
+    private static final long COALESCE_TIMEOUT_MILLIS = 30000;
+    /** Lookups of a node from the root in progress, shared by concurrent callers. */
+    private static final SingleFlight<DNSNode> inFlight = new SingleFlight<>(COALESCE_TIMEOUT_MILLIS);
+    /** Names read at least this many times recently (at most 15) are refreshed ahead of expiry. */
+    private static final int PREFETCH_MIN_FREQUENCY = 3;
+    private static final int DEFAULT_PREFETCH_PERCENT = 10;
+    private static final int PREFETCH_THREADS = 2;
+    private static final int MAX_PENDING_PREFETCHES = 1000;
+    /** Runs the background refreshes; refreshes are dropped if too many are pending. */
+    private static final ExecutorService prefetchExecutor = newPrefetchExecutor();
+    /** Node being refreshed by the current thread, whose cached records are not an answer yet. */
+    private static final ThreadLocal<DNSNode> refreshing = new ThreadLocal<>();
+    /** Time (DNSClock) at which the current thread started refreshing its node. */
+    private static final ThreadLocal<long[]> refreshStart = ThreadLocal.withInitial(() -> new long[1]);
+    /** Current and deepest nesting of server levels queried by the current thread's lookup. */
+    private static final ThreadLocal<int[]> resolutionDepth = ThreadLocal.withInitial(() -> new int[2]);
+    public static final long DEFAULT_LOOKUP_BUDGET_MILLIS = 10000;
+    /** Maximum time spent waiting for servers during a single lookup. */
+    private static volatile long lookupBudgetMillis = DEFAULT_LOOKUP_BUDGET_MILLIS;
+    /** Time (System.nanoTime) by which the current thread's lookup must end, or NO_DEADLINE. */
+    private static final ThreadLocal<long[]> lookupDeadline =
+            ThreadLocal.withInitial(() -> new long[]{DNSQueryHandler.NO_DEADLINE});
+    private static final DNSMetrics metrics = DNSMetrics.getInstance();
+    private static volatile InetAddress rootServer;
     private static DNSCache cache = DNSCache.getInstance();
+    private static DNSServer server;
 
     /**
      * Main function, called when program is first invoked.
@@ -21,18 +58,91 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
-        if (args.length == 2 && args[1].equals("-p1")) {
-            p1Flag = true;
-        } else if (args.length != 1) {
+        String rootServerName = null;
+        long maxRecords = Long.MAX_VALUE, maxBytes = Long.MAX_VALUE;
+        Path snapshotFile = null, batchFile = null;
+        BatchLookup.Format batchFormat = BatchLookup.Format.CSV;
+        int batchConcurrency = DEFAULT_BATCH_CONCURRENCY;
+        int prefetchPercent = 0;
+        int ednsPayloadSize = DNSQueryHandler.DEFAULT_EDNS_PAYLOAD_SIZE;
+        int servePort = -1;
+        int serverPort = 53;
+        long budgetMillis = DEFAULT_LOOKUP_BUDGET_MILLIS;
+        boolean validArgs = true;
+        for (int i = 0; i < args.length && validArgs; i++) {
+            try {
+                if (args[i].equals("-p1"))
+                    p1Flag = true;
+                else if (args[i].equals("-maxrecords") && i + 1 < args.length)
+                    maxRecords = parseSize(args[++i]);
+                else if (args[i].equals("-maxbytes") && i + 1 < args.length)
+                    maxBytes = parseSize(args[++i]);
+                else if (args[i].equals("-snapshot") && i + 1 < args.length)
+                    snapshotFile = Paths.get(args[++i]);
+                else if (args[i].equals("-parallel") && i + 1 < args.length) {
+                    parallelQueries = true;
+                    staggerDelayMillis = Long.parseLong(args[++i]);
+                }
+                else if (args[i].equals("-edns") && i + 1 < args.length)
+                    ednsPayloadSize = args[++i].equalsIgnoreCase("off") ? 0 : Integer.parseInt(args[i]);
+                else if (args[i].equals("-prefetch") && i + 1 < args.length)
+                    prefetchPercent = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-budget") && i + 1 < args.length)
+                    budgetMillis = Long.parseLong(args[++i]);
+                else if (args[i].equals("-port") && i + 1 < args.length)
+                    serverPort = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-serve") && i + 1 < args.length)
+                    servePort = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-batch") && i + 1 < args.length)
+                    batchFile = Paths.get(args[++i]);
+                else if (args[i].equals("-format") && i + 1 < args.length)
+                    batchFormat = BatchLookup.Format.valueOf(args[++i].toUpperCase());
+                else if (args[i].equals("-concurrency") && i + 1 < args.length)
+                    batchConcurrency = Integer.parseInt(args[++i]);
+                else if (rootServerName == null && !args[i].startsWith("-"))
+                    rootServerName = args[i];
+                else
+                    validArgs = false;
+            } catch (IllegalArgumentException e) {
+                validArgs = false;
+            }
+        }
+
+        if (!validArgs || rootServerName == null || batchConcurrency < 1 || servePort < -1 || servePort > 65535 || prefetchPercent < 0 ||
+                prefetchPercent > 100 || serverPort < 1 || serverPort > 65535 || budgetMillis < 1 || (ednsPayloadSize != 0 && (ednsPayloadSize < 512 || ednsPayloadSize > 65535))) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [-maxrecords N] [-maxbytes N[K|M|G]] " +
+                    "[-snapshot file] [-parallel delayMillis] [-prefetch percent] [-edns size|off] [-budget millis] [-port port] [-serve port] [-batch file [-format csv|json] [-concurrency N]]");
             System.err.println("where rootServer is the IP address (in dotted form) of the root " +
-                    "DNS server to start the search at.");
+                    "DNS server to start the search at, -maxrecords and -maxbytes limit the " +
+                    "size of the cache, -snapshot loads the cache from a file at startup and " +
+                    "saves it back on exit, and -parallel queries additional nameservers of a " +
+                    "zone when the previous ones do not answer within the given delay. -prefetch " +
+                    "refreshes popular names in the background when the given percentage of " +
+                    "their TTL is left. -edns sets the UDP payload size advertised with EDNS0 " +
+                    "(1232 by default). -budget limits the time spent waiting for servers in each lookup " +
+                    "(10000 ms by default). -port sends queries to another port than 53 on every server, e.g. to " +
+                    "test against a fake DNS hierarchy. -serve answers DNS queries on the given local UDP and " +
+                    "TCP port, resolving them through the cache. -batch " +
+                    "resolves every name in a file, with at most N lookups at a time, prints " +
+                    "the results and exits.");
             System.exit(1);
         }
+        cache.setLimits(maxRecords, maxBytes);
+        try {
+            metrics.registerMBean();
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean (" + e.getMessage() + ").");
+        }
+        setPrefetch(prefetchPercent);
+        DNSQueryHandler.setEDNSPayloadSize(ednsPayloadSize);
+        DNSQueryHandler.setServerPort(serverPort);
+        lookupBudgetMillis = budgetMillis;
+        if (snapshotFile != null && Files.exists(snapshotFile))
+            loadSnapshot(snapshotFile);
 
         try {
-            rootServer = InetAddress.getByName(args[0]);
+            rootServer = InetAddress.getByName(rootServerName);
             System.out.println("Root DNS server is: " + rootServer.getHostAddress());
         } catch (UnknownHostException e) {
             System.err.println("Invalid root server (" + e.getMessage() + ").");
@@ -46,8 +156,20 @@ public class DNSLookupService {
             System.exit(1);
         }
 
+        if (servePort >= 0 && !startServer(servePort, InetAddress.getLoopbackAddress()))
+            System.exit(1);
+
+        if (batchFile != null) {
+            runBatch(batchFile, batchFormat, batchConcurrency);
+            if (snapshotFile != null)
+                saveSnapshot(snapshotFile);
+            DNSQueryHandler.closeSocket();
+            return;
+        }
+
         Scanner in = new Scanner(System.in);
         Console console = System.console();
+        boolean quit = false;
         do {
             // Use console if one is available, or standard input if not.
             String commandLine;
@@ -72,8 +194,10 @@ public class DNSLookupService {
             String[] commandArgs = commandLine.split(" ");
 
             if (commandArgs[0].equalsIgnoreCase("quit") ||
-                    commandArgs[0].equalsIgnoreCase("exit"))
+                    commandArgs[0].equalsIgnoreCase("exit")) {
+                quit = true;
                 break;
+            }
             else if (commandArgs[0].equalsIgnoreCase("server")) {
                 // SERVER: Change root nameserver
                 if (commandArgs.length == 2) {
@@ -105,6 +229,75 @@ public class DNSLookupService {
                 } else {
                     System.err.println("Invalid call. Format:\n\ttrace on|off");
                 }
+            } else if (commandArgs[0].equalsIgnoreCase("parallel")) {
+                // PARALLEL: Turn staggered parallel queries to nameservers on or off
+                if ((commandArgs.length == 2 || commandArgs.length == 3) &&
+                        (commandArgs[1].equalsIgnoreCase("on") || commandArgs[1].equalsIgnoreCase("off"))) {
+                    try {
+                        if (commandArgs.length == 3)
+                            staggerDelayMillis = Long.parseLong(commandArgs[2]);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid call. Format:\n\tparallel on|off [delayMillis]");
+                        continue;
+                    }
+                    parallelQueries = commandArgs[1].equalsIgnoreCase("on");
+                    System.out.println("Parallel queries are now: " + (parallelQueries ?
+                            "ON (stagger delay " + staggerDelayMillis + " ms)" : "OFF"));
+                } else {
+                    System.err.println("Invalid call. Format:\n\tparallel on|off [delayMillis]");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("serve")) {
+                // SERVE: Answer DNS queries on a local port, or stop doing so
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    if (server != null) server.close();
+                    server = null;
+                    System.out.println("DNS server is now: OFF");
+                } else if (commandArgs.length == 2 || commandArgs.length == 3) {
+                    try {
+                        int port = Integer.parseInt(commandArgs[1]);
+                        InetAddress address = commandArgs.length == 3
+                                ? InetAddress.getByName(commandArgs[2])
+                                : InetAddress.getLoopbackAddress();
+                        if (port < 0 || port > 65535) throw new NumberFormatException();
+                        startServer(port, address);
+                    } catch (NumberFormatException | UnknownHostException e) {
+                        System.err.println("Invalid call. Format:\n\tserve port [address]|off");
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tserve port [address]|off");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("edns")) {
+                // EDNS: Set the UDP payload size advertised in queries, or turn EDNS0 off
+                try {
+                    if (commandArgs.length != 2) throw new IllegalArgumentException();
+                    DNSQueryHandler.setEDNSPayloadSize(commandArgs[1].equalsIgnoreCase("off")
+                            ? 0 : Integer.parseInt(commandArgs[1]));
+                    int size = DNSQueryHandler.getEDNSPayloadSize();
+                    System.out.println("EDNS0 is now: " + (size == 0 ? "OFF" : "ON (payload size " + size + ")"));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Invalid call. Format:\n\tedns size|off");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("prefetch")) {
+                // PREFETCH: Turn refresh-ahead of popular names on or off
+                if ((commandArgs.length == 2 || commandArgs.length == 3) &&
+                        (commandArgs[1].equalsIgnoreCase("on") || commandArgs[1].equalsIgnoreCase("off"))) {
+                    int percent = DEFAULT_PREFETCH_PERCENT;
+                    try {
+                        if (commandArgs.length == 3)
+                            percent = Integer.parseInt(commandArgs[2]);
+                    } catch (NumberFormatException e) {
+                        percent = -1;
+                    }
+                    if (percent < 0 || percent > 100) {
+                        System.err.println("Invalid call. Format:\n\tprefetch on|off [percent]");
+                        continue;
+                    }
+                    setPrefetch(commandArgs[1].equalsIgnoreCase("on") ? percent : 0);
+                    System.out.println("Prefetch is now: " + (commandArgs[1].equalsIgnoreCase("on") ?
+                            "ON (last " + percent + "% of TTL)" : "OFF"));
+                } else {
+                    System.err.println("Invalid call. Format:\n\tprefetch on|off [percent]");
+                }
             } else if (commandArgs[0].equalsIgnoreCase("lookup") ||
                     commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
@@ -115,32 +308,333 @@ public class DNSLookupService {
                     try {
                         type = RecordType.valueOf(commandArgs[2].toUpperCase());
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME, PTR");
                         continue;
                     }
                 else {
                     System.err.println("Invalid call. Format:\n\tlookup hostName [type]");
                     continue;
                 }
-                findAndPrintResults(commandArgs[1], type);
+                String hostName = DNSReverseName.forQuery(commandArgs[1], type);
+                try {
+                    DNSQueryEncoder.checkName(hostName);
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid host name: " + ex.getMessage());
+                    continue;
+                }
+                findAndPrintResults(hostName, type);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Resolve every name in a file concurrently
+                if (commandArgs.length < 2 || commandArgs.length > 4) {
+                    System.err.println("Invalid call. Format:\n\tbatch file [csv|json] [concurrency]");
+                    continue;
+                }
+                try {
+                    BatchLookup.Format format = commandArgs.length >= 3
+                            ? BatchLookup.Format.valueOf(commandArgs[2].toUpperCase())
+                            : BatchLookup.Format.CSV;
+                    int concurrency = commandArgs.length == 4
+                            ? Integer.parseInt(commandArgs[3])
+                            : DEFAULT_BATCH_CONCURRENCY;
+                    if (concurrency < 1) throw new IllegalArgumentException();
+                    runBatch(Paths.get(commandArgs[1]), format, concurrency);
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Invalid call. Format:\n\tbatch file [csv|json] [concurrency]");
+                }
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
-                // DUMP: Print all results still cached
-                cache.forEachNode(DNSLookupService::printResults);
+                // DUMP: Print all results still cached, without holding up lookups
+                cache.scan(null, (node, records) -> {
+                    printResults(node, records);
+                    return true;
+                });
+                cache.forEachNegativeResult(negative ->
+                        System.out.printf("%-30s %-5s %-8d %s\n", negative.getNode().getHostName(),
+                                negative.getNode().getType(), negative.getTTL(), negative));
+                System.out.println("Cache: " + cache.getStats());
+            } else if (commandArgs[0].equalsIgnoreCase("servers")) {
+                // SERVERS: Print the statistics of each nameserver queried so far
+                NameServerStats.getInstance().forEachServer((server, stats) ->
+                        System.out.printf("%-30s srtt %-8.1f rttvar %-8.1f rto %-8.1f %d responses, %d timeouts%s\n",
+                                server.getHostAddress(), stats.getSRTT(), stats.getRTTVar(), stats.getRTO(),
+                                stats.getResponses(), stats.getTimeouts(), stats.isHealthy() ? "" : " (unhealthy)"));
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print the resolver metrics, or reset them
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("reset")) {
+                    metrics.reset();
+                    System.out.println("Statistics reset.");
+                } else if (commandArgs.length == 1) {
+                    System.out.println(metrics.report());
+                } else {
+                    System.err.println("Invalid call. Format:\n\tstats [reset]");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("save")) {
+                // SAVE: Write the cache to a snapshot file
+                if (commandArgs.length == 2)
+                    saveSnapshot(Paths.get(commandArgs[1]));
+                else
+                    System.err.println("Invalid call. Format:\n\tsave file");
+            } else if (commandArgs[0].equalsIgnoreCase("load")) {
+                // LOAD: Add the contents of a snapshot file to the cache
+                if (commandArgs.length == 2)
+                    loadSnapshot(Paths.get(commandArgs[1]));
+                else
+                    System.err.println("Invalid call. Format:\n\tload file");
+            } else if (commandArgs[0].equalsIgnoreCase("export")) {
+                // EXPORT: Write (a page of) the cached records to a zone or JSON Lines file
+                exportCache(commandArgs);
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
+                System.err.println("\tbatch file [csv|json] [concurrency]");
                 System.err.println("\ttrace on|off");
+                System.err.println("\tparallel on|off [delayMillis]");
+                System.err.println("\tprefetch on|off [percent]");
+                System.err.println("\tedns size|off");
+                System.err.println("\tserve port [address]|off");
                 System.err.println("\tserver IP");
                 System.err.println("\tdump");
+                System.err.println("\tservers");
+                System.err.println("\tstats [reset]");
+                System.err.println("\tsave file");
+                System.err.println("\tload file");
+                System.err.println("\texport file [zone|jsonl] [-domain name] [-type type] [-minttl seconds] [-limit N] [-after name type]");
                 System.err.println("\tquit");
             }
 
         } while (true);
 
+        // Without a prompt (e.g., input from /dev/null), keep answering queries until terminated
+        if (!quit && server != null) {
+            System.out.println("Serving DNS queries on " + server.getAddress() + " until terminated.");
+            try {
+                server.awaitClose();
+            } catch (InterruptedException ignored) {
+            }
+        }
+        if (server != null) server.close();
+
+        if (snapshotFile != null)
+            saveSnapshot(snapshotFile);
         DNSQueryHandler.closeSocket();
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Starts answering DNS queries on a local address, replacing any server already running.
+     *
+     * @param port    UDP and TCP port to listen on.
+     * @param address Local address to listen on.
+     * @return True if the server was started.
+     */
+    private static boolean startServer(int port, InetAddress address) {
+        if (server != null) server.close();
+        server = null;
+        try {
+            server = new DNSServer(new InetSocketAddress(address, port), cache, DNSLookupService::lookup);
+            System.out.println("DNS server is now: ON (" + server.getAddress() + ")");
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not start DNS server (" + e.getMessage() + ").");
+            return false;
+        }
+    }
+
+    /**
+     * Turns refresh-ahead of popular names on or off.
+     *
+     * @param percent Percentage of the TTL left when a record is refreshed, or 0 to turn it off.
+     */
+    public static void setPrefetch(int percent) {
+        if (percent > 0)
+            cache.setPrefetch(percent / 100.0, PREFETCH_MIN_FREQUENCY, DNSLookupService::prefetch);
+        else
+            cache.setPrefetch(0, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Changes the root server where lookups start when no closer nameserver is cached.
+     *
+     * @param server Address of the root server.
+     */
+    public static void setRootServer(InetAddress server) {
+        rootServer = server;
+    }
+
+    /**
+     * Changes the maximum time spent waiting for servers during a single lookup.
+     *
+     * @param budgetMillis Time budget of each lookup, in milliseconds.
+     */
+    public static void setLookupBudget(long budgetMillis) {
+        lookupBudgetMillis = budgetMillis;
+    }
+
+    /**
+     * Turns staggered parallel queries to the nameservers of a zone on or off.
+     *
+     * @param enabled     True to send the query to another nameserver whenever the previous ones
+     *                    have not answered within the stagger delay.
+     * @param delayMillis Stagger delay, in milliseconds.
+     */
+    public static void setParallelQueries(boolean enabled, long delayMillis) {
+        staggerDelayMillis = delayMillis;
+        parallelQueries = enabled;
+    }
+
+    /**
+     * Resolves a node again in the background, so its new records replace the cached ones before
+     * they expire. Called by the cache when a popular node is due for a refresh.
+     *
+     * @param node Host name and record type to be refreshed.
+     */
+    private static void prefetch(DNSNode node) {
+        prefetchExecutor.execute(() -> {
+            refreshing.set(node);
+            refreshStart.get()[0] = DNSClock.currentTimeMillis();
+            lookupDeadline.get()[0] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lookupBudgetMillis);
+            try {
+                inFlight.run(node, () -> retrieveResultsFromClosestZone(node));
+            } finally {
+                refreshing.remove();
+                lookupDeadline.get()[0] = DNSQueryHandler.NO_DEADLINE;
+            }
+        });
+    }
+
+    private static ExecutorService newPrefetchExecutor() {
+        AtomicInteger threads = new AtomicInteger();
+        return new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(MAX_PENDING_PREFETCHES), task -> {
+                    Thread thread = new Thread(task, "dns-prefetch-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Resolves every name in a file concurrently, prints the results on the standard output as
+     * they complete, and prints a summary of the run on the standard error.
+     *
+     * @param file        File with one host name and optional record type per line.
+     * @param format      Format of the results.
+     * @param concurrency Maximum number of lookups in progress at the same time.
+     */
+    private static void runBatch(Path file, BatchLookup.Format format, int concurrency) {
+        BatchLookup batch = new BatchLookup(DNSLookupService::lookup, DNSLookupService::isAnsweredLocally,
+                concurrency, format, System.out);
+        try {
+            System.err.println("Batch: " + batch.run(file));
+        } catch (IOException e) {
+            System.err.println("Could not read batch file (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Exports the cached records to a file, and prints the number of records exported and, if the
+     * export stopped at the limit, how to export the next page.
+     *
+     * @param commandArgs Arguments of the export command: file [zone|jsonl] [-domain name]
+     *                    [-type type] [-minttl seconds] [-limit N] [-after name type].
+     */
+    private static void exportCache(String[] commandArgs) {
+        String usage = "Invalid call. Format:\n\texport file [zone|jsonl] [-domain name] [-type type]" +
+                " [-minttl seconds] [-limit N] [-after name type]";
+        if (commandArgs.length < 2) {
+            System.err.println(usage);
+            return;
+        }
+        DNSCacheExport.Format format = DNSCacheExport.Format.ZONE;
+        String domain = null;
+        RecordType type = null;
+        long minTTL = 0;
+        int limit = Integer.MAX_VALUE;
+        DNSNode after = null;
+        try {
+            int i = 2;
+            if (i < commandArgs.length && !commandArgs[i].startsWith("-"))
+                format = DNSCacheExport.Format.valueOf(commandArgs[i++].toUpperCase());
+            for (; i < commandArgs.length; i++) {
+                if (commandArgs[i].equals("-domain") && i + 1 < commandArgs.length)
+                    domain = commandArgs[++i];
+                else if (commandArgs[i].equals("-type") && i + 1 < commandArgs.length)
+                    type = RecordType.valueOf(commandArgs[++i].toUpperCase());
+                else if (commandArgs[i].equals("-minttl") && i + 1 < commandArgs.length)
+                    minTTL = Long.parseLong(commandArgs[++i]);
+                else if (commandArgs[i].equals("-limit") && i + 1 < commandArgs.length)
+                    limit = Integer.parseInt(commandArgs[++i]);
+                else if (commandArgs[i].equals("-after") && i + 2 < commandArgs.length)
+                    after = new DNSNode(commandArgs[++i], RecordType.valueOf(commandArgs[++i].toUpperCase()));
+                else
+                    throw new IllegalArgumentException(commandArgs[i]);
+            }
+            if (limit <= 0) throw new IllegalArgumentException("limit");
+        } catch (IllegalArgumentException e) {
+            System.err.println(usage);
+            return;
+        }
+
+        Path file = Paths.get(commandArgs[1]);
+        try {
+            DNSCacheExport.Page page = DNSCacheExport.export(cache, file, format,
+                    new DNSCacheExport.Filter(domain, type, minTTL), after, limit);
+            System.out.printf("Exported %d records of %d names to %s\n", page.getRecords(), page.getNodes(), file);
+            if (page.getNext() != null)
+                System.out.printf("More records left; export the next page with -after %s %s\n",
+                        page.getNext().getHostName(), page.getNext().getType());
+        } catch (IOException e) {
+            System.err.println("Could not export cache (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Saves the contents of the cache to a snapshot file, and prints the number of entries saved.
+     *
+     * @param file Path of the snapshot file.
+     */
+    private static void saveSnapshot(Path file) {
+        try {
+            DNSCacheSnapshot.Summary summary = DNSCacheSnapshot.save(cache, file);
+            System.out.printf("Saved %d records and %d negative results to %s\n",
+                    summary.getRecords(), summary.getNegativeResults(), file);
+        } catch (IOException e) {
+            System.err.println("Could not save cache snapshot (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Loads the contents of a snapshot file into the cache, and prints the number of entries loaded.
+     *
+     * @param file Path of the snapshot file.
+     */
+    private static void loadSnapshot(Path file) {
+        try {
+            DNSCacheSnapshot.Summary summary = DNSCacheSnapshot.load(cache, file);
+            System.out.printf("Loaded %d records and %d negative results from %s (%d expired)\n",
+                    summary.getRecords(), summary.getNegativeResults(), file, summary.getExpired());
+        } catch (IOException e) {
+            System.err.println("Could not load cache snapshot (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Parses a size given on the command line, optionally followed by a K, M or G multiplier.
+     *
+     * @param value Size to be parsed, e.g. 10000 or 64M.
+     * @return The parsed size.
+     * @throws NumberFormatException if the value is not a valid positive size.
+     */
+    private static long parseSize(String value) {
+        long multiplier = 1;
+        switch (Character.toUpperCase(value.charAt(value.length() - 1))) {
+            case 'K': multiplier = 1L << 10; break;
+            case 'M': multiplier = 1L << 20; break;
+            case 'G': multiplier = 1L << 30; break;
+        }
+        long size = Long.parseLong(multiplier == 1 ? value : value.substring(0, value.length() - 1)) * multiplier;
+        if (size <= 0) throw new NumberFormatException("Size must be positive: " + value);
+        return size;
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
@@ -149,7 +643,40 @@ public class DNSLookupService {
      */
     private static void findAndPrintResults(String hostName, RecordType type) {
         DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+        printResults(node, lookup(node));
+    }
+
+    /**
+     * Finds all the results for a node, recording the latency and referral depth of the lookup.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A set of resource records corresponding to the specific query requested.
+     */
+    public static Set<ResourceRecord> lookup(DNSNode node) {
+        int[] depth = resolutionDepth.get();
+        depth[1] = 0;
+        long start = System.nanoTime();
+        long[] deadline = lookupDeadline.get();
+        deadline[0] = start + TimeUnit.MILLISECONDS.toNanos(lookupBudgetMillis);
+        try {
+            Set<ResourceRecord> results = getResults(node, 0);
+            metrics.recordLookup(System.nanoTime() - start, depth[1]);
+            return results;
+        } finally {
+            deadline[0] = DNSQueryHandler.NO_DEADLINE;
+        }
+    }
+
+    /**
+     * Returns the time left before the deadline of the current thread's lookup.
+     *
+     * @return Remaining time in milliseconds (possibly zero or negative), or Long.MAX_VALUE if the
+     *         thread is not running a lookup with a time budget.
+     */
+    private static long remainingBudgetMillis() {
+        long deadline = lookupDeadline.get()[0];
+        return deadline == DNSQueryHandler.NO_DEADLINE ? Long.MAX_VALUE
+                : TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
     }
 
     /**
@@ -174,13 +701,35 @@ public class DNSLookupService {
         }
         
         // TODO (PART 1/2): Implement this
-        if(!cache.getCachedResults(node).isEmpty()) return cache.getCachedResults(node);
+        if(!cache.getCachedResults(node).isEmpty()) {
+            recordCacheLookup(node, true);
+            return cache.getCachedResults(node);
+        }
+
+        // The node is known not to exist (or to have no record of this type)
+        if (cache.getNegativeResult(node) != null) {
+            recordCacheLookup(node, true);
+            return Collections.emptySet();
+        }
+
+        // A reverse lookup of an address already resolved forward needs no query
+        if (node.getType() == RecordType.PTR) {
+            Set<ResourceRecord> reverse = reverseFromForwardRecords(node);
+            if (!reverse.isEmpty()) {
+                recordCacheLookup(node, true);
+                return reverse;
+            }
+        }
 
         // Find the corresponding cnames.
         Set<ResourceRecord> res = new HashSet<>(cnameCheck(node));
+        recordCacheLookup(node, !res.isEmpty());
 
         if(res.isEmpty()){
-            retrieveResultsFromServer(node, rootServer);
+            // Concurrent lookups of the same node (including nameserver addresses) share a single walk
+            inFlight.run(node, () -> {
+                if (!isAnswered(node)) retrieveResultsFromClosestZone(node);
+            });
         }else{
             return res;
         }
@@ -210,6 +759,52 @@ public class DNSLookupService {
         return res;
     }
 
+    /**
+     * Answers a reverse (PTR) lookup from the address records of the cache: each name with a
+     * cached record for the address becomes a PTR record, cached until that record expires.
+     *
+     * @param node Reverse name (in-addr.arpa or ip6.arpa) and PTR type.
+     * @return The PTR records, or an empty set if no cached name resolves to the address.
+     */
+    private static Set<ResourceRecord> reverseFromForwardRecords(DNSNode node) {
+        InetAddress address = DNSReverseName.toAddress(node.getHostName());
+        if (address == null) return Collections.emptySet();
+        for (ResourceRecord forward : cache.getRecordsForAddress(address))
+            cache.addResult(ResourceRecord.expiringAt(node, forward.getExpirationTime(), forward.getHostName(), null));
+        return cache.getCachedResults(node);
+    }
+
+    /**
+     * Checks if a lookup can be answered without querying any server: from the cache, or for a
+     * reverse lookup, from the cached address records.
+     *
+     * @param node Host name and record type of the query.
+     * @return True if the lookup would be answered locally.
+     */
+    private static boolean isAnsweredLocally(DNSNode node) {
+        if (isAnswered(node)) return true;
+        if (node.getType() != RecordType.PTR) return false;
+        InetAddress address = DNSReverseName.toAddress(node.getHostName());
+        return address != null && !cache.getRecordsForAddress(address).isEmpty();
+    }
+
+    /**
+     * Records whether a lookup was answered from the cache, in the metrics and as a JFR event.
+     *
+     * @param node Host name and record type of the lookup.
+     * @param hit  True if the lookup was answered from the cache.
+     */
+    private static void recordCacheLookup(DNSNode node, boolean hit) {
+        metrics.recordCacheLookup(node.getType(), hit);
+        DNSEvents.CacheLookup event = new DNSEvents.CacheLookup();
+        if (event.shouldCommit()) {
+            event.name = node.getHostName();
+            event.type = node.getType().name();
+            event.hit = hit;
+            event.commit();
+        }
+    }
+
     /**
      * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
      * and the query is repeated with a new server if the provided one is non-authoritative.
@@ -219,21 +814,172 @@ public class DNSLookupService {
      * @param server Address of the server to be used for the query.
      */
     public static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
-        byte[] message = new byte[512]; // query is no longer than 512 bytes
+        retrieveResultsFromServers(node, Collections.singletonList(server));
+    }
+
+    /**
+     * Retrieves DNS results starting at the deepest zone cut of the name whose nameservers and
+     * their addresses are cached, instead of at the root server. If those nameservers give no
+     * answer (e.g., they are unreachable or no longer serve the zone), resolution starts over
+     * from the root server. Results are stored in the cache.
+     *
+     * @param node Host name and record type to be used for the query.
+     */
+    private static void retrieveResultsFromClosestZone(DNSNode node) {
+        List<InetAddress> servers = closestNameservers(node.getHostName());
+        if (!servers.isEmpty()) {
+            retrieveResultsFromServers(node, servers);
+            if (isAnswered(node)) return;
+        }
+        retrieveResultsFromServer(node, rootServer);
+    }
+
+    /**
+     * Finds the nameservers of the closest enclosing zone of a name (including the name itself)
+     * that are cached along with their addresses.
+     *
+     * @param hostName Host name being resolved.
+     * @return Addresses of the nameservers of the deepest cached zone cut, or an empty list if
+     *         no delegation is cached for any of the enclosing zones.
+     */
+    private static List<InetAddress> closestNameservers(String hostName) {
+        String zone = hostName;
+        while (!zone.isEmpty()) {
+            List<InetAddress> addresses = new ArrayList<>();
+            for (ResourceRecord ns : cache.getCachedResults(new DNSNode(zone, RecordType.NS)))
+                for (ResourceRecord glue : cache.getCachedResults(new DNSNode(ns.getTextResult(), RecordType.A)))
+                    addresses.add(glue.getInetResult());
+            if (!addresses.isEmpty()) return addresses;
 
+            int dot = zone.indexOf('.');
+            zone = dot < 0 ? "" : zone.substring(dot + 1);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Retrieves DNS results from one of a list of equivalent servers (e.g., the nameservers of a
+     * zone). Servers are ranked by their statistics (NameServerStats), so the fastest healthy
+     * server is tried first. Servers are tried in order until one of them answers; in parallel mode, the query is
+     * sent to an additional server every time the previous ones take longer than the stagger
+     * delay to answer, and the first answer received is used. The query is then repeated with
+     * the next level of servers if needed. Results are stored in the cache.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Addresses of the servers that may be used for the query.
+     */
+    private static void retrieveResultsFromServers(DNSNode node, List<InetAddress> servers) {
+        if (servers.size() > 1)
+            servers = NameServerStats.getInstance().order(servers);
+        int[] depth = resolutionDepth.get();
+        depth[1] = Math.max(depth[1], ++depth[0]);
         try {
-            DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node);
+            DNSServerResponse serverResponse = parallelQueries && servers.size() > 1
+                    ? queryInParallel(node, servers)
+                    : queryInSequence(node, servers);
+            if (serverResponse == null || serverResponse.isTimeout()) return;
 
             Set<ResourceRecord> nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
                     serverResponse.getResponse(),
                     cache);
-            if (nameservers == null) nameservers = Collections.emptySet();
+            // The nameservers of an authoritative answer are those just queried, not a referral
+            if (nameservers == null || DNSQueryHandler.isAuthoritativeAnswer(serverResponse.getResponse()))
+                nameservers = Collections.emptySet();
 
             if (p1Flag) return; // For testing part 1 only
 
             queryNextLevel(node, nameservers);
 
-        } catch (IOException | NullPointerException ignored){}
+        } catch (IOException | NullPointerException ignored){
+        } finally {
+            depth[0]--;
+        }
+    }
+
+    /**
+     * Sends a query to each server in turn, until one of them returns a usable response or the
+     * time budget of the lookup runs out.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Addresses of the servers that may be used for the query.
+     * @return The first usable response, the last result (response or timeout) if none is usable,
+     *         or null if no server was queried.
+     * @throws IOException if an IO Exception occurs
+     */
+    private static DNSServerResponse queryInSequence(DNSNode node, List<InetAddress> servers) throws IOException {
+        byte[] message = new byte[512]; // query (with its OPT record) is no longer than 512 bytes
+        DNSServerResponse serverResponse = null;
+        long deadline = lookupDeadline.get()[0];
+        for (InetAddress server : servers) {
+            if (remainingBudgetMillis() <= 0) break;
+            serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node, deadline);
+            if (DNSQueryHandler.isUsableResponse(serverResponse)) break;
+        }
+        return serverResponse;
+    }
+
+    /**
+     * Sends a query to the first server, then to each following server whenever no usable response
+     * was received within the stagger delay, and returns the first usable response. Queries still
+     * pending when a response is accepted are cancelled. If no server answers at all, a timeout is
+     * recorded for each of them.
+     *
+     * @param node    Host name and record type to be used for the query.
+     * @param servers Addresses of the servers that may be used for the query.
+     * @return The first usable response, or null if no server answered in time.
+     */
+    private static DNSServerResponse queryInParallel(DNSNode node, List<InetAddress> servers) {
+        CompletableFuture<DNSServerResponse> firstResponse = new CompletableFuture<>();
+        List<CompletableFuture<DNSServerResponse>> queries = new ArrayList<>();
+        List<InetAddress> queried = new ArrayList<>();
+        try {
+            for (InetAddress server : servers) {
+                try {
+                    CompletableFuture<DNSServerResponse> query = DNSQueryHandler.sendQuery(server, node);
+                    queries.add(query);
+                    queried.add(server);
+                    query.thenAccept(response -> {
+                        if (DNSQueryHandler.isUsableResponse(response)) firstResponse.complete(response);
+                    });
+                } catch (IOException e) {
+                    continue; // Try the next server right away
+                }
+                DNSServerResponse response = awaitResponse(firstResponse,
+                        Math.min(staggerDelayMillis, remainingBudgetMillis()));
+                if (response != null) return response;
+            }
+            DNSServerResponse response = awaitResponse(firstResponse,
+                    Math.min(PARALLEL_TIMEOUT_MILLIS, remainingBudgetMillis()));
+            if (response == null) {
+                for (int i = 0; i < queries.size(); i++) {
+                    if (!queries.get(i).isDone()) {
+                        NameServerStats.getInstance().recordTimeout(queried.get(i));
+                        metrics.recordTimeout();
+                    }
+                }
+            }
+            return response;
+        } finally {
+            queries.forEach(query -> query.cancel(false));
+        }
+    }
+
+    /**
+     * Waits for a response for a limited amount of time.
+     *
+     * @param response      Future completed with the response.
+     * @param timeoutMillis Maximum time to wait, in milliseconds.
+     * @return The response, or null if it was not received in time.
+     */
+    private static DNSServerResponse awaitResponse(CompletableFuture<DNSServerResponse> response, long timeoutMillis) {
+        try {
+            return response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
     }
 
     /**
@@ -243,21 +989,26 @@ public class DNSLookupService {
      * @param nameservers List of name servers returned from the previous level to query the next level.
      */
     private static void queryNextLevel(DNSNode node, Set<ResourceRecord> nameservers) {
-        // TODO (PART 2): Implement this
-        if (!cache.getCachedResults(node).isEmpty()) return;
+        if (hasAnswer(node)) return;
+        if (cache.getNegativeResult(node) != null) return;
 
         // Find answers by CNAME
         Set<ResourceRecord> ans = cnameCheck(node);
         if(!ans.isEmpty()) {
+            DNSNode alias = cache.getNode(node);
             for(ResourceRecord rr: ans) {
-                cache.addResult(new ResourceRecord(node.getHostName(), rr.getType(), rr.getTTL(), rr.getInetResult()));
+                cache.addResult(rr.withNode(alias));
             }
             return;
         }
-        Set<String> unvisited = new HashSet<>();
-        // Go through all name servers
+        List<InetAddress> addresses = new ArrayList<>();
+        Set<String> unvisited = new LinkedHashSet<>();
+        String zone = null;
+        int glue = 0;
+        // Go through all name servers, collecting the addresses of those with additional information
         for (ResourceRecord resourceRecord: nameservers) {
             if (resourceRecord.getType() != RecordType.NS) continue;
+            zone = resourceRecord.getHostName();
             String nsName = resourceRecord.getTextResult();
             Set<ResourceRecord> nsRecords = cache.getCachedResults(new DNSNode(nsName, RecordType.A));
             // Add the name server to unvisited if there's no corresponding additional information
@@ -265,15 +1016,37 @@ public class DNSLookupService {
                 unvisited.add(nsName);
                 continue;
             }
-            doQuery(node, nsRecords);
-            return;
+            glue++;
+            for (ResourceRecord nsRecord : nsRecords)
+                addresses.add(nsRecord.getInetResult());
         }
-        
-        for(String cand: unvisited) {
-            // Find the ipv4 address of the unvisited name server
-            Set<ResourceRecord> nsRecords = getResults(new DNSNode(cand, RecordType.A), 1);
-            if (nsRecords.isEmpty()) continue;
-            if (doQuery(node, nsRecords)) return;
+        if (zone == null) return;
+
+        DNSEvents.Referral event = new DNSEvents.Referral();
+        event.begin();
+        try {
+            if (!addresses.isEmpty()) {
+                retrieveResultsFromServers(node, addresses);
+                if (isAnswered(node)) return;
+            }
+
+            for(String cand: unvisited) {
+                // Find the ipv4 address of the unvisited name server
+                Set<ResourceRecord> nsRecords = getResults(new DNSNode(cand, RecordType.A), 1);
+                if (nsRecords.isEmpty()) continue;
+                if (doQuery(node, nsRecords)) return;
+            }
+        } finally {
+            if (event.shouldCommit()) {
+                event.name = node.getHostName();
+                event.type = node.getType().name();
+                event.zone = zone;
+                event.nameservers = glue + unvisited.size();
+                event.glue = glue;
+                event.depth = resolutionDepth.get()[0];
+                event.answered = isAnswered(node);
+                event.commit();
+            }
         }
     }
     
@@ -290,7 +1063,16 @@ public class DNSLookupService {
         Set<ResourceRecord> cnames = cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.CNAME));
         if (cnames.isEmpty()) return Collections.emptySet();
         for(ResourceRecord cname: cnames) {
+            DNSEvents.CNAME event = new DNSEvents.CNAME();
+            event.begin();
             Set<ResourceRecord> ans = getResults(new DNSNode(cname.getTextResult(), node.getType()), 1);
+            if (event.shouldCommit()) {
+                event.name = node.getHostName();
+                event.type = node.getType().name();
+                event.target = cname.getTextResult();
+                event.answered = !ans.isEmpty();
+                event.commit();
+            }
             if (!ans.isEmpty()) return ans;
         }
         return Collections.emptySet();
@@ -307,11 +1089,34 @@ public class DNSLookupService {
      * @return True or False.
      */
     private static boolean doQuery(DNSNode node, Set<ResourceRecord> nsRecords) {
-        ResourceRecord ns;
-        ns = nsRecords.stream().findFirst().orElse(null);
-        retrieveResultsFromServer(node, ns.getInetResult());
-        if (!cache.getCachedResults(node).isEmpty()) return true;
-        return false;
+        List<InetAddress> addresses = new ArrayList<>();
+        for (ResourceRecord ns : nsRecords)
+            addresses.add(ns.getInetResult());
+        retrieveResultsFromServers(node, addresses);
+        return isAnswered(node);
+    }
+
+    /**
+     * Checks if the cache has a final result for a query, either records or a negative result.
+     *
+     * @param node Host name and record type of the query.
+     * @return True if no further query is needed for the node.
+     */
+    private static boolean isAnswered(DNSNode node) {
+        return hasAnswer(node) || cache.getNegativeResult(node) != null;
+    }
+
+    /**
+     * Checks if the cache has records for a query. While a node is refreshed ahead of expiry, its
+     * cached records only count as an answer once records were added or replaced since the refresh
+     * started, whether or not they differ from the old ones.
+     *
+     * @param node Host name and record type of the query.
+     * @return True if records are cached for the node.
+     */
+    private static boolean hasAnswer(DNSNode node) {
+        if (cache.getCachedResults(node).isEmpty()) return false;
+        return !node.equals(refreshing.get()) || cache.getWriteTime(node) >= refreshStart.get()[0];
     }
 
     /**
@@ -320,7 +1125,7 @@ public class DNSLookupService {
      * @param node    Host name and record type used for the query.
      * @param results Set of results to be printed for the node.
      */
-    private static void printResults(DNSNode node, Set<ResourceRecord> results) {
+    private static void printResults(DNSNode node, Collection<ResourceRecord> results) {
         if (results.isEmpty())
             System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
                     node.getType(), -1, "0.0.0.0");
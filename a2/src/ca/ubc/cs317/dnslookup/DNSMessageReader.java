@@ -0,0 +1,228 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+
+/** Flyweight reader of DNS messages. The reader does not copy or parse the message up front; it
+ * reads header fields and records in place from the buffer, using absolute positions, as they are
+ * requested. Domain names are only decoded into strings when asked for, and compression pointers
+ * are followed directly in the buffer, so no table of previously seen names is needed.
+ *
+ * A reader may be reused for any number of messages by calling wrap, but must not be shared by
+ * threads. Malformed messages cause an IllegalArgumentException or an IndexOutOfBoundsException.
+ */
+public class DNSMessageReader {
+
+    public static final int ANSWER = 0;
+    public static final int AUTHORITY = 1;
+    public static final int ADDITIONAL = 2;
+
+    private static final int HEADER_SIZE = 12;
+    /** Maximum number of compression pointers followed in a single name, to stop loops. */
+    private static final int MAX_POINTERS = 64;
+
+    private final StringBuilder nameBuilder = new StringBuilder(64);
+    private ByteBuffer buffer;
+    private int position;
+    private int questionEnd;
+
+    private int recordNameOffset;
+    private int recordType;
+    private int recordClass;
+    private long recordTTL;
+    private int rdataOffset;
+    private int rdataLength;
+
+    /** Starts reading a new message. The position of the buffer is ignored (the message is assumed
+     * to start at index 0) and left unchanged.
+     *
+     * @param buffer Buffer containing the message, up to its limit.
+     * @return This reader, positioned at the first record after the question section.
+     */
+    public DNSMessageReader wrap(ByteBuffer buffer) {
+        if (buffer.limit() < HEADER_SIZE)
+            throw new IllegalArgumentException("Message is shorter than a DNS header");
+        this.buffer = buffer;
+        this.position = HEADER_SIZE;
+        for (int i = 0; i < getQuestionCount(); i++)
+            position = skipName(position) + 4;
+        questionEnd = position;
+        return this;
+    }
+
+    public int getTransactionID() {
+        return buffer.getShort(0) & 0xFFFF;
+    }
+
+    public int getFlags() {
+        return buffer.getShort(2) & 0xFFFF;
+    }
+
+    public boolean isResponse() {
+        return (getFlags() & 0x8000) != 0;
+    }
+
+    public boolean isAuthoritative() {
+        return (getFlags() & 0x0400) != 0;
+    }
+
+    public boolean isTruncated() {
+        return (getFlags() & 0x0200) != 0;
+    }
+
+    public int getResponseCode() {
+        return getFlags() & 0x000F;
+    }
+
+    public int getQuestionCount() {
+        return buffer.getShort(4) & 0xFFFF;
+    }
+
+    /** Returns the number of records in a section of the message.
+     *
+     * @param section ANSWER, AUTHORITY or ADDITIONAL.
+     * @return Number of records in the section.
+     */
+    public int getCount(int section) {
+        return buffer.getShort(6 + 2 * section) & 0xFFFF;
+    }
+
+    /** Returns the host name of the first question of the message, or null if there is none. */
+    public String getQuestionName() {
+        return getQuestionCount() == 0 ? null : readName(HEADER_SIZE);
+    }
+
+    /** Returns the record type code of the first question of the message, or 0 if there is none. */
+    public int getQuestionType() {
+        return getQuestionCount() == 0 ? 0 : readUnsignedShort(skipName(HEADER_SIZE));
+    }
+
+    /** Returns the record class code of the first question of the message, or 0 if there is none. */
+    public int getQuestionClass() {
+        return getQuestionCount() == 0 ? 0 : readUnsignedShort(skipName(HEADER_SIZE) + 2);
+    }
+
+    /** Returns the offset just after the question section, i.e., of the first record. */
+    public int getQuestionEnd() {
+        return questionEnd;
+    }
+
+    /** Moves to the next resource record of the message. Records of the answer, authority and
+     * additional sections are read in sequence, in the order they appear in the message.
+     *
+     * @throws IndexOutOfBoundsException if the message is truncated.
+     */
+    public void nextRecord() {
+        recordNameOffset = position;
+        int offset = skipName(position);
+        recordType = readUnsignedShort(offset);
+        recordClass = readUnsignedShort(offset + 2);
+        recordTTL = readUnsignedInt(offset + 4);
+        rdataLength = readUnsignedShort(offset + 8);
+        rdataOffset = offset + 10;
+        position = rdataOffset + rdataLength;
+        if (position > buffer.limit())
+            throw new IndexOutOfBoundsException("Record data extends past the end of the message");
+    }
+
+    /** Decodes the owner name of the current record. */
+    public String getRecordName() {
+        return readName(recordNameOffset);
+    }
+
+    public int getRecordNameOffset() {
+        return recordNameOffset;
+    }
+
+    public int getRecordType() {
+        return recordType;
+    }
+
+    public int getRecordClass() {
+        return recordClass;
+    }
+
+    public long getRecordTTL() {
+        return recordTTL;
+    }
+
+    public int getRDataOffset() {
+        return rdataOffset;
+    }
+
+    public int getRDataLength() {
+        return rdataLength;
+    }
+
+    /** Returns the position just after the last record read. */
+    public int getPosition() {
+        return position;
+    }
+
+    /** Decodes the domain name starting at a given offset, following compression pointers.
+     *
+     * @param offset Offset of the name in the message.
+     * @return The name, with labels separated by dots, and no trailing dot.
+     */
+    public String readName(int offset) {
+        nameBuilder.setLength(0);
+        int pointers = 0;
+        while (true) {
+            int length = buffer.get(offset) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                if (++pointers > MAX_POINTERS)
+                    throw new IllegalArgumentException("Too many compression pointers in name");
+                offset = readUnsignedShort(offset) & 0x3FFF;
+                continue;
+            }
+            if (length == 0)
+                break;
+            if (nameBuilder.length() > 0)
+                nameBuilder.append('.');
+            for (int i = 1; i <= length; i++)
+                nameBuilder.append((char) (buffer.get(offset + i) & 0xFF));
+            offset += length + 1;
+        }
+        return nameBuilder.toString();
+    }
+
+    /** Returns the offset just after the domain name starting at a given offset, without
+     * decoding it.
+     *
+     * @param offset Offset of the name in the message.
+     * @return Offset of the first byte after the name.
+     */
+    public int skipName(int offset) {
+        while (true) {
+            int length = buffer.get(offset) & 0xFF;
+            if ((length & 0xC0) == 0xC0)
+                return offset + 2;
+            if (length == 0)
+                return offset + 1;
+            offset += length + 1;
+        }
+    }
+
+    /** Decodes an SOA record into its textual (zone file) representation.
+     *
+     * @param offset Offset of the record data in the message.
+     * @return MNAME RNAME SERIAL REFRESH RETRY EXPIRE MINIMUM
+     */
+    public String readSOA(int offset) {
+        String mname = readName(offset);
+        offset = skipName(offset);
+        String rname = readName(offset);
+        offset = skipName(offset);
+        StringBuilder text = new StringBuilder(mname).append(' ').append(rname);
+        for (int i = 0; i < 5; i++)
+            text.append(' ').append(readUnsignedInt(offset + 4 * i));
+        return text.toString();
+    }
+
+    public int readUnsignedShort(int offset) {
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+
+    public long readUnsignedInt(int offset) {
+        return buffer.getInt(offset) & 0x00000000ffffffffL;
+    }
+}
@@ -0,0 +1,264 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/** Counters and latency histograms of the resolver: cache hits and misses per record type,
+ * queries sent to each upstream server, retries, timeouts and TCP fallbacks, the depth of
+ * referrals followed by each lookup, and the end-to-end latency of lookups and of upstream
+ * queries. Every metric is updated with striped counters (LongAdder) or lock-free histograms, so
+ * recording is cheap enough to be always on. The metrics are printed by the stats command and
+ * exposed through JMX (see DNSMetricsMBean).
+ */
+public class DNSMetrics implements DNSMetricsMBean {
+
+    public static final String OBJECT_NAME = "ca.ubc.cs317.dnslookup:type=DNSMetrics";
+
+    private static DNSMetrics instance = new DNSMetrics();
+
+    private final LongAdder[] cacheHits = newCounters(RecordType.values().length);
+    private final LongAdder[] cacheMisses = newCounters(RecordType.values().length);
+    private final Map<InetAddress, LongAdder> upstreamQueries = new ConcurrentHashMap<>();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder tcpFallbacks = new LongAdder();
+    /** Latencies in microseconds. */
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private final LatencyHistogram upstreamRTT = new LatencyHistogram();
+    private final LatencyHistogram referralDepth = new LatencyHistogram();
+
+    /** Returns the single set of resolver metrics. */
+    public static DNSMetrics getInstance() {
+        return instance;
+    }
+
+    /** Registers the metrics with the platform MBean server, if not registered yet.
+     *
+     * @throws JMException if the MBean could not be registered.
+     */
+    public void registerMBean() throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    }
+
+    /** Records a read of the cache for a query, and whether the query was answered by the cache. */
+    public void recordCacheLookup(RecordType type, boolean hit) {
+        (hit ? cacheHits : cacheMisses)[type.ordinal()].increment();
+    }
+
+    /** Records a query (or retransmission) sent to an upstream server. */
+    public void recordUpstreamQuery(InetAddress server) {
+        upstreamQueries.computeIfAbsent(server, address -> new LongAdder()).increment();
+    }
+
+    /** Records the time between sending a query and receiving its response, in nanoseconds. */
+    public void recordUpstreamRTT(long nanos) {
+        upstreamRTT.record(nanos / 1000);
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    public void recordTimeout() {
+        timeouts.increment();
+    }
+
+    public void recordTCPFallback() {
+        tcpFallbacks.increment();
+    }
+
+    /** Records a complete lookup.
+     *
+     * @param nanos Time taken by the lookup, in nanoseconds.
+     * @param depth Number of nested levels of servers queried, or 0 if answered from the cache.
+     */
+    public void recordLookup(long nanos, int depth) {
+        lookupLatency.record(nanos / 1000);
+        referralDepth.record(depth);
+    }
+
+    @Override
+    public long getLookupCount() {
+        return lookupLatency.getCount();
+    }
+
+    @Override
+    public double getLookupLatencyMeanMillis() {
+        return lookupLatency.getMean() / 1e3;
+    }
+
+    @Override
+    public double getLookupLatencyP50Millis() {
+        return lookupLatency.getValueAtPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getLookupLatencyP95Millis() {
+        return lookupLatency.getValueAtPercentile(95) / 1e3;
+    }
+
+    @Override
+    public double getLookupLatencyP99Millis() {
+        return lookupLatency.getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getLookupLatencyMaxMillis() {
+        return lookupLatency.getMax() / 1e3;
+    }
+
+    @Override
+    public double getReferralDepthMean() {
+        return referralDepth.getMean();
+    }
+
+    @Override
+    public long getReferralDepthMax() {
+        return referralDepth.getMax();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return sum(cacheHits);
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return sum(cacheMisses);
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = getCacheHits(), total = hits + getCacheMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String[] getCacheHitsByType() {
+        RecordType[] types = RecordType.values();
+        String[] result = new String[types.length];
+        for (RecordType type : types)
+            result[type.ordinal()] = type + " " + cacheHits[type.ordinal()].sum() + " " + cacheMisses[type.ordinal()].sum();
+        return result;
+    }
+
+    @Override
+    public long getUpstreamQueries() {
+        long total = 0;
+        for (LongAdder count : upstreamQueries.values())
+            total += count.sum();
+        return total;
+    }
+
+    @Override
+    public String[] getUpstreamQueriesByServer() {
+        return sortedUpstreamQueries().entrySet().stream()
+                .map(entry -> entry.getKey() + " " + entry.getValue())
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getTCPFallbacks() {
+        return tcpFallbacks.sum();
+    }
+
+    @Override
+    public double getUpstreamRTTP50Millis() {
+        return upstreamRTT.getValueAtPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getUpstreamRTTP99Millis() {
+        return upstreamRTT.getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public long getCachedRecords() {
+        return DNSCache.getInstance().getStats().getRecords();
+    }
+
+    @Override
+    public long getCachedBytes() {
+        return DNSCache.getInstance().getStats().getBytes();
+    }
+
+    @Override
+    public long getEvictions() {
+        return DNSCache.getInstance().getStats().getEvictionCount();
+    }
+
+    @Override
+    public String report() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("Lookups: %d, latency mean %.2f ms, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                getLookupCount(), getLookupLatencyMeanMillis(), getLookupLatencyP50Millis(),
+                getLookupLatencyP95Millis(), getLookupLatencyP99Millis(), getLookupLatencyMaxMillis()));
+        text.append(String.format("Referral depth: mean %.2f, max %d%n", getReferralDepthMean(), getReferralDepthMax()));
+        text.append(String.format("Cache reads: %d hits, %d misses (hit ratio %.1f%%)%n",
+                getCacheHits(), getCacheMisses(), 100 * getCacheHitRatio()));
+        for (RecordType type : RecordType.values()) {
+            long hits = cacheHits[type.ordinal()].sum(), misses = cacheMisses[type.ordinal()].sum();
+            if (hits + misses > 0)
+                text.append(String.format("  %-5s %d hits, %d misses%n", type, hits, misses));
+        }
+        text.append(String.format("Upstream queries: %d (%d retries, %d timeouts, %d TCP fallbacks), " +
+                        "RTT p50 %.2f ms, p99 %.2f ms%n",
+                getUpstreamQueries(), getRetries(), getTimeouts(), getTCPFallbacks(),
+                getUpstreamRTTP50Millis(), getUpstreamRTTP99Millis()));
+        sortedUpstreamQueries().forEach((server, count) -> text.append(String.format("  %-30s %d%n", server, count)));
+        text.append("Cache: ").append(DNSCache.getInstance().getStats());
+        return text.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder counter : cacheHits) counter.reset();
+        for (LongAdder counter : cacheMisses) counter.reset();
+        upstreamQueries.clear();
+        retries.reset();
+        timeouts.reset();
+        tcpFallbacks.reset();
+        lookupLatency.reset();
+        upstreamRTT.reset();
+        referralDepth.reset();
+    }
+
+    private Map<String, Long> sortedUpstreamQueries() {
+        Map<String, Long> sorted = new TreeMap<>();
+        upstreamQueries.forEach((server, count) -> sorted.put(server.getHostAddress(), count.sum()));
+        return sorted;
+    }
+
+    private static LongAdder[] newCounters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+            counters[i] = new LongAdder();
+        return counters;
+    }
+
+    private static long sum(LongAdder[] counters) {
+        long total = 0;
+        for (LongAdder counter : counters)
+            total += counter.sum();
+        return total;
+    }
+}
@@ -0,0 +1,59 @@
+package ca.ubc.cs317.dnslookup;
+
+/** Management interface of the resolver metrics, registered with the platform MBean server as
+ * ca.ubc.cs317.dnslookup:type=DNSMetrics. Latencies are in milliseconds.
+ */
+public interface DNSMetricsMBean {
+
+    long getLookupCount();
+
+    double getLookupLatencyMeanMillis();
+
+    double getLookupLatencyP50Millis();
+
+    double getLookupLatencyP95Millis();
+
+    double getLookupLatencyP99Millis();
+
+    double getLookupLatencyMaxMillis();
+
+    double getReferralDepthMean();
+
+    long getReferralDepthMax();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    /** Cache hits and misses of each record type, one "TYPE hits misses" entry per type. */
+    String[] getCacheHitsByType();
+
+    long getUpstreamQueries();
+
+    /** Queries sent to each upstream server, one "address queries" entry per server. */
+    String[] getUpstreamQueriesByServer();
+
+    long getRetries();
+
+    long getTimeouts();
+
+    long getTCPFallbacks();
+
+    double getUpstreamRTTP50Millis();
+
+    double getUpstreamRTTP99Millis();
+
+    long getCachedRecords();
+
+    long getCachedBytes();
+
+    long getEvictions();
+
+    /** Returns every metric as text, as printed by the stats command. */
+    String report();
+
+    /** Resets every counter and histogram to zero. */
+    void reset();
+}
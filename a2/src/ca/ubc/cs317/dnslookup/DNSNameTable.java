@@ -0,0 +1,78 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/** Table of canonical host names. DNS names are case-insensitive, and may be written with or
+ * without a trailing dot, so "WWW.UBC.CA." and "www.ubc.ca" are the same name. This table
+ * converts each name to a canonical form (lower case, no trailing dot) and returns a single
+ * shared String instance for each distinct canonical name, so that names can be compared by
+ * identity and duplicate copies are not kept in memory.
+ *
+ * Names are only weakly referenced by the table, so names no longer used anywhere else (e.g.,
+ * after being evicted from the cache) are reclaimed by the garbage collector. The table is split
+ * into independently locked stripes to limit contention between threads.
+ */
+public class DNSNameTable {
+
+    private static final int STRIPES = 64;
+
+    private static final Map<String, WeakReference<String>>[] stripes = newStripes();
+
+    private DNSNameTable() {
+    }
+
+    private static Map<String, WeakReference<String>>[] newStripes() {
+        @SuppressWarnings("unchecked")
+        Map<String, WeakReference<String>>[] stripes = (Map<String, WeakReference<String>>[]) new Map<?, ?>[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new WeakHashMap<>();
+        return stripes;
+    }
+
+    /** Returns the canonical instance of a host name. Two names that only differ in the case of
+     * their letters or in a trailing dot always return the same instance.
+     *
+     * @param hostName Host name, in any case, with or without a trailing dot.
+     * @return The shared, canonical form of the host name.
+     */
+    public static String canonicalize(String hostName) {
+        String name = normalize(hostName);
+        int hash = name.hashCode();
+        Map<String, WeakReference<String>> stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        synchronized (stripe) {
+            WeakReference<String> reference = stripe.get(name);
+            String canonical = reference == null ? null : reference.get();
+            if (canonical == null) {
+                canonical = name;
+                stripe.put(canonical, new WeakReference<>(canonical));
+            }
+            return canonical;
+        }
+    }
+
+    /** Converts ASCII letters to lower case and removes trailing dots, only allocating a new string
+     * if the name is not already in that form.
+     */
+    private static String normalize(String hostName) {
+        int end = hostName.length();
+        while (end > 0 && hostName.charAt(end - 1) == '.')
+            end--;
+
+        boolean lowerCase = true;
+        for (int i = 0; i < end && lowerCase; i++) {
+            char c = hostName.charAt(i);
+            lowerCase = c < 'A' || c > 'Z';
+        }
+        if (lowerCase)
+            return end == hostName.length() ? hostName : hostName.substring(0, end);
+
+        char[] chars = new char[end];
+        for (int i = 0; i < end; i++) {
+            char c = hostName.charAt(i);
+            chars[i] = c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return new String(chars);
+    }
+}
@@ -5,15 +5,23 @@ import java.io.Serializable;
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
  * type. Two nodes with the same host name and type are considered equal.
+ *
+ * Host names are case-insensitive and may be given with or without a trailing dot. They are
+ * stored in canonical form, shared through DNSNameTable, so that nodes can be compared by
+ * identity of their host names.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
+    private static final long serialVersionUID = 1L;
+
     private String hostName;
     private RecordType type;
+    private transient int hash;
 
     public DNSNode(String hostName, RecordType type) {
-        this.hostName = hostName;
+        this.hostName = DNSNameTable.canonicalize(hostName);
         this.type = type;
+        this.hash = 31 * this.hostName.hashCode() + type.ordinal();
     }
 
     public String getHostName() {
@@ -31,15 +39,14 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
         DNSNode dnsNode = (DNSNode) o;
 
-        if (!hostName.equals(dnsNode.hostName)) return false;
+        // Host names are canonical, so equal names are the same instance
+        if (hostName != dnsNode.hostName) return false;
         return type == dnsNode.type;
     }
 
     @Override
     public int hashCode() {
-        int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
-        return result;
+        return hash;
     }
 
     @Override
@@ -49,9 +56,14 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
     @Override
     public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
+        if (hostName != o.hostName)
+            return hostName.compareTo(o.hostName);
         else
             return type.compareTo(o.type);
     }
+
+    /** Replaces a deserialized node with one whose host name is shared through the name table. */
+    private Object readResolve() {
+        return new DNSNode(hostName, type);
+    }
 }
@@ -0,0 +1,163 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** Encodes DNS queries directly into a byte buffer. The header, the question (host name labels,
+ * type and class) and the OPT record are written in place, so encoding a query for a name made of
+ * ASCII characters does not allocate any object.
+ *
+ * Names are checked before anything is written: each label must have 1 to 63 bytes, and the
+ * encoded name at most 255 bytes (RFC 1035, section 2.3.4), so a query always fits in a buffer of
+ * HEADER_SIZE + MAX_QUESTION_SIZE + OPT_RECORD_SIZE bytes.
+ *
+ * Queries may include an EDNS0 OPT pseudo-record (RFC 6891) in the additional section, advertising
+ * that responses larger than 512 bytes can be received over UDP.
+ */
+public class DNSQueryEncoder {
+
+    /** Size of the header of a DNS message. */
+    public static final int HEADER_SIZE = 12;
+    /** Maximum size of an encoded name, including the length bytes and the final zero. */
+    public static final int MAX_NAME_SIZE = 255;
+    /** Maximum size of an encoded label, not including its length byte. */
+    public static final int MAX_LABEL_SIZE = 63;
+    /** Maximum size of an encoded question: 255-byte name, type and class. */
+    public static final int MAX_QUESTION_SIZE = MAX_NAME_SIZE + 4;
+    /** Size of an OPT pseudo-record with no options: root name, type, class, TTL and RDLENGTH. */
+    public static final int OPT_RECORD_SIZE = 11;
+    /** Record type code of the OPT pseudo-record. */
+    public static final int OPT_TYPE = 41;
+
+    private DNSQueryEncoder() {
+    }
+
+    /** Writes a query for a node into a buffer, starting at the buffer's position. On return, the
+     * position of the buffer is just after the query.
+     *
+     * @param buffer        Buffer the query is written to.
+     * @param transactionID Transaction ID of the query.
+     * @param node          Host and record type to be used for search.
+     * @return The size of the encoded query, in bytes.
+     */
+    public static int encode(ByteBuffer buffer, int transactionID, DNSNode node) {
+        return encode(buffer, transactionID, node, 0);
+    }
+
+    /** Writes a query for a node into a buffer, starting at the buffer's position, with an EDNS0
+     * OPT record advertising the largest UDP response accepted. On return, the position of the
+     * buffer is just after the query.
+     *
+     * @param buffer         Buffer the query is written to.
+     * @param transactionID  Transaction ID of the query.
+     * @param node           Host and record type to be used for search.
+     * @param udpPayloadSize Largest UDP response accepted, or 0 to send no OPT record.
+     * @return The size of the encoded query, in bytes.
+     * @throws IllegalArgumentException if the host name cannot be encoded (see checkName), in
+     *                                  which case nothing is written.
+     */
+    public static int encode(ByteBuffer buffer, int transactionID, DNSNode node, int udpPayloadSize) {
+        checkName(node.getHostName());
+        int start = buffer.position();
+
+        // Header: transaction ID, flags 0x0100 (standard query, RD set), QDCOUNT 1, ARCOUNT 0 or 1
+        buffer.putShort((short) transactionID);
+        buffer.putShort((short) 0x0100);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) (udpPayloadSize > 0 ? 1 : 0));
+
+        // Question: name, type, and class IN
+        writeName(buffer, node.getHostName());
+        buffer.putShort((short) node.getType().getCode());
+        buffer.putShort((short) 1);
+
+        if (udpPayloadSize > 0) {
+            // OPT: root name, type 41, payload size as class, extended RCODE/version/flags 0, no options
+            buffer.put((byte) 0);
+            buffer.putShort((short) OPT_TYPE);
+            buffer.putShort((short) udpPayloadSize);
+            buffer.putInt(0);
+            buffer.putShort((short) 0);
+        }
+        return buffer.position() - start;
+    }
+
+    /** Checks that a host name can be encoded in a query: every label has 1 to 63 bytes, and the
+     * encoded name (each label with its length byte, and the final zero) has at most 255 bytes. A
+     * trailing dot is allowed, and the empty name is the root.
+     *
+     * @param hostName Domain name, with labels separated by dots.
+     * @throws IllegalArgumentException if the name has an empty or too long label, or is too long.
+     */
+    public static void checkName(String hostName) {
+        int size = 1; // Final zero-length label
+        int length = hostName.length();
+        int start = 0;
+        while (start < length) {
+            int end = hostName.indexOf('.', start);
+            if (end < 0) end = length;
+            int labelSize = labelSize(hostName, start, end);
+            if (labelSize == 0 && end < length - 1)
+                throw new IllegalArgumentException("Empty label in name: " + hostName);
+            if (labelSize > MAX_LABEL_SIZE)
+                throw new IllegalArgumentException("Label longer than " + MAX_LABEL_SIZE + " bytes in name: " + hostName);
+            if (labelSize > 0)
+                size += 1 + labelSize;
+            start = end + 1;
+        }
+        if (size > MAX_NAME_SIZE)
+            throw new IllegalArgumentException("Name longer than " + MAX_NAME_SIZE + " bytes: " + hostName);
+    }
+
+    /** Writes a domain name, uncompressed, as a sequence of length-prefixed labels ending with a
+     * zero-length label.
+     *
+     * @param buffer   Buffer the name is written to, at its position.
+     * @param hostName Domain name, with labels separated by dots.
+     * @throws IllegalArgumentException if the name cannot be encoded (see checkName), in which
+     *                                  case nothing is written.
+     */
+    public static void putName(ByteBuffer buffer, String hostName) {
+        checkName(hostName);
+        writeName(buffer, hostName);
+    }
+
+    /** Writes a name already checked by checkName. ASCII labels are written character by character;
+     * other labels are encoded in UTF-8.
+     */
+    private static void writeName(ByteBuffer buffer, String hostName) {
+        int length = hostName.length();
+        int start = 0;
+        while (start < length) {
+            int end = hostName.indexOf('.', start);
+            if (end < 0) end = length;
+            if (end > start) {
+                if (isASCII(hostName, start, end)) {
+                    buffer.put((byte) (end - start));
+                    for (int i = start; i < end; i++)
+                        buffer.put((byte) hostName.charAt(i));
+                } else {
+                    byte[] label = hostName.substring(start, end).getBytes(StandardCharsets.UTF_8);
+                    buffer.put((byte) label.length);
+                    buffer.put(label);
+                }
+            }
+            start = end + 1;
+        }
+        buffer.put((byte) 0);
+    }
+
+    /** Returns the size in bytes of a label encoded in UTF-8. */
+    private static int labelSize(String hostName, int start, int end) {
+        return isASCII(hostName, start, end) ? end - start
+                : hostName.substring(start, end).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static boolean isASCII(String hostName, int start, int end) {
+        for (int i = start; i < end; i++)
+            if (hostName.charAt(i) >= 0x80) return false;
+        return true;
+    }
+}
@@ -3,33 +3,73 @@ package ca.ubc.cs317.dnslookup;
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class DNSQueryHandler {
 
     private static final int DEFAULT_DNS_PORT = 53;
-    private static DatagramSocket socket;
+    /** Timeout of TCP connections and reads. */
+    private static final int TIMEOUT_MILLIS = 5000;
+    private static final int MAX_TRIES = 3;
+    /** Maximum random increase of each retransmission timeout, as a fraction of it. */
+    private static final double RTO_JITTER = 0.25;
+    /** Deadline of queries with no time budget. */
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+    /** Default EDNS0 UDP payload size, small enough to avoid IP fragmentation on most paths. */
+    public static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+    private static volatile int ednsPayloadSize = DEFAULT_EDNS_PAYLOAD_SIZE;
+    private static volatile int serverPort = DEFAULT_DNS_PORT;
+    /** Transport shared by every thread; replaced (never modified) by openSocket. */
+    private static volatile DNSTransport transport;
     private static boolean verboseTracing = false;
 
-    private static final Random random = new Random();
-    
+    /** Maximum number of idle query buffers and message readers kept for reuse. */
+    private static final int POOL_SIZE = 64;
+    /** Reusable buffers for the queries being sent. Pooled rather than per thread, since batch
+     * lookups and the server run every task on a new virtual thread. */
+    private static final ObjectPool<ByteBuffer> queryBuffers = new ObjectPool<>(POOL_SIZE, () ->
+            ByteBuffer.allocateDirect(DNSQueryEncoder.HEADER_SIZE + DNSQueryEncoder.MAX_QUESTION_SIZE +
+                    DNSQueryEncoder.OPT_RECORD_SIZE));
+    /** Reusable readers for the responses being decoded. */
+    private static final ObjectPool<DNSMessageReader> messageReaders = new ObjectPool<>(POOL_SIZE, DNSMessageReader::new);
+    private static final String[] SECTION_NAMES = {"Answers", "Nameservers", "Additional Information"};
+    /** Socket addresses of the servers queried so far, so they are not created for every query. */
+    private static final Map<InetAddress, InetSocketAddress> serverAddresses = new ConcurrentHashMap<>();
+    /** Threads retrying truncated responses of asynchronous queries over TCP. */
+    private static final ExecutorService tcpExecutor = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "dns-tcp");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
-     * Sets up the socket and set the timeout to 5 seconds
+     * Sets up the multiplexed transport used by every query
      *
      * @throws SocketException if the socket could not be opened, or if there was an
      *                         error with the underlying protocol
      */
-    public static void openSocket() throws SocketException {
-        socket = new DatagramSocket();
-        socket.setSoTimeout(5000);
+    public static synchronized void openSocket() throws SocketException {
+        if (transport != null) transport.close();
+        try {
+            transport = new DNSTransport();
+        } catch (IOException e) {
+            SocketException ex = new SocketException(e.getMessage());
+            ex.initCause(e);
+            throw ex;
+        }
     }
 
     /**
      * Closes the socket
      */
-    public static void closeSocket() {
-        socket.close();
+    public static synchronized void closeSocket() {
+        transport.close();
     }
 
     /**
@@ -40,283 +80,450 @@ public class DNSQueryHandler {
     }
 
     /**
-     * Builds the query, sends it to the server, and returns the response.
+     * Sets the UDP payload size advertised in the EDNS0 OPT record of each query, i.e., the size of
+     * the largest response the server may send over UDP.
      *
-     * @param message Byte array used to store the query to DNS servers.
-     * @param server  The IP address of the server to which the query is being sent.
-     * @param node    Host and record type to be used for search.
-     * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
-     * @throws IOException if an IO Exception occurs
+     * @param size Payload size, between 512 and 65535 bytes, or 0 to send queries without EDNS0.
+     * @throws IllegalArgumentException if the size is out of range.
+     */
+    public static void setEDNSPayloadSize(int size) {
+        if (size != 0 && (size < 512 || size > 65535))
+            throw new IllegalArgumentException("EDNS payload size must be between 512 and 65535");
+        ednsPayloadSize = size;
+    }
+
+    public static int getEDNSPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    /**
+     * Sets the UDP and TCP port queries are sent to, on every server. Port 53 is used by default;
+     * other ports are useful to query test servers that cannot bind privileged ports.
+     *
+     * @param port Port number, between 1 and 65535.
+     * @throws IllegalArgumentException if the port is out of range.
+     */
+    public static void setServerPort(int port) {
+        if (port < 1 || port > 65535)
+            throw new IllegalArgumentException("Port must be between 1 and 65535");
+        serverPort = port;
+        serverAddresses.clear();
+    }
+
+    public static int getServerPort() {
+        return serverPort;
+    }
+
+    /**
+     * Builds the query, sends it to the server, and returns the response, with no time budget.
+     *
+     * @see #buildAndSendQuery(byte[], InetAddress, DNSNode, long)
      */
     public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server,
                                                       DNSNode node) throws IOException {
-        // Initialize the data output stream
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        DataOutputStream doutputStreams = new DataOutputStream(byteArrayOutputStream);
-        
-        // Start to encode the header
-        
-        // Generate the transaction ID
-        short transactionID = (short)random.nextInt(Short.MAX_VALUE);
-        
-        // Write the transaction id into data output stream
-        doutputStreams.writeShort(transactionID);
-
-        // Write Query Flags by default is 0x0100: 0 (QR, response), 0000 (OPCODE, standard query), 0 (valid for 
-        // response), 0 (TC, the message length is restrict <= 256 bytes), 1 (RD, set recursive query), 0 (RA), 0 (Z), 
-        // 0000 (RCODE)
-        doutputStreams.writeShort(0x0100);
-
-        // Write the QDCOUNT. There's 1 query question as expected.
-        doutputStreams.writeShort(0x0001);
-
-        // Write the ANCOUNT
-        doutputStreams.writeShort(0x0000);
-
-        // Write the NSCOUNT
-        doutputStreams.writeShort(0x0000);
-
-        // Write the ARCOUNT
-        doutputStreams.writeShort(0x0000);
-        
-        // Start to encode the query question record
-        
-        // Write the host name
-        String[] hostName = node.getHostName().split("\\.");
-        for (String s : hostName) {
-            byte[] domainBytes = s.getBytes(StandardCharsets.UTF_8);
-            doutputStreams.writeByte(domainBytes.length);
-            doutputStreams.write(domainBytes);
-        }
-
-        // Mark the end of question
-        doutputStreams.writeByte(0x00);
+        return buildAndSendQuery(message, server, node, NO_DEADLINE);
+    }
 
-        // Write the Type
-        doutputStreams.writeShort(node.getType().getCode());
-//        doutputStreams.writeShort(11);
+    /**
+     * Builds the query, sends it to the server, and returns the response. This method blocks the
+     * calling thread only; any number of threads may call it concurrently, and their queries are
+     * in flight at the same time on the shared transport.
+     *
+     * The query is encoded into a buffer taken from a pool, so no object is allocated to build
+     * or send it. If no response arrives within the retransmission timeout (RTO) of the server,
+     * computed from its measured round-trip times (NameServerStats), the query is sent again, up
+     * to MAX_TRIES times. The RTO doubles after each timeout, and is increased by a random jitter
+     * so that retransmissions to a server do not synchronize. The round-trip time of the query, or
+     * each timeout, is recorded in the server's statistics. If the response is truncated (TC bit
+     * set), the query is repeated over TCP, and the complete response is returned instead.
+     *
+     * @param message  Byte array used to store the query to DNS servers. If not null and large
+     *                 enough, the encoded query is also copied into it.
+     * @param server   The IP address of the server to which the query is being sent.
+     * @param node     Host and record type to be used for search.
+     * @param deadline Time (as given by System.nanoTime) after which no more time is spent waiting
+     *                 for the server, or NO_DEADLINE.
+     * @return A DNSServerResponse Object containing the response buffer and the transaction ID,
+     *         or a timeout result if the server did not answer in time.
+     * @throws IOException if an IO Exception occurs
+     */
+    public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server,
+                                                      DNSNode node, long deadline) throws IOException {
+        // Registered and sent on the same transport, even if the socket is reopened meanwhile
+        DNSTransport transport = DNSQueryHandler.transport;
+        DNSTransport.PendingQuery query = transport.register(serverAddress(server));
+        int transactionID = query.getTransactionID();
+        ByteBuffer encoded = queryBuffers.acquire();
+        encodeQuery(encoded, transactionID, node);
+        if (message != null && message.length >= encoded.remaining())
+            encoded.get(0, message, 0, encoded.remaining());
 
-        // Write the Class, IN by default
-        doutputStreams.writeShort(0x0001);
+        NameServerStats.ServerStats stats = NameServerStats.getInstance().get(server);
+        DNSMetrics metrics = DNSMetrics.getInstance();
+        try {
+            for (int tries = 0; tries < MAX_TRIES; tries++) {
+                // The RTO already includes the backoff of the timeouts recorded so far
+                long waitMillis = (long) Math.ceil(stats.getRTO() * (1 + ThreadLocalRandom.current().nextDouble(RTO_JITTER)));
+                if (deadline != NO_DEADLINE)
+                    waitMillis = Math.min(waitMillis, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+                if (waitMillis <= 0) break;
 
-        // Send the query to DNS server
-        message = byteArrayOutputStream.toByteArray();
-        DatagramPacket packet = new DatagramPacket(message, message.length, server, DEFAULT_DNS_PORT);
-        int tries = 0;
-        while(true) {
-            try {
                 // Verbose print of the summary of query
                 if (verboseTracing)
-                    System.out.printf("\n\nQuery ID     %d %s %s --> %s%n",
+                    System.out.printf("\n\nQuery ID     %d %s %s --> %s%s%n",
                             transactionID,
                             node.getHostName(),
                             node.getType(),
-                            server.getHostAddress());
-                socket.send(packet);
+                            server.getHostAddress(),
+                            tries > 0 ? " (retry " + tries + ", timeout " + waitMillis + " ms)" : "");
+                encoded.rewind();
+                DNSEvents.Query event = new DNSEvents.Query();
+                event.begin();
+                long sent = System.nanoTime();
+                transport.send(query, encoded);
+                metrics.recordUpstreamQuery(server);
+                if (tries > 0) metrics.recordRetry();
+
                 // Await response from DNS server
-                byte[] buf = new byte[512];
-                DatagramPacket receivedPacket = new DatagramPacket(buf, buf.length);
-                socket.setSoTimeout(5000);
-                socket.receive(receivedPacket);
-                ByteBuffer byteBuffer = ByteBuffer.allocate(receivedPacket.getData().length);
-                byteBuffer.put(receivedPacket.getData());
-                return new DNSServerResponse(byteBuffer, transactionID);
-            } catch (SocketTimeoutException e) {
-                tries++;
-                if (tries >= 2) {
-                    return new DNSServerResponse(ByteBuffer.allocate(512), transactionID);
+                ByteBuffer response = query.await(waitMillis);
+                if (event.shouldCommit()) {
+                    event.set(node, server, transactionID, tries + 1, false, encoded.limit(), response);
+                    event.commit();
+                }
+                if (response != null) {
+                    long rtt = System.nanoTime() - sent;
+                    metrics.recordUpstreamRTT(rtt);
+                    // Karn's algorithm: a response to a retransmission may belong to any transmission
+                    if (tries == 0) NameServerStats.getInstance().recordResponse(server, rtt);
+                    if (isTruncated(response))
+                        response = retryOverTCP(server, node, transactionID, response);
+                    return new DNSServerResponse(response, transactionID);
                 }
-            } 
+                NameServerStats.getInstance().recordTimeout(server);
+                metrics.recordTimeout();
+            }
+        } finally {
+            query.cancel();
+            queryBuffers.release(encoded);
+        }
+        return DNSServerResponse.timeout(transactionID);
+    }
+
+    /**
+     * Builds the query and sends it to the server once, without waiting for the response. The
+     * returned future is completed when the matching response arrives; callers are responsible
+     * for applying a timeout and for cancelling the future if they stop waiting for it. The
+     * round-trip time is recorded in the server's statistics when the response arrives; timeouts
+     * must be recorded by the caller, which is the only one to know when it stopped waiting. A
+     * truncated response is retried over TCP on a separate thread before the future is completed.
+     *
+     * @param server The IP address of the server to which the query is being sent.
+     * @param node   Host and record type to be used for search.
+     * @return A future completed with the server's response.
+     * @throws IOException if an IO Exception occurs
+     */
+    public static CompletableFuture<DNSServerResponse> sendQuery(InetAddress server, DNSNode node)
+            throws IOException {
+        DNSTransport transport = DNSQueryHandler.transport;
+        DNSTransport.PendingQuery query = transport.register(serverAddress(server));
+        int transactionID = query.getTransactionID();
+        if (verboseTracing)
+            System.out.printf("\n\nQuery ID     %d %s %s --> %s%n",
+                    transactionID,
+                    node.getHostName(),
+                    node.getType(),
+                    server.getHostAddress());
+        DNSEvents.Query event = new DNSEvents.Query();
+        event.begin();
+        long sent = System.nanoTime();
+        int querySize;
+        ByteBuffer encoded = queryBuffers.acquire();
+        try {
+            encodeQuery(encoded, transactionID, node);
+            querySize = encoded.limit();
+            transport.send(query, encoded);
+        } catch (IOException e) {
+            query.cancel();
+            throw e;
+        } finally {
+            queryBuffers.release(encoded);
+        }
+        DNSMetrics.getInstance().recordUpstreamQuery(server);
+
+        CompletableFuture<DNSServerResponse> result = query.getResponse()
+                .thenCompose(response -> {
+                    long rtt = System.nanoTime() - sent;
+                    NameServerStats.getInstance().recordResponse(server, rtt);
+                    DNSMetrics.getInstance().recordUpstreamRTT(rtt);
+                    if (!isTruncated(response))
+                        return CompletableFuture.completedFuture(response);
+                    return CompletableFuture.supplyAsync(
+                            () -> retryOverTCP(server, node, transactionID, response), tcpExecutor);
+                })
+                .thenApply(response -> new DNSServerResponse(response, transactionID));
+        // Stop routing responses to this query once the caller gives up on it
+        result.whenComplete((response, error) -> {
+            query.cancel();
+            if (event.shouldCommit()) {
+                event.set(node, server, transactionID, 1, false, querySize,
+                        response == null ? null : response.getResponse());
+                event.commit();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Checks if a response can be used to continue a lookup: it must be a complete response with
+     * no error other than a non-existent name. Failures (e.g., SERVFAIL or REFUSED) and timeouts
+     * are not usable, and the query should be sent to another server instead.
+     *
+     * @param serverResponse Response returned by buildAndSendQuery or sendQuery.
+     * @return True if the response is usable.
+     */
+    public static boolean isUsableResponse(DNSServerResponse serverResponse) {
+        if (serverResponse.isTimeout()) return false;
+        ByteBuffer response = serverResponse.getResponse();
+        if (response.limit() < 12 || (response.getShort(0) & 0xFFFF) != serverResponse.getTransactionID())
+            return false;
+        int flags = response.getShort(2) & 0xFFFF;
+        int rcode = flags & 0x000F;
+        return (flags & 0x8000) != 0 && (rcode == 0 || rcode == 3);
+    }
+
+    /**
+     * Checks if a response is an authoritative answer: the AA bit is set and the answer section
+     * is not empty. The authority section of such a response lists the nameservers of the zone
+     * that answered, which must not be queried again as if they were a referral.
+     *
+     * @param response Response received from a server.
+     * @return True if the response is an authoritative answer.
+     */
+    public static boolean isAuthoritativeAnswer(ByteBuffer response) {
+        return response.limit() >= 12 && (response.getShort(2) & 0x0400) != 0 && response.getShort(6) != 0;
+    }
+
+    /**
+     * Checks if the TC (truncation) bit of a response is set.
+     *
+     * @param response Response received over UDP.
+     * @return True if the response was truncated by the server.
+     */
+    private static boolean isTruncated(ByteBuffer response) {
+        return response.limit() >= 4 && (response.getShort(2) & 0x0200) != 0;
+    }
+
+    /**
+     * Repeats a query over TCP, after receiving a truncated response over UDP. Messages are sent
+     * over TCP with a two-byte length prefix (RFC 1035, section 4.2.2).
+     *
+     * @param server        The IP address of the server.
+     * @param node          Host and record type to be used for search.
+     * @param transactionID Transaction ID of the query.
+     * @param truncated     Truncated UDP response, returned if the query fails over TCP.
+     * @return The complete response, or the truncated one if the query failed over TCP.
+     */
+    private static ByteBuffer retryOverTCP(InetAddress server, DNSNode node, int transactionID,
+                                           ByteBuffer truncated) {
+        if (verboseTracing)
+            System.out.printf("Response truncated, retrying over TCP --> %s%n", server.getHostAddress());
+        DNSMetrics.getInstance().recordTCPFallback();
+
+        ByteBuffer query = ByteBuffer.allocate(2 + DNSQueryEncoder.HEADER_SIZE +
+                DNSQueryEncoder.MAX_QUESTION_SIZE + DNSQueryEncoder.OPT_RECORD_SIZE);
+        query.position(2);
+        int length = DNSQueryEncoder.encode(query, transactionID, node, ednsPayloadSize);
+        query.putShort(0, (short) length);
+
+        DNSEvents.Query event = new DNSEvents.Query();
+        event.begin();
+        ByteBuffer response = null;
+        try (Socket socket = new Socket()) {
+            socket.connect(serverAddress(server), TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            OutputStream out = socket.getOutputStream();
+            out.write(query.array(), 0, 2 + length);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte[] data = new byte[in.readUnsignedShort()];
+            in.readFully(data);
+            response = ByteBuffer.wrap(data);
+            return response;
+        } catch (IOException e) {
+            // Timed out, refused or closed early; the truncated response is better than none
+            return truncated;
+        } finally {
+            if (event.shouldCommit()) {
+                event.set(node, server, transactionID, 1, true, length, response);
+                event.commit();
+            }
         }
     }
 
     /**
-     * Decodes the DNS server response and caches it.
+     * Encodes a query for a node into a query buffer.
+     *
+     * @param buffer        Buffer taken from the pool, left with the encoded query between its
+     *                      position and limit.
+     * @param transactionID Transaction ID of the query.
+     * @param node          Host and record type to be used for search.
+     */
+    private static void encodeQuery(ByteBuffer buffer, int transactionID, DNSNode node) {
+        buffer.clear();
+        DNSQueryEncoder.encode(buffer, transactionID, node, ednsPayloadSize);
+        buffer.flip();
+    }
+
+    /**
+     * Returns the socket address used to reach a server on the DNS port (see setServerPort).
+     *
+     * @param server The IP address of the server.
+     * @return The address and port of the server.
+     */
+    private static InetSocketAddress serverAddress(InetAddress server) {
+        return serverAddresses.computeIfAbsent(server, address -> new InetSocketAddress(address, serverPort));
+    }
+
+    /**
+     * Decodes the DNS server response and caches it. Responses indicating that the name does not
+     * exist (NXDOMAIN), or that it has no record of the requested type (NODATA), are cached as
+     * negative results for the duration given by the SOA record of the response (RFC 2308).
      *
      * @param transactionID  Transaction ID of the current communication with the DNS server
-     * @param responseBuffer DNS server's response
+     * @param responseBuffer DNS server's response, or null if the query timed out
      * @param cache          To store the decoded server's response
      * @return A set of resource records corresponding to the name servers of the response.
      */
     public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer,
                                                              DNSCache cache) {
-        // TODO (PART 1): Implement this
         Set<ResourceRecord> result = new HashSet<>();
-        responseBuffer.position(0);
-        Map<Integer, String> refMap = new HashMap<>();
+        if (responseBuffer == null) return result;
+        // RRsets of the answer section, cached once the section is complete
+        Map<DNSNode, List<ResourceRecord>> answers = new LinkedHashMap<>();
+        DNSMessageReader reader = messageReaders.acquire();
+        DNSEvents.Decode event = new DNSEvents.Decode();
+        event.begin();
+        int decoded = 0;
         try {
             // Decode transaction id of the response, halt if it is mismatched with the input transaction id 
-            int responseID = responseBuffer.getShort();
+            reader.wrap(responseBuffer);
+            int responseID = reader.getTransactionID();
             if (transactionID != responseID) return result;
 
-            // Decode first octet of the flags
-            int flags = responseBuffer.getShort();
-            boolean authoritative = (flags & 0x0400) != 0;
+            // Decode the flags
+            boolean authoritative = reader.isAuthoritative();
+            int rcode = reader.getResponseCode();
 
-            // Skip QDCOUNT
-            responseBuffer.position(responseBuffer.position()+2);
-            
-            // Decode the ANCOUNT, NSCOUNT, ARCOUNT
-            int[] counts = new int[]{responseBuffer.getShort(), responseBuffer.getShort(), responseBuffer.getShort()};
-            String[] answerType = new String[]{"Answers", "Nameservers", "Additional Information"};
-            
-            // Decode the host name
-            String hostName = decodeName(refMap, responseBuffer);
-            
-            // Skip the QTYPE and QCLASS
-            responseBuffer.position(responseBuffer.position()+4);
+            // Decode the host name and QTYPE of the question
+            String hostName = reader.getQuestionName();
+            RecordType queryType = RecordType.getByCode(reader.getQuestionType());
+            ResourceRecord soaRecord = null;
+            long soaMinimum = 0;
+            DNSNode curNode = null;
             
             // Verbose print of response summary
             if (verboseTracing) System.out.printf("Response ID: %d Authoritative = %b%n", responseID, authoritative);
             
             for (int i = 0; i < 3;i++) {
                 // Verbose print of records group summary
-                if (verboseTracing) System.out.printf("  %s (%d)\n", answerType[i], counts[i]);
-                int curCount = counts[i];
+                int curCount = reader.getCount(i);
+                if (verboseTracing) System.out.printf("  %s (%d)\n", SECTION_NAMES[i], curCount);
                 
                 // Decode each record
                 while(curCount-- > 0) {
-                    // NAME
-                    String curName = decodeName(refMap, responseBuffer);
-                    
-                    // TYPE
-                    RecordType type = RecordType.getByCode(responseBuffer.getShort());
-                    
-                    // CLASS
-                    int recordClass = responseBuffer.getShort();
-                    
-                    // TTL
-                    long ttl = responseBuffer.getInt() & 0x00000000ffffffffL;
-                    
-                    // RDLENGTH
-                    int rawDataLength = responseBuffer.getShort();
+                    reader.nextRecord();
+                    // The EDNS0 OPT pseudo-record carries no data to be cached
+                    if (reader.getRecordType() == DNSQueryEncoder.OPT_TYPE) {
+                        if (verboseTracing)
+                            System.out.printf("       EDNS0 UDP payload size %d%n", reader.getRecordClass());
+                        continue;
+                    }
+                    String curName = DNSNameTable.canonicalize(reader.getRecordName());
+                    RecordType type = RecordType.getByCode(reader.getRecordType());
+                    // Records of an RRset are consecutive, and share the node of the cache key
+                    if (curNode == null || curNode.getHostName() != curName || curNode.getType() != type)
+                        curNode = cache.getNode(new DNSNode(curName, type));
+                    long ttl = reader.getRecordTTL();
+                    int rdata = reader.getRDataOffset();
+                    int rawDataLength = reader.getRDataLength();
                     
                     // RDATA, different type of record with different strategy.
                     ResourceRecord curResourceRecord = null;
                     switch (type) {
                         case A:
-                            curResourceRecord =
-                                    new ResourceRecord(curName, type, ttl, Inet4Address.getByName(decodeI4Address(responseBuffer)));
-                            break;
                         case AAAA:
                             curResourceRecord =
-                                    new ResourceRecord(curName, type, ttl, Inet6Address.getByName(decodeI6Address(responseBuffer)));
+                                    new ResourceRecord(curNode, ttl, responseBuffer, rdata, rawDataLength);
                             break;
-                        
                         case CNAME:
                         case NS:
-                            curResourceRecord = new ResourceRecord(curName, type, ttl, decodeName(refMap, responseBuffer));
+                        case PTR:
+                            curResourceRecord = new ResourceRecord(curNode, ttl,
+                                    DNSNameTable.canonicalize(reader.readName(rdata)));
                             break;
                         case SOA:
-                            int pos = responseBuffer.position();
-                            curResourceRecord = new ResourceRecord(curName, type, ttl, decodeName(refMap, responseBuffer));
-                            responseBuffer.position(pos+rawDataLength);
+                            curResourceRecord = new ResourceRecord(curNode, ttl, reader.readSOA(rdata));
+                            if (i == DNSMessageReader.AUTHORITY) {
+                                soaRecord = curResourceRecord;
+                                // MINIMUM is the last field of the SOA record
+                                soaMinimum = reader.readUnsignedInt(rdata + rawDataLength - 4);
+                            }
                             break;
                         case MX:
-                            curResourceRecord = new ResourceRecord(curName, type, ttl, decodeMXRecord(refMap, responseBuffer));
+                            // Skip the preference
+                            curResourceRecord = new ResourceRecord(curNode, ttl,
+                                    DNSNameTable.canonicalize(reader.readName(rdata + 2)));
                             break;
                         case OTHER:
-                            curResourceRecord = new ResourceRecord(curName, type, ttl, decodeDefault(responseBuffer, rawDataLength));
+                            curResourceRecord = new ResourceRecord(curNode, ttl, "Not supported!");
                             break;
                     }
-                    if (i==1) result.add(curResourceRecord);
-                    cache.addResult(curResourceRecord);
-                    verbosePrintResourceRecord(curResourceRecord, type.getCode());
+                    if (i == DNSMessageReader.AUTHORITY) result.add(curResourceRecord);
+                    if (i == DNSMessageReader.ANSWER)
+                        answers.computeIfAbsent(curResourceRecord.getNode(), key -> new ArrayList<>())
+                                .add(curResourceRecord);
+                    else
+                        cache.addResult(curResourceRecord);
+                    decoded++;
+                    verbosePrintResourceRecord(curResourceRecord, reader.getRecordType());
+                }
+                // Each RRset of the answer replaces the cached one as a whole, so that records
+                // superseded by the server do not pile up next to the new ones
+                if (i == DNSMessageReader.ANSWER) {
+                    answers.forEach(cache::replaceResults);
+                    answers.clear();
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return result;
-    }
-    
-
-    /**
-     * Default printing message when the record type is not supported
-     * @param byteBuffer
-     * @param length length of the raw data
-     * @return 
-     */
-    public static String decodeDefault(ByteBuffer byteBuffer, int length) {
-        length += byteBuffer.position();
-        byteBuffer.position(length > 511? 511:length);
-        return "Not supported!";
-    }
-    
-    
-    /**
-     * Decode the MX record raw data
-     * @param refMap
-     * @param byteBuffer
-     * @return
-     */
-    public static String decodeMXRecord(Map<Integer, String> refMap, ByteBuffer byteBuffer) {
-        byteBuffer.getShort();
-        return decodeName(refMap, byteBuffer);
-    }
-
-
-    /**
-     * Decode the A type record raw data
-     * @param byteBuffer
-     * @return
-     */
-    public static String decodeI4Address(ByteBuffer byteBuffer) {
-        List<String> labels = new ArrayList<>();
-        for(int i = 0; i < 4; i++) {
-            labels.add(String.valueOf(byteBuffer.get()&0xFF));
-        }
-        return String.join(".", labels);
-    }
-
 
-    /**
-     * Decode the AAAA type record raw data
-     * @param byteBuffer
-     * @return
-     */
-    public static String decodeI6Address(ByteBuffer byteBuffer) {
-        List<String> labels = new ArrayList<>();
-        for(int i = 0; i < 8; i++) {
-            labels.add(Integer.toHexString(byteBuffer.getShort() & 0x0000FFFF));
-        }
-        return String.join(":", labels);
-    }
-
-    /**
-     * Decode the name part of the record raw data by recursively fetching labels until hit 0x00 or a name ptr
-     * @param refMap
-     * @param byteBuffer
-     * @return
-     */
-    public static String decodeName(Map<Integer, String> refMap, ByteBuffer byteBuffer) {
-        List<String> labels = new ArrayList<>();
-        List<Integer> positions = new ArrayList<>();
-        int partLength;
-        while(true) {
-            positions.add(byteBuffer.position());
-            partLength = byteBuffer.get();
-            if ((partLength & 0x00C0) == 0x00C0) {
-                int start = byteBuffer.position()-1;
-                byteBuffer.position(start);
-                int nextPos = byteBuffer.getShort() & 0x3fff;
-                String label = refMap.get(nextPos);
-                labels.add(label);
-                break;
+            // Negative caching (RFC 2308), only if the authority section has the zone's SOA record
+            boolean nameError = rcode == 3;
+            boolean noData = rcode == 0 && reader.getCount(DNSMessageReader.ANSWER) == 0;
+            if ((nameError || noData) && soaRecord != null && hostName != null) {
+                long negativeTTL = Math.min(soaRecord.getTTL(), soaMinimum);
+                cache.addNegativeResult(new NegativeResult(new DNSNode(hostName, queryType), negativeTTL,
+                        nameError, soaRecord.getHostName()));
+                if (verboseTracing)
+                    System.out.printf("  Negative (%s) cached for %d seconds%n",
+                            nameError ? "NXDOMAIN" : "NODATA", negativeTTL);
             }
-            if (partLength == 0) {
-                break;
+        } catch (IndexOutOfBoundsException | IllegalArgumentException ignored) {
+            // Truncated or malformed response, keep the records decoded so far
+            for (List<ResourceRecord> records : answers.values())
+                records.forEach(cache::addResult);
+        } finally {
+            messageReaders.release(reader);
+            if (event.shouldCommit()) {
+                event.transactionID = transactionID;
+                event.responseSize = responseBuffer.limit();
+                event.records = decoded;
+                event.rcode = responseBuffer.limit() >= 4 ? responseBuffer.getShort(2) & 0x000F : -1;
+                event.commit();
             }
-            byte[] text = new byte[partLength];
-            byteBuffer.get(text, 0, partLength);
-            labels.add(new String(text, StandardCharsets.UTF_8));
         }
-        for (int i = 0; i < labels.size(); i++) {
-            refMap.put(positions.get(i), String.join(".", labels.subList(i, labels.size())));
-        }
-        return String.join(".", labels);
+        return result;
     }
-    
+
     /**
      * Formats and prints record details (for when trace is on)
      *
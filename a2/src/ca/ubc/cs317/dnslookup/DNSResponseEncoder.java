@@ -0,0 +1,201 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Encodes DNS responses to queries received by the resolver when it acts as a server. Records
+ * are written from the cache, with their remaining TTL. A name already written in the message
+ * (the question name, or the owner or target name of an earlier record, e.g. in a CNAME chain)
+ * is compressed into a pointer to it; other names are written in full.
+ *
+ * The cache does not keep the preference of MX records, so every exchange is given the same
+ * preference (10).
+ */
+public class DNSResponseEncoder {
+
+    public static final int NOERROR = 0;
+    public static final int FORMERR = 1;
+    public static final int SERVFAIL = 2;
+    public static final int NXDOMAIN = 3;
+    public static final int NOTIMP = 4;
+    public static final int REFUSED = 5;
+
+    /** Header flag: the response is authoritative for the question (AA). */
+    public static final int AUTHORITATIVE = 0x0400;
+    /** Header flag: recursion is available (RA). */
+    public static final int RECURSION_AVAILABLE = 0x0080;
+
+    /** Preference of MX records, which is not kept in the cache. */
+    static final int MX_PREFERENCE = 10;
+    /** Flag of the first two bytes of a compression pointer. */
+    private static final int POINTER = 0xC000;
+    /** Largest offset a compression pointer can refer to. */
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+
+    private DNSResponseEncoder() {
+    }
+
+    /** Writes a response to a query into a buffer, as sent by a recursive resolver (RA set, no
+     * additional records). If the answer and authority records do not fit in the buffer (up to its
+     * limit), they are left out and the TC (truncated) bit is set, so the client can repeat the
+     * query over TCP.
+     *
+     * @param buffer          Buffer the response is written to, from its position up to its limit.
+     * @param query           Buffer containing the query, starting at index 0.
+     * @param reader          Reader wrapped on the query, or null if the query could not be parsed,
+     *                        in which case the response has no question section.
+     * @param rcode           Response code.
+     * @param answers         Records of the answer section.
+     * @param authority       Records of the authority section.
+     * @param udpPayloadSize  Payload size to advertise in an OPT record, or 0 if the query had none.
+     * @return The size of the encoded response, in bytes.
+     */
+    public static int encode(ByteBuffer buffer, ByteBuffer query, DNSMessageReader reader, int rcode,
+                             Collection<ResourceRecord> answers, Collection<ResourceRecord> authority,
+                             int udpPayloadSize) {
+        return encode(buffer, query, reader, RECURSION_AVAILABLE, rcode, answers, authority,
+                Collections.emptyList(), udpPayloadSize);
+    }
+
+    /** Writes a response to a query into a buffer, with the given header flags and additional
+     * records (e.g., the glue of a referral). If the records do not fit in the buffer (up to its
+     * limit), all of them are left out and the TC (truncated) bit is set.
+     *
+     * @param buffer          Buffer the response is written to, from its position up to its limit.
+     * @param query           Buffer containing the query, starting at index 0.
+     * @param reader          Reader wrapped on the query, or null if the query could not be parsed.
+     * @param flags           AUTHORITATIVE and/or RECURSION_AVAILABLE, or 0.
+     * @param rcode           Response code.
+     * @param answers         Records of the answer section.
+     * @param authority       Records of the authority section.
+     * @param additional      Records of the additional section, before the OPT record if any.
+     * @param udpPayloadSize  Payload size to advertise in an OPT record, or 0 if the query had none.
+     * @return The size of the encoded response, in bytes.
+     */
+    public static int encode(ByteBuffer buffer, ByteBuffer query, DNSMessageReader reader, int flags, int rcode,
+                             Collection<ResourceRecord> answers, Collection<ResourceRecord> authority,
+                             Collection<ResourceRecord> additional, int udpPayloadSize) {
+        int start = buffer.position();
+        int queryFlags = query.getShort(2) & 0xFFFF;
+        boolean withQuestion = reader != null && reader.getQuestionCount() == 1;
+
+        // Header: same ID, QR set, opcode and RD copied from the query, then AA and RA as requested
+        buffer.putShort(query.getShort(0));
+        buffer.putShort((short) (0x8000 | (queryFlags & 0x7900) | flags | rcode));
+        buffer.putShort((short) (withQuestion ? 1 : 0));
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+
+        // Offsets of the names written so far, relative to the start of the message
+        Map<String, Integer> names = new HashMap<>();
+        if (withQuestion) {
+            names.put(DNSNameTable.canonicalize(reader.getQuestionName()), DNSQueryEncoder.HEADER_SIZE);
+            buffer.put(query.duplicate().limit(reader.getQuestionEnd()).position(DNSQueryEncoder.HEADER_SIZE));
+        }
+        int sectionsStart = buffer.position();
+
+        // Leave room for the OPT record, which is never left out
+        int limit = buffer.limit();
+        buffer.limit(limit - (udpPayloadSize > 0 ? DNSQueryEncoder.OPT_RECORD_SIZE : 0));
+        int additionalCount = 0;
+        try {
+            buffer.putShort(start + 6, (short) putRecords(buffer, start, answers, names));
+            buffer.putShort(start + 8, (short) putRecords(buffer, start, authority, names));
+            additionalCount = putRecords(buffer, start, additional, names);
+        } catch (BufferOverflowException e) {
+            buffer.position(sectionsStart);
+            buffer.putShort(start + 2, (short) (buffer.getShort(start + 2) | 0x0200));
+            buffer.putShort(start + 6, (short) 0);
+            buffer.putShort(start + 8, (short) 0);
+            additionalCount = 0;
+        }
+        buffer.limit(limit);
+
+        if (udpPayloadSize > 0) {
+            buffer.put((byte) 0);
+            buffer.putShort((short) DNSQueryEncoder.OPT_TYPE);
+            buffer.putShort((short) udpPayloadSize);
+            buffer.putInt(0);
+            buffer.putShort((short) 0);
+            additionalCount++;
+        }
+        buffer.putShort(start + 10, (short) additionalCount);
+        return buffer.position() - start;
+    }
+
+    /** Writes a list of records, skipping those whose data cannot be encoded.
+     *
+     * @param start Position of the start of the message in the buffer.
+     * @param names Offsets of the names already written, updated with the names written in full.
+     * @return The number of records written.
+     * @throws BufferOverflowException if the records do not fit in the buffer.
+     */
+    private static int putRecords(ByteBuffer buffer, int start, Collection<ResourceRecord> records,
+                                  Map<String, Integer> names) {
+        int count = 0;
+        for (ResourceRecord record : records) {
+            if (record.getType() == RecordType.OTHER) continue;
+
+            putName(buffer, start, record.getHostName(), names);
+            buffer.putShort((short) record.getType().getCode());
+            buffer.putShort((short) 1);
+            buffer.putInt((int) Math.max(0, record.getTTL()));
+
+            int lengthOffset = buffer.position();
+            buffer.putShort((short) 0);
+            putData(buffer, start, record, names);
+            buffer.putShort(lengthOffset, (short) (buffer.position() - lengthOffset - 2));
+            count++;
+        }
+        return count;
+    }
+
+    /** Writes a name, as a pointer to the same name if it was already written in the message, or
+     * in full otherwise (RFC 1035, section 4.1.4).
+     */
+    private static void putName(ByteBuffer buffer, int start, String name, Map<String, Integer> names) {
+        Integer offset = names.get(name);
+        if (offset != null) {
+            buffer.putShort((short) (POINTER | offset));
+            return;
+        }
+        int position = buffer.position() - start;
+        DNSQueryEncoder.putName(buffer, name);
+        if (position <= MAX_POINTER_OFFSET)
+            names.put(name, position);
+    }
+
+    /** Writes the RDATA of a record, based on its type. */
+    private static void putData(ByteBuffer buffer, int start, ResourceRecord record, Map<String, Integer> names) {
+        switch (record.getType()) {
+            case A:
+            case AAAA:
+                record.putAddress(buffer);
+                break;
+            case NS:
+            case CNAME:
+            case PTR:
+                putName(buffer, start, record.getTextResult(), names);
+                break;
+            case MX:
+                buffer.putShort((short) MX_PREFERENCE);
+                putName(buffer, start, record.getTextResult(), names);
+                break;
+            case SOA:
+                // MNAME RNAME SERIAL REFRESH RETRY EXPIRE MINIMUM, as decoded by DNSMessageReader
+                String[] fields = record.getTextResult().split(" ");
+                DNSQueryEncoder.putName(buffer, fields[0]);
+                DNSQueryEncoder.putName(buffer, fields[1]);
+                for (int i = 2; i < 7; i++)
+                    buffer.putInt((int) Long.parseLong(fields[i]));
+                break;
+            default:
+                break;
+        }
+    }
+}
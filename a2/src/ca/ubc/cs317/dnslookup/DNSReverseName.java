@@ -0,0 +1,119 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/** Conversions between addresses and the names used to look them up in reverse (PTR) queries.
+ * The name of an IPv4 address a.b.c.d is d.c.b.a.in-addr.arpa (RFC 1035, section 3.5); the name
+ * of an IPv6 address is made of its 32 hexadecimal digits in reverse order, followed by ip6.arpa
+ * (RFC 3596, section 2.5).
+ */
+public class DNSReverseName {
+
+    private static final String IPV4_SUFFIX = "in-addr.arpa";
+    private static final String IPV6_SUFFIX = "ip6.arpa";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private DNSReverseName() {
+    }
+
+    /** Returns the name used to look up an address in a reverse query.
+     *
+     * @param address IPv4 or IPv6 address.
+     * @return The in-addr.arpa or ip6.arpa name of the address.
+     */
+    public static String of(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        StringBuilder name = new StringBuilder(72);
+        if (bytes.length == 4) {
+            for (int i = 3; i >= 0; i--)
+                name.append(bytes[i] & 0xFF).append('.');
+            return name.append(IPV4_SUFFIX).toString();
+        }
+        for (int i = 15; i >= 0; i--)
+            name.append(HEX_DIGITS[bytes[i] & 0xF]).append('.').append(HEX_DIGITS[(bytes[i] >> 4) & 0xF]).append('.');
+        return name.append(IPV6_SUFFIX).toString();
+    }
+
+    /** Returns the address looked up by a reverse query name, if the name designates a complete
+     * address (e.g., 4.3.2.1.in-addr.arpa, but not 3.2.1.in-addr.arpa).
+     *
+     * @param name Host name, in canonical form (see DNSNameTable).
+     * @return The address, or null if the name is not the reverse name of an address.
+     */
+    public static InetAddress toAddress(String name) {
+        String[] labels = name.split("\\.");
+        byte[] bytes;
+        if (name.endsWith("." + IPV4_SUFFIX) && labels.length == 6) {
+            bytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                int octet = parseOctet(labels[3 - i]);
+                if (octet < 0) return null;
+                bytes[i] = (byte) octet;
+            }
+        } else if (name.endsWith("." + IPV6_SUFFIX) && labels.length == 34) {
+            bytes = new byte[16];
+            for (int i = 0; i < 32; i++) {
+                int digit = labels[i].length() == 1 ? Character.digit(labels[i].charAt(0), 16) : -1;
+                if (digit < 0) return null;
+                bytes[15 - i / 2] |= (byte) (i % 2 == 0 ? digit : digit << 4);
+            }
+        } else {
+            return null;
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return null; // Not possible, the length is valid
+        }
+    }
+
+    /** Returns the name to be queried for a host name given by the user: for a reverse (PTR)
+     * query, an IPv4 or IPv6 address literal is replaced by its reverse name, so that e.g.
+     * "lookup 10.1.2.3 PTR" queries 3.2.1.10.in-addr.arpa. Other names are returned unchanged.
+     *
+     * @param hostName Host name or address literal.
+     * @param type     Record type of the query.
+     * @return The name to be used in the query.
+     */
+    public static String forQuery(String hostName, RecordType type) {
+        if (type != RecordType.PTR) return hostName;
+        InetAddress address = parseLiteral(hostName);
+        return address == null ? hostName : of(address);
+    }
+
+    /** Parses an IPv4 (dotted decimal) or IPv6 address literal, without any DNS lookup.
+     *
+     * @param text Text that may be an address literal.
+     * @return The address, or null if the text is not an address literal.
+     */
+    private static InetAddress parseLiteral(String text) {
+        try {
+            if (text.indexOf(':') >= 0)
+                return InetAddress.getByName(text); // Always parsed as an IPv6 literal, never resolved
+            String[] parts = text.split("\\.", -1);
+            if (parts.length != 4) return null;
+            byte[] bytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                int octet = parseOctet(parts[i]);
+                if (octet < 0) return null;
+                bytes[i] = (byte) octet;
+            }
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /** Parses a decimal number between 0 and 255 with no sign or leading zero, or returns -1. */
+    private static int parseOctet(String text) {
+        if (text.isEmpty() || text.length() > 3 || (text.length() > 1 && text.charAt(0) == '0')) return -1;
+        int value = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value <= 255 ? value : -1;
+    }
+}
@@ -0,0 +1,266 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+/** Caching stub-resolver server. Listens for DNS queries on a local UDP port and on the same TCP
+ * port, answers them from the cache, and runs the iterative resolution on a miss. Each query is
+ * handled on its own (virtual, if supported) thread, so slow resolutions do not hold up queries
+ * answered from the cache.
+ *
+ * Responses have the ID, opcode and RD flag of the query, with RA set. Records are returned with
+ * their remaining TTL. Records of an alias are preceded by the chain of CNAME records leading from
+ * the query name to its canonical name, which owns them (RFC 1034, section 3.6.2). Negative results
+ * are returned as NXDOMAIN or NODATA, with the SOA record of the zone (if still cached) in the
+ * authority section. Queries that could not be resolved get a SERVFAIL response. UDP responses are
+ * limited to 512 bytes, or to the payload size advertised by the client with EDNS0, and are
+ * truncated (TC bit) beyond that.
+ */
+public class DNSServer implements Closeable {
+
+    private static final int MAX_MESSAGE_SIZE = 65535;
+    private static final int MIN_UDP_PAYLOAD = 512;
+    /** Payload size advertised in responses to clients using EDNS0. */
+    private static final int SERVER_UDP_PAYLOAD = 1232;
+    private static final int TCP_IDLE_TIMEOUT_MILLIS = 10000;
+    /** Number of threads handling queries, if virtual threads are not supported. */
+    private static final int WORKER_THREADS = 64;
+    /** Maximum number of CNAME records followed from the query name. */
+    private static final int MAX_CNAME_CHAIN = 10;
+
+    private final DNSCache cache;
+    private final Function<DNSNode, Set<ResourceRecord>> resolver;
+    private final DatagramChannel udp;
+    private final ServerSocket tcp;
+    private final ExecutorService workers;
+    private final Thread udpThread;
+    private final Thread tcpThread;
+
+    /** Starts a server listening on a local address, for both UDP and TCP.
+     *
+     * @param address  Address and port the server listens on. Port 0 picks a free UDP port,
+     *                 and the same port is then used for TCP.
+     * @param cache    Cache used for negative results and SOA records.
+     * @param resolver Function returning the results of a query, from the cache or by resolving it.
+     * @throws IOException if the address could not be bound.
+     */
+    public DNSServer(InetSocketAddress address, DNSCache cache,
+                     Function<DNSNode, Set<ResourceRecord>> resolver) throws IOException {
+        this.cache = cache;
+        this.resolver = resolver;
+        udp = DatagramChannel.open();
+        try {
+            udp.bind(address);
+            tcp = new ServerSocket();
+            tcp.setReuseAddress(true);
+            tcp.bind(udp.getLocalAddress());
+        } catch (IOException e) {
+            udp.close();
+            throw e;
+        }
+        workers = VirtualThreads.newExecutor("dns-server", WORKER_THREADS);
+
+        udpThread = new Thread(this::receiveUDP, "dns-server-udp");
+        udpThread.setDaemon(true);
+        udpThread.start();
+        tcpThread = new Thread(this::acceptTCP, "dns-server-tcp");
+        tcpThread.setDaemon(true);
+        tcpThread.start();
+    }
+
+    /** Returns the local address and port the server listens on. */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) tcp.getLocalSocketAddress();
+    }
+
+    /** Waits until the server is closed. */
+    public void awaitClose() throws InterruptedException {
+        udpThread.join();
+    }
+
+    /** Stops listening for queries. Queries being resolved are not answered. */
+    @Override
+    public void close() {
+        try {
+            udp.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            tcp.close();
+        } catch (IOException ignored) {
+        }
+        workers.shutdown();
+    }
+
+    private void receiveUDP() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+        try {
+            while (true) {
+                buffer.clear();
+                SocketAddress client = udp.receive(buffer);
+                buffer.flip();
+                ByteBuffer query = ByteBuffer.allocate(buffer.remaining());
+                query.put(buffer).flip();
+                workers.execute(() -> {
+                    ByteBuffer response = answer(query, false);
+                    if (response == null) return;
+                    try {
+                        udp.send(response, client);
+                    } catch (IOException ignored) {
+                        // Closed, or client unreachable
+                    }
+                });
+            }
+        } catch (ClosedChannelException ignored) {
+            // Server was closed
+        } catch (IOException e) {
+            System.err.println("DNS server stopped (" + e.getMessage() + ").");
+        }
+    }
+
+    private void acceptTCP() {
+        try {
+            while (true) {
+                Socket socket = tcp.accept();
+                workers.execute(() -> serveConnection(socket));
+            }
+        } catch (IOException ignored) {
+            // Server was closed
+        }
+    }
+
+    /** Answers the queries received on a TCP connection, in order, until the client closes it or
+     * stays idle for too long. Messages are prefixed by their length (RFC 1035, section 4.2.2).
+     */
+    private void serveConnection(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(TCP_IDLE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            while (true) {
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                ByteBuffer response = answer(ByteBuffer.wrap(query), true);
+                if (response == null) continue;
+                out.writeShort(response.remaining());
+                out.write(response.array(), response.position(), response.remaining());
+                out.flush();
+            }
+        } catch (IOException ignored) {
+            // Connection closed by the client, or idle
+        }
+    }
+
+    /** Builds the response to a query.
+     *
+     * @param query Query received from a client.
+     * @param tcp   True if the query was received over TCP, so the response size is not limited.
+     * @return The response, or null if the message should not be answered.
+     */
+    ByteBuffer answer(ByteBuffer query, boolean tcp) {
+        // Too short to be answered with the same ID, or a response rather than a query
+        if (query.limit() < DNSQueryEncoder.HEADER_SIZE || (query.get(2) & 0x80) != 0)
+            return null;
+
+        DNSMessageReader reader = new DNSMessageReader();
+        int udpPayloadSize = 0;
+        try {
+            reader.wrap(query);
+            // Look for an EDNS0 OPT record, giving the largest response the client accepts over UDP
+            int records = reader.getCount(DNSMessageReader.ANSWER) + reader.getCount(DNSMessageReader.AUTHORITY)
+                    + reader.getCount(DNSMessageReader.ADDITIONAL);
+            for (int i = 0; i < records; i++) {
+                reader.nextRecord();
+                if (reader.getRecordType() == DNSQueryEncoder.OPT_TYPE)
+                    udpPayloadSize = Math.max(MIN_UDP_PAYLOAD, reader.getRecordClass());
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return respond(query, null, DNSResponseEncoder.FORMERR, tcp, 0);
+        }
+
+        int opcode = (reader.getFlags() >> 11) & 0xF;
+        if (opcode != 0)
+            return respond(query, reader, DNSResponseEncoder.NOTIMP, tcp, udpPayloadSize);
+        if (reader.getQuestionCount() != 1)
+            return respond(query, reader, DNSResponseEncoder.FORMERR, tcp, udpPayloadSize);
+        RecordType type = RecordType.getByCode(reader.getQuestionType());
+        if (reader.getQuestionClass() != 1 || type == RecordType.OTHER)
+            return respond(query, reader, DNSResponseEncoder.NOTIMP, tcp, udpPayloadSize);
+
+        DNSNode node = new DNSNode(reader.getQuestionName(), type);
+        try {
+            Set<ResourceRecord> results = resolver.apply(node);
+            if (!results.isEmpty())
+                return respond(query, reader, DNSResponseEncoder.NOERROR, answerRecords(node, results),
+                        Collections.emptyList(), tcp, udpPayloadSize);
+
+            NegativeResult negative = cache.getNegativeResult(node);
+            if (negative == null)
+                return respond(query, reader, DNSResponseEncoder.SERVFAIL, tcp, udpPayloadSize);
+
+            // RFC 2308: the SOA of the zone, with the TTL of the negative result
+            List<ResourceRecord> authority = new ArrayList<>();
+            for (ResourceRecord soa : cache.getCachedResults(new DNSNode(negative.getZone(), RecordType.SOA)))
+                authority.add(ResourceRecord.expiringAt(soa.getNode(),
+                        Math.min(soa.getExpirationTime(), negative.getExpirationTime()), soa.getTextResult(), null));
+            return respond(query, reader,
+                    negative.isNameError() ? DNSResponseEncoder.NXDOMAIN : DNSResponseEncoder.NOERROR,
+                    Collections.emptyList(), authority, tcp, udpPayloadSize);
+        } catch (RuntimeException e) {
+            return respond(query, reader, DNSResponseEncoder.SERVFAIL, tcp, udpPayloadSize);
+        }
+    }
+
+    /** Builds the answer section from the results of a query. The results of an alias are owned
+     * by its canonical name, and a client only accepts them along with the CNAME records leading
+     * to that name, so the chain is followed in the cache from the query name and returned first.
+     * If the chain is no longer cached, the results are returned as records of the query name.
+     *
+     * @param node    Query received from the client.
+     * @param results Records answering the query, all owned by the same name.
+     * @return The records of the answer section.
+     */
+    private List<ResourceRecord> answerRecords(DNSNode node, Set<ResourceRecord> results) {
+        String owner = results.iterator().next().getHostName();
+        String name = node.getHostName();
+        List<ResourceRecord> answers = new ArrayList<>();
+        for (int i = 0; i < MAX_CNAME_CHAIN && !name.equals(owner); i++) {
+            Set<ResourceRecord> cnames = cache.getCachedResults(new DNSNode(name, RecordType.CNAME));
+            if (cnames.isEmpty()) break;
+            ResourceRecord cname = cnames.iterator().next();
+            answers.add(cname);
+            name = cname.getTextResult();
+        }
+
+        if (name.equals(owner)) {
+            answers.addAll(results);
+        } else {
+            answers.clear();
+            for (ResourceRecord record : results)
+                answers.add(record.withNode(node));
+        }
+        return answers;
+    }
+
+    private static ByteBuffer respond(ByteBuffer query, DNSMessageReader reader, int rcode, boolean tcp,
+                                      int udpPayloadSize) {
+        return respond(query, reader, rcode, Collections.emptyList(), Collections.emptyList(), tcp, udpPayloadSize);
+    }
+
+    private static ByteBuffer respond(ByteBuffer query, DNSMessageReader reader, int rcode,
+                                      Collection<ResourceRecord> answers, Collection<ResourceRecord> authority,
+                                      boolean tcp, int udpPayloadSize) {
+        int maxSize = tcp ? MAX_MESSAGE_SIZE : Math.max(MIN_UDP_PAYLOAD, udpPayloadSize);
+        ByteBuffer response = ByteBuffer.allocate(Math.min(maxSize, MAX_MESSAGE_SIZE));
+        DNSResponseEncoder.encode(response, query, reader, rcode, answers, authority,
+                udpPayloadSize > 0 ? SERVER_UDP_PAYLOAD : 0);
+        response.flip();
+        return response;
+    }
+}
@@ -11,6 +11,17 @@ public class DNSServerResponse {
         this.transactionID = transactionID;
     }
 
+    /** Returns the result of a query that was not answered in time by the server. */
+    public static DNSServerResponse timeout(int transactionID) {
+        return new DNSServerResponse(null, transactionID);
+    }
+
+    /** Returns true if the server did not answer in time, in which case there is no response. */
+    public boolean isTimeout() {
+        return response == null;
+    }
+
+    /** Returns the response, or null if the query timed out. */
     public ByteBuffer getResponse() {
         return response;
     }
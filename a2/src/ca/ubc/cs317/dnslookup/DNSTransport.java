@@ -0,0 +1,193 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/** Multiplexed UDP transport used to exchange DNS messages with remote servers. A single
+ * non-blocking datagram channel is shared by every query, and a background thread waits on a
+ * selector for incoming responses. Each response is routed to the query waiting for it based on
+ * the transaction ID and the address of the server that sent it, so any number of queries (to
+ * the same or to different servers) may be in flight at the same time.
+ */
+public class DNSTransport implements Closeable {
+
+    /** Largest datagram that can be received, so responses are never cut short by the transport. */
+    private static final int MAX_UDP_PAYLOAD = 65535;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Thread receiver;
+    private final Map<PendingKey, PendingQuery> pending = new ConcurrentHashMap<>();
+
+    /** Opens a new transport, bound to an ephemeral local port, and starts the thread that
+     * receives responses.
+     *
+     * @throws IOException if the channel or selector could not be opened.
+     */
+    public DNSTransport() throws IOException {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        receiver = new Thread(this::receiveLoop, "dns-transport");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /** Reserves a transaction ID for a new query to a specific server. The ID is unique among the
+     * queries currently in flight to that server, so the response can be matched unambiguously.
+     * The returned query must be either completed (by receiving a response) or cancelled.
+     *
+     * @param server Address and port of the server the query will be sent to.
+     * @return A pending query with a reserved transaction ID.
+     */
+    public PendingQuery register(InetSocketAddress server) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            PendingQuery query = new PendingQuery(random.nextInt(0x10000), server);
+            if (pending.putIfAbsent(query, query) == null)
+                return query;
+        }
+    }
+
+    /** Sends a query message to the server associated to a pending query. The same pending query
+     * may be sent more than once (e.g., for retransmissions); any response with the same
+     * transaction ID will complete it.
+     *
+     * @param query   Pending query obtained from register.
+     * @param message Encoded DNS message, between its position and limit.
+     * @throws IOException if the message could not be sent.
+     */
+    public void send(PendingQuery query, ByteBuffer message) throws IOException {
+        channel.send(message, query.server);
+    }
+
+    /** Closes the transport. Queries still in flight are completed exceptionally. */
+    @Override
+    public void close() {
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        pending.values().forEach(query -> query.response.completeExceptionally(new ClosedSelectorException()));
+        pending.clear();
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_UDP_PAYLOAD);
+        PendingKey probe = new PendingKey(0, null);
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                selector.selectedKeys().clear();
+
+                // Drain every datagram currently available before waiting again
+                SocketAddress source;
+                while ((source = channel.receive(buffer)) != null) {
+                    buffer.flip();
+                    if (buffer.remaining() >= 2 && source instanceof InetSocketAddress) {
+                        probe.transactionID = buffer.getShort(0) & 0xFFFF;
+                        probe.server = (InetSocketAddress) source;
+                        PendingQuery query = pending.remove(probe);
+                        if (query != null) {
+                            ByteBuffer response = ByteBuffer.allocate(buffer.remaining());
+                            response.put(buffer).flip();
+                            query.response.complete(response);
+                        }
+                    }
+                    buffer.clear();
+                }
+            }
+        } catch (IOException | ClosedSelectorException ignored) {
+            // Transport was closed
+        }
+    }
+
+    /** A query sent (or about to be sent) through this transport, waiting for its response. */
+    public class PendingQuery extends PendingKey {
+        private final CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+
+        private PendingQuery(int transactionID, InetSocketAddress server) {
+            super(transactionID, server);
+        }
+
+        public int getTransactionID() {
+            return transactionID;
+        }
+
+        public InetSocketAddress getServer() {
+            return server;
+        }
+
+        /** Future completed with the response buffer once a matching response is received. */
+        public CompletableFuture<ByteBuffer> getResponse() {
+            return response;
+        }
+
+        /** Waits for the response to this query for a limited amount of time.
+         *
+         * @param timeoutMillis Maximum time to wait, in milliseconds.
+         * @return The response buffer, or null if no response was received in time.
+         * @throws IOException if the transport was closed while waiting.
+         */
+        public ByteBuffer await(long timeoutMillis) throws IOException {
+            try {
+                return response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a response", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Transport closed", e.getCause());
+            }
+        }
+
+        /** Stops waiting for a response. Any response received afterwards is discarded. */
+        public void cancel() {
+            pending.remove(this, this);
+            response.cancel(false);
+        }
+    }
+
+    /** Key used to match a response to its query. The receiving thread reuses a single mutable
+     * instance to look up every response.
+     */
+    private static class PendingKey {
+        int transactionID;
+        InetSocketAddress server;
+
+        private PendingKey(int transactionID, InetSocketAddress server) {
+            this.transactionID = transactionID;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PendingKey)) return false;
+
+            PendingKey that = (PendingKey) o;
+
+            if (transactionID != that.transactionID) return false;
+            return server.equals(that.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * transactionID + server.hashCode();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/** W-TinyLFU eviction policy used to keep the DNS cache within a budget of records and estimated
+ * bytes. New nodes enter a small LRU window (1% of the capacity). Nodes leaving the window are
+ * candidates to the main space, a segmented LRU split into a probation and a protected segment;
+ * a candidate is only admitted if a frequency sketch estimates that it is accessed more often
+ * than the probation node it would replace. Names seen once (e.g., random CDN or tracking
+ * subdomains) therefore cannot push popular names out of the cache.
+ *
+ * Reads are recorded on a best-effort basis: if another thread is updating the policy, the access
+ * is dropped instead of blocking the reader. Callers must never hold the lock on a node while
+ * calling this policy, since the policy locks the nodes it evicts.
+ */
+public class EvictionPolicy {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final int NEW = 0;
+    private static final int LINKED = 1;
+    private static final int DEAD = 2;
+
+    /** Callback used to remove an evicted node from the cache. */
+    public interface Evictor {
+        /** Removes a node from the cache.
+         *
+         * @param node Node chosen for eviction.
+         * @return true if the node was removed, or false if it had already been removed.
+         */
+        boolean evict(Node node);
+    }
+
+    /** Element tracked by the policy. Subclassed by the cache entries themselves, so that the
+     * policy needs no allocation or lookup of its own.
+     */
+    public static class Node {
+        private final int hash;
+        private Node prev;
+        private Node next;
+        private int queue;
+        private int state = NEW;
+        private long records;
+        private long bytes;
+
+        protected Node(Object key) {
+            this.hash = key.hashCode();
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final AccessOrderList window = new AccessOrderList();
+    private final AccessOrderList probation = new AccessOrderList();
+    private final AccessOrderList protectedSegment = new AccessOrderList();
+
+    private long maxRecords;
+    private long maxBytes;
+    private long totalRecords;
+    private long totalBytes;
+    private long windowRecords;
+    private long protectedRecords;
+
+    private long evictionCount;
+    private long evictedRecords;
+    private long evictedBytes;
+    private long rejectedCount;
+
+    /** Creates a policy with the specified limits.
+     *
+     * @param maxRecords Maximum number of records in the cache, or Long.MAX_VALUE for no limit.
+     * @param maxBytes   Maximum estimated size of the cache, or Long.MAX_VALUE for no limit.
+     */
+    public EvictionPolicy(long maxRecords, long maxBytes) {
+        this.sketch = new FrequencySketch(sketchSize(maxRecords));
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Changes the limits of the cache. Nodes are evicted the next time a record is written.
+     *
+     * @param maxRecords Maximum number of records in the cache, or Long.MAX_VALUE for no limit.
+     * @param maxBytes   Maximum estimated size of the cache, or Long.MAX_VALUE for no limit.
+     */
+    public void setLimits(long maxRecords, long maxBytes) {
+        lock.lock();
+        try {
+            this.maxRecords = maxRecords;
+            this.maxBytes = maxBytes;
+            sketch.ensureCapacity(sketchSize(maxRecords));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records a read of a node. The access may be ignored if the policy is busy.
+     *
+     * @param node Node that was read.
+     */
+    public void recordAccess(Node node) {
+        if (!lock.tryLock()) return;
+        try {
+            sketch.increment(node.hash);
+            if (node.state == LINKED)
+                onHit(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records a change in the size of a node, adding the node to the policy if it is new, and
+     * evicts nodes until the cache is within its limits.
+     *
+     * @param node         Node that was written.
+     * @param recordsDelta Change in the number of records of the node.
+     * @param bytesDelta   Change in the estimated size of the node.
+     * @param evictor      Callback used to remove evicted nodes from the cache.
+     */
+    public void recordWrite(Node node, long recordsDelta, long bytesDelta, Evictor evictor) {
+        lock.lock();
+        try {
+            if (node.state == DEAD) return;
+            if (node.state == NEW) {
+                node.state = LINKED;
+                node.queue = WINDOW;
+                window.addFirst(node);
+                sketch.increment(node.hash);
+            }
+            node.records += recordsDelta;
+            node.bytes += bytesDelta;
+            totalRecords += recordsDelta;
+            totalBytes += bytesDelta;
+            if (node.queue == WINDOW)
+                windowRecords += recordsDelta;
+            else if (node.queue == PROTECTED)
+                protectedRecords += recordsDelta;
+
+            evictIfNeeded(evictor);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops tracking a node that was removed from the cache for another reason (e.g., expiry).
+     *
+     * @param node Node removed from the cache.
+     */
+    public void remove(Node node) {
+        lock.lock();
+        try {
+            unlink(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the estimated frequency of recent accesses to a node, between 0 and 15.
+     *
+     * @param key Key of the node.
+     * @return Estimated number of recent accesses.
+     */
+    public int frequency(Object key) {
+        lock.lock();
+        try {
+            return sketch.frequency(key.hashCode());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a snapshot of the size and eviction counters of the cache.
+     *
+     * @return Cache statistics.
+     */
+    public DNSCacheStats stats() {
+        lock.lock();
+        try {
+            return new DNSCacheStats(totalRecords, totalBytes, maxRecords, maxBytes,
+                    evictionCount, evictedRecords, evictedBytes, rejectedCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onHit(Node node) {
+        if (node.queue == PROBATION) {
+            // Second access while in the main space: promote to the protected segment
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedSegment.addFirst(node);
+            protectedRecords += node.records;
+
+            long protectedMax = (capacity() - windowMax()) * 4 / 5;
+            while (protectedRecords > protectedMax && protectedSegment.tail != node) {
+                Node demoted = protectedSegment.tail;
+                protectedSegment.remove(demoted);
+                protectedRecords -= demoted.records;
+                demoted.queue = PROBATION;
+                probation.addFirst(demoted);
+            }
+        } else if (node.queue == PROTECTED) {
+            protectedSegment.moveToFront(node);
+        } else {
+            window.moveToFront(node);
+        }
+    }
+
+    private void evictIfNeeded(Evictor evictor) {
+        // Nodes leaving the window become candidates at the front of the probation segment
+        long windowMax = windowMax();
+        Node candidate = null;
+        int candidates = 0;
+        while (windowRecords > windowMax && window.tail != null && window.tail != window.head) {
+            Node node = window.tail;
+            window.remove(node);
+            windowRecords -= node.records;
+            node.queue = PROBATION;
+            probation.addFirst(node);
+            if (candidate == null)
+                candidate = node;
+            candidates++;
+        }
+
+        while (totalRecords > maxRecords || totalBytes > maxBytes) {
+            Node victim = probation.tail;
+            if (victim == null) victim = protectedSegment.tail;
+            if (victim == null) victim = window.tail;
+            if (victim == null) break;
+
+            // Admit the oldest candidate only if it is more popular than the victim it displaces
+            Node evicted = victim;
+            if (candidates > 0 && candidate != victim
+                    && sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+                evicted = candidate;
+                rejectedCount++;
+            }
+            if (candidates > 0 && (evicted == candidate || victim == candidate)) {
+                candidate = --candidates > 0 ? candidate.prev : null;
+            }
+
+            long records = evicted.records;
+            long bytes = evicted.bytes;
+            boolean removed = evictor.evict(evicted);
+            unlink(evicted);
+            if (removed) {
+                evictionCount++;
+                evictedRecords += records;
+                evictedBytes += bytes;
+            }
+        }
+    }
+
+    private void unlink(Node node) {
+        if (node.state == LINKED) {
+            if (node.queue == WINDOW) {
+                window.remove(node);
+                windowRecords -= node.records;
+            } else if (node.queue == PROBATION) {
+                probation.remove(node);
+            } else {
+                protectedSegment.remove(node);
+                protectedRecords -= node.records;
+            }
+            totalRecords -= node.records;
+            totalBytes -= node.bytes;
+        }
+        node.state = DEAD;
+    }
+
+    private long capacity() {
+        return maxRecords == Long.MAX_VALUE ? totalRecords : maxRecords;
+    }
+
+    private long windowMax() {
+        return Math.max(1, capacity() / 100);
+    }
+
+    private static long sketchSize(long maxRecords) {
+        return maxRecords == Long.MAX_VALUE ? 1 << 16 : maxRecords;
+    }
+
+    /** Doubly-linked list of nodes, ordered from the most to the least recently used. */
+    private static class AccessOrderList {
+        private Node head;
+        private Node tail;
+
+        private void addFirst(Node node) {
+            node.prev = null;
+            node.next = head;
+            if (head != null)
+                head.prev = node;
+            else
+                tail = node;
+            head = node;
+        }
+
+        private void remove(Node node) {
+            if (node.prev != null)
+                node.prev.next = node.next;
+            else
+                head = node.next;
+            if (node.next != null)
+                node.next.prev = node.prev;
+            else
+                tail = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+
+        private void moveToFront(Node node) {
+            if (head == node) return;
+            remove(node);
+            addFirst(node);
+        }
+    }
+}
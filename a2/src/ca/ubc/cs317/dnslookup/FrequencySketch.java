@@ -0,0 +1,90 @@
+package ca.ubc.cs317.dnslookup;
+
+/** Probabilistic estimate of how often each key was accessed recently, used by the cache to decide
+ * which names are worth keeping. It is a count-min sketch of 4-bit counters, sixteen of them
+ * packed in each long, with four counters per key. Once the number of recorded accesses reaches a
+ * sample size proportional to the table, every counter is halved, so the estimates favour recent
+ * popularity over history. This class is not thread-safe; callers must synchronize access.
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private long[] table;
+    private int sampleSize;
+    private int additions;
+
+    /** Creates a sketch sized for a given number of distinct keys.
+     *
+     * @param expectedKeys Number of distinct keys expected to be tracked.
+     */
+    public FrequencySketch(long expectedKeys) {
+        ensureCapacity(expectedKeys);
+    }
+
+    /** Resizes the sketch for a given number of distinct keys. Resizing discards every counter.
+     *
+     * @param expectedKeys Number of distinct keys expected to be tracked.
+     */
+    public void ensureCapacity(long expectedKeys) {
+        int size = (int) Math.min(1 << 24, Math.max(16, Long.highestOneBit(Math.max(1, expectedKeys) - 1) << 1));
+        if (table != null && table.length >= size) return;
+        table = new long[size];
+        sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * size);
+        additions = 0;
+    }
+
+    /** Returns the estimated number of recent accesses to a key, up to 15.
+     *
+     * @param hash Hash code of the key.
+     * @return Estimated frequency of the key.
+     */
+    public int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int offset = offsetOf(hash, i);
+            frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xF));
+        }
+        return frequency;
+    }
+
+    /** Records an access to a key.
+     *
+     * @param hash Hash code of the key.
+     */
+    public void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int offset = offsetOf(hash, i);
+            if (((table[index] >>> offset) & 0xF) < MAX_COUNT) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize)
+            reset();
+    }
+
+    /** Halves every counter, so that old accesses gradually stop counting. */
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & (table.length - 1);
+    }
+
+    private int offsetOf(int hash, int i) {
+        // Each of the four hash functions uses a distinct quarter of the counters of a long
+        return (((hash >>> (i << 3)) & 3) + (i << 2)) << 2;
+    }
+}
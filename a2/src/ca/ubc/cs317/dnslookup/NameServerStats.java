@@ -0,0 +1,179 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/** Table of statistics about each upstream DNS server: smoothed round-trip time (SRTT), RTT
+ * variance and number of timeouts. The smoothed values are updated as in RFC 6298 every time a
+ * server answers a query that was not retransmitted. The table is used to choose, among the
+ * nameservers of a zone, the one expected to answer fastest, while occasionally trying the
+ * others so that their statistics do not become stale, and to compute the retransmission timeout
+ * (RTO) of each server.
+ */
+public class NameServerStats {
+
+    /** Probability of trying another server first instead of the best one. */
+    private static final double EXPLORATION_RATE = 0.05;
+    /** Number of consecutive timeouts after which a server is considered unhealthy. */
+    private static final int UNHEALTHY_TIMEOUTS = 3;
+    /** Time after which an unhealthy server is given another chance, in milliseconds. */
+    private static final long UNHEALTHY_RETRY_MILLIS = 30000;
+    /** Penalty added to the expected RTT of a server for each consecutive timeout, in milliseconds. */
+    private static final double TIMEOUT_PENALTY_MILLIS = 1000;
+    /** RTO of a server never measured. Lower than the 1 s of RFC 6298, since DNS servers are
+     * usually much closer than that. */
+    private static final double INITIAL_RTO_MILLIS = 400;
+    /** Bounds of the RTO. The lower bound keeps a little slack above the RTT of nearby servers. */
+    private static final double MIN_RTO_MILLIS = 50;
+    private static final double MAX_RTO_MILLIS = 5000;
+    /** Clock granularity (G in RFC 6298), in milliseconds. */
+    private static final double CLOCK_GRANULARITY_MILLIS = 1;
+
+    private static NameServerStats instance = new NameServerStats();
+
+    private final Map<InetAddress, ServerStats> servers = new ConcurrentHashMap<>();
+
+    /** Returns the single table of server statistics. */
+    public static NameServerStats getInstance() {
+        return instance;
+    }
+
+    /** Statistics about a single server. */
+    public static class ServerStats {
+        private double srtt = -1;
+        private double rttvar;
+        private long responses;
+        private long timeouts;
+        private int consecutiveTimeouts;
+        private long lastTimeout;
+
+        private synchronized void addSample(double rtt) {
+            if (srtt < 0) {
+                srtt = rtt;
+                rttvar = rtt / 2;
+            } else {
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+                srtt = 0.875 * srtt + 0.125 * rtt;
+            }
+            responses++;
+            consecutiveTimeouts = 0;
+        }
+
+        private synchronized void addTimeout() {
+            timeouts++;
+            consecutiveTimeouts++;
+            lastTimeout = DNSClock.currentTimeMillis();
+        }
+
+        /** Smoothed round-trip time, in milliseconds, or -1 if the server never answered. */
+        public synchronized double getSRTT() {
+            return srtt;
+        }
+
+        /** Round-trip time variance, in milliseconds. */
+        public synchronized double getRTTVar() {
+            return rttvar;
+        }
+
+        public synchronized long getResponses() {
+            return responses;
+        }
+
+        public synchronized long getTimeouts() {
+            return timeouts;
+        }
+
+        public synchronized int getConsecutiveTimeouts() {
+            return consecutiveTimeouts;
+        }
+
+        /** Retransmission timeout of the next query to the server, in milliseconds: SRTT + 4 RTTVAR
+         * (RFC 6298, section 2), doubled for every consecutive timeout until the server answers a
+         * query that was not retransmitted again (section 5.5).
+         */
+        public synchronized double getRTO() {
+            double rto = srtt < 0 ? INITIAL_RTO_MILLIS : srtt + Math.max(CLOCK_GRANULARITY_MILLIS, 4 * rttvar);
+            rto = Math.max(MIN_RTO_MILLIS, rto) * (1L << Math.min(consecutiveTimeouts, 16));
+            return Math.min(MAX_RTO_MILLIS, rto);
+        }
+
+        /** A server is unhealthy after several consecutive timeouts, until some time has passed. */
+        public synchronized boolean isHealthy() {
+            return consecutiveTimeouts < UNHEALTHY_TIMEOUTS ||
+                    DNSClock.currentTimeMillis() - lastTimeout > UNHEALTHY_RETRY_MILLIS;
+        }
+
+        /** Expected time for the server to answer, used to rank servers; lower is better. Servers
+         * never measured get a small random score, so each of them is tried early on.
+         */
+        private synchronized double score() {
+            double expected = srtt < 0 ? ThreadLocalRandom.current().nextDouble(10) : srtt;
+            return expected + consecutiveTimeouts * TIMEOUT_PENALTY_MILLIS;
+        }
+    }
+
+    /** Records the round-trip time of a query answered by a server. Samples should not be taken
+     * from retransmitted queries, since the response may belong to any of the transmissions.
+     *
+     * @param server     Address of the server.
+     * @param rttNanos   Time between sending the query and receiving the response, in nanoseconds.
+     */
+    public void recordResponse(InetAddress server, long rttNanos) {
+        get(server).addSample(rttNanos / 1e6);
+    }
+
+    /** Records a query to a server that was not answered in time.
+     *
+     * @param server Address of the server.
+     */
+    public void recordTimeout(InetAddress server) {
+        get(server).addTimeout();
+    }
+
+    /** Returns the statistics of a server, creating them if the server was never used.
+     *
+     * @param server Address of the server.
+     * @return Statistics of the server.
+     */
+    public ServerStats get(InetAddress server) {
+        return servers.computeIfAbsent(server, address -> new ServerStats());
+    }
+
+    /** Orders a list of equivalent servers by preference: healthy servers first, by increasing
+     * expected RTT. Once in a while, a random other server is placed first instead, to refresh
+     * its statistics.
+     *
+     * @param candidates Addresses of the servers.
+     * @return A new list with the same addresses, best first.
+     */
+    public List<InetAddress> order(Collection<InetAddress> candidates) {
+        List<InetAddress> ordered = new ArrayList<>(new LinkedHashSet<>(candidates));
+        if (ordered.size() < 2) return ordered;
+
+        Map<InetAddress, Double> scores = new HashMap<>();
+        Map<InetAddress, Boolean> healthy = new HashMap<>();
+        for (InetAddress server : ordered) {
+            ServerStats stats = get(server);
+            scores.put(server, stats.score());
+            healthy.put(server, stats.isHealthy());
+        }
+        ordered.sort(Comparator.comparing((InetAddress server) -> !healthy.get(server))
+                .thenComparing(scores::get));
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < EXPLORATION_RATE)
+            Collections.swap(ordered, 0, 1 + random.nextInt(ordered.size() - 1));
+        return ordered;
+    }
+
+    /** Performs an action for each server with statistics, in no particular order.
+     *
+     * @param consumer Action to be performed for each server and its statistics.
+     */
+    public void forEachServer(BiConsumer<InetAddress, ServerStats> consumer) {
+        servers.forEach(consumer);
+    }
+}
@@ -0,0 +1,93 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.Serializable;
+
+/** A negative result records that a DNS query has no answer (RFC 2308), either because the host
+ * name does not exist (NXDOMAIN) or because it has no record of the requested type (NODATA). Like
+ * a resource record, it is cached only for a limited time, taken from the SOA record of the zone
+ * that returned it.
+ */
+public class NegativeResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DNSNode node;
+    private final long expirationTime;
+    private final boolean nameError;
+    private final String zone;
+
+    /** Creates a negative result for a query.
+     *
+     * @param node      Host name and record type of the query that has no answer.
+     * @param ttl       Number of seconds for which the result may be cached.
+     * @param nameError true if the host name does not exist (NXDOMAIN), or false if it only has no
+     *                  record of the requested type (NODATA).
+     * @param zone      Name of the zone whose SOA record was returned with the response.
+     */
+    public NegativeResult(DNSNode node, long ttl, boolean nameError, String zone) {
+        this.node = node;
+        this.expirationTime = DNSClock.currentTimeMillis() + (ttl * 1000);
+        this.nameError = nameError;
+        this.zone = zone;
+    }
+
+    private NegativeResult(DNSNode node, boolean nameError, String zone, long expirationTime) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.nameError = nameError;
+        this.zone = zone;
+    }
+
+    /** Creates a negative result with a given expiration time instead of a TTL, e.g. to restore a
+     * result previously saved to a file.
+     *
+     * @param node           Host name and record type of the query that has no answer.
+     * @param expirationTime Time at which the result expires, based on DNSClock.
+     * @param nameError      true for NXDOMAIN, false for NODATA.
+     * @param zone           Name of the zone whose SOA record was returned with the response.
+     * @return A new negative result.
+     */
+    static NegativeResult expiringAt(DNSNode node, long expirationTime, boolean nameError, String zone) {
+        return new NegativeResult(node, nameError, zone, expirationTime);
+    }
+
+    public DNSNode getNode() {
+        return node;
+    }
+
+    public boolean isNameError() {
+        return nameError;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    /** The remaining TTL for this result, in seconds, rounded up. */
+    public long getTTL() {
+        return (expirationTime - DNSClock.currentTimeMillis() + 999) / 1000;
+    }
+
+    public boolean isStillValid() {
+        return expirationTime > DNSClock.currentTimeMillis();
+    }
+
+    /** Returns the time at which this result expires, based on DNSClock. */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    /** Returns a rough estimate of the heap used by this result when cached, not including the
+     * host name, which is shared with the cache key.
+     *
+     * @return Estimated size of this result, in bytes.
+     */
+    public long estimateSize() {
+        return 48 + 40 + zone.length();
+    }
+
+    @Override
+    public String toString() {
+        return nameError ? "NXDOMAIN" : "NODATA";
+    }
+}
@@ -0,0 +1,45 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/** A small pool of reusable objects, e.g. direct buffers, shared by all threads. Unlike a
+ * ThreadLocal, it keeps reusing the same objects when every task runs on a new (virtual) thread.
+ *
+ * Objects are taken with acquire and given back with release once the caller no longer uses them.
+ * If the pool is empty, a new object is created; if it is full, a released object is dropped, so
+ * the pool never holds more than its capacity however many threads use it at once.
+ *
+ * @param <T> Type of the pooled objects.
+ */
+public class ObjectPool<T> {
+
+    private final ArrayBlockingQueue<T> idle;
+    private final Supplier<T> factory;
+
+    /** Creates an empty pool.
+     *
+     * @param capacity Maximum number of idle objects kept for reuse.
+     * @param factory  Creates an object when none is idle.
+     */
+    public ObjectPool(int capacity, Supplier<T> factory) {
+        this.idle = new ArrayBlockingQueue<>(capacity);
+        this.factory = factory;
+    }
+
+    /** Takes an idle object, or creates one if there is none. */
+    public T acquire() {
+        T object = idle.poll();
+        return object != null ? object : factory.get();
+    }
+
+    /** Gives back an object taken with acquire; the caller must not use it anymore. */
+    public void release(T object) {
+        idle.offer(object);
+    }
+
+    /** Number of idle objects in the pool. */
+    public int getIdle() {
+        return idle.size();
+    }
+}
@@ -2,30 +2,174 @@ package ca.ubc.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
- * and is represented by an expiration time calculated as a delta from the current time.
+ * and is represented by an expiration time calculated as a delta from the current time, based on
+ * the coarse monotonic DNSClock.
+ *
+ * Addresses are stored in two primitive fields, as the two halves of an IPv6 address; IPv4
+ * addresses are stored as IPv4-mapped IPv6 addresses (::ffff:a.b.c.d), as done by InetAddress
+ * itself. The InetAddress and textual forms of an address are only created when they are
+ * requested, e.g. to print the record, and are not kept, so an address record takes no more heap
+ * than the record object itself.
  */
 public class ResourceRecord implements Serializable {
 
+    private static final long serialVersionUID = 1L;
+
+    /** Upper half of the lower 64 bits of an IPv4-mapped IPv6 address. */
+    private static final long IPV4_MAPPED = 0xFFFFL << 32;
+
     private DNSNode node;
-    private Date expirationTime;
+    private long expirationTime;
+    private int ttl;
+    /** Textual result, or null for an address record. */
     private String textResult;
-    private InetAddress inetResult;
+    private long addressHigh;
+    private long addressLow;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
-        this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
-        this.textResult = result;
-        this.inetResult = null;
+        this(new DNSNode(hostName, type), ttl, result);
     }
 
     public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
-        this.inetResult = result;
+        this(new DNSNode(hostName, type), ttl, result);
+    }
+
+    /** Creates an address record from the raw bytes of the address, e.g. in a DNS message, without
+     * creating an InetAddress.
+     *
+     * @param hostName Host name of the record.
+     * @param type     Record type, normally A or AAAA.
+     * @param ttl      TTL of the record, in seconds.
+     * @param buffer   Buffer containing the address.
+     * @param offset   Position of the address in the buffer.
+     * @param length   Length of the address: 4 for IPv4, or 16 for IPv6.
+     * @throws IllegalArgumentException if the length is not a valid address length.
+     */
+    public ResourceRecord(String hostName, RecordType type, long ttl, ByteBuffer buffer, int offset, int length) {
+        this(new DNSNode(hostName, type), ttl, buffer, offset, length);
+    }
+
+    /** Creates a record with a textual result for an existing node, e.g. the node the cache keeps
+     * the records of that name and type under (see DNSCache.getNode), so that records of the same
+     * node share it instead of each having their own.
+     *
+     * @param node   Host name and record type of the record.
+     * @param ttl    TTL of the record, in seconds.
+     * @param result Textual result of the record.
+     */
+    public ResourceRecord(DNSNode node, long ttl, String result) {
+        this.node = node;
+        this.ttl = (int) Math.min(ttl, Integer.MAX_VALUE);
+        this.expirationTime = DNSClock.currentTimeMillis() + ttl * 1000;
+        this.textResult = result;
+    }
+
+    public ResourceRecord(DNSNode node, long ttl, InetAddress result) {
+        this(node, ttl, ByteBuffer.wrap(result.getAddress()), 0, result.getAddress().length);
+    }
+
+    /** Creates an address record for an existing node from the raw bytes of the address.
+     *
+     * @param node   Host name and record type of the record, normally A or AAAA.
+     * @param ttl    TTL of the record, in seconds.
+     * @param buffer Buffer containing the address.
+     * @param offset Position of the address in the buffer.
+     * @param length Length of the address: 4 for IPv4, or 16 for IPv6.
+     * @throws IllegalArgumentException if the length is not a valid address length.
+     */
+    public ResourceRecord(DNSNode node, long ttl, ByteBuffer buffer, int offset, int length) {
+        this(node, ttl, (String) null);
+        setAddress(buffer, offset, length);
+    }
+
+    private ResourceRecord(DNSNode node, String textResult, long expirationTime) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.ttl = (int) Math.max(0, (expirationTime - DNSClock.currentTimeMillis()) / 1000);
+        this.textResult = textResult;
+    }
+
+    /** Creates a record with a given expiration time instead of a TTL, e.g. to restore a record
+     * previously saved to a file. The original TTL of the record is taken to be its remaining TTL.
+     *
+     * @param node           Host name and record type of the record.
+     * @param expirationTime Time at which the record expires, based on DNSClock.
+     * @param textResult     Textual result of the record.
+     * @param inetResult     Address result of the record, or null if the record has no address.
+     * @return A new resource record.
+     */
+    static ResourceRecord expiringAt(DNSNode node, long expirationTime, String textResult, InetAddress inetResult) {
+        if (inetResult == null)
+            return new ResourceRecord(node, textResult, expirationTime);
+        byte[] address = inetResult.getAddress();
+        return expiringAt(node, expirationTime, ByteBuffer.wrap(address), 0, address.length);
+    }
+
+    /** Creates an address record with a given expiration time, from the raw bytes of the address.
+     *
+     * @param node           Host name and record type of the record.
+     * @param expirationTime Time at which the record expires, based on DNSClock.
+     * @param buffer         Buffer containing the address.
+     * @param offset         Position of the address in the buffer.
+     * @param length         Length of the address: 4 for IPv4, or 16 for IPv6.
+     * @return A new resource record.
+     * @throws IllegalArgumentException if the length is not a valid address length.
+     */
+    static ResourceRecord expiringAt(DNSNode node, long expirationTime, ByteBuffer buffer, int offset, int length) {
+        ResourceRecord record = new ResourceRecord(node, null, expirationTime);
+        record.setAddress(buffer, offset, length);
+        return record;
+    }
+
+    /** Creates a record with the same result and expiration time for another host name, e.g. to
+     * cache the answer found through a CNAME record under the alias itself.
+     *
+     * @param hostName Host name of the new record.
+     * @return A new resource record.
+     */
+    public ResourceRecord withHostName(String hostName) {
+        return withNode(new DNSNode(hostName, getType()));
+    }
+
+    /** Creates a record with the same result and expiration time for another node of the same
+     * type, e.g. the node the cache keeps the records of an alias under.
+     *
+     * @param node Host name and record type of the new record.
+     * @return A new resource record.
+     */
+    public ResourceRecord withNode(DNSNode node) {
+        ResourceRecord record = new ResourceRecord(node, textResult, expirationTime);
+        record.ttl = ttl;
+        record.addressHigh = addressHigh;
+        record.addressLow = addressLow;
+        return record;
+    }
+
+    /** Returns the lower 64 bits of the IPv4-mapped IPv6 address of an IPv4 address, i.e. the
+     * value of getAddressLow for a record with that address.
+     *
+     * @param address IPv4 address, as an int in network byte order.
+     * @return The lower 64 bits of ::ffff:address.
+     */
+    static long mapIPv4(int address) {
+        return IPV4_MAPPED | (address & 0xFFFFFFFFL);
+    }
+
+    private void setAddress(ByteBuffer buffer, int offset, int length) {
+        if (length == 4) {
+            addressLow = mapIPv4(buffer.getInt(offset));
+        } else if (length == 16) {
+            addressHigh = buffer.getLong(offset);
+            addressLow = buffer.getLong(offset + 8);
+        } else {
+            throw new IllegalArgumentException("Invalid address length " + length);
+        }
     }
 
     public DNSNode getNode() {
@@ -48,7 +192,25 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - DNSClock.currentTimeMillis() + 999) / 1000;
+    }
+
+    /** Returns the TTL this record had when it was obtained from the server.
+     *
+     * @return The original number of seconds this record is valid for.
+     */
+    public long getOriginalTTL() {
+        return ttl;
+    }
+
+    /** Returns the time at which only a fraction of the original TTL of this record is left, e.g.
+     * to refresh the record before it expires.
+     *
+     * @param fraction Fraction of the TTL, between 0 and 1.
+     * @return The time at which the fraction is reached, based on DNSClock.
+     */
+    public long getRefreshTime(double fraction) {
+        return expirationTime - (long) (ttl * 1000L * fraction);
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +220,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime > DNSClock.currentTimeMillis();
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,15 +232,99 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime < record.expirationTime;
+    }
+
+    /** Returns the time at which this record expires, based on DNSClock.
+     *
+     * @return The expiration time of this record, in milliseconds since the epoch.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    /** Returns a rough estimate of the heap used by this record when cached, including its text
+     * result, but not its node, which is shared with the cache key.
+     *
+     * @return Estimated size of this record, in bytes.
+     */
+    public long estimateSize() {
+        // Record and its slot in the node's array, plus the text result object if any
+        long size = 48 + 4;
+        if (textResult != null)
+            size += 56 + textResult.length();
+        return size;
+    }
+
+    /** Returns true if the result of this record is an address (e.g., an A or AAAA record).
+     *
+     * @return True for an address record, false for a record with a textual result.
+     */
+    public boolean hasAddress() {
+        return textResult == null;
+    }
+
+    /** Returns the length of the address of this record: 4 for an IPv4 address (including
+     * IPv4-mapped IPv6 addresses, as with InetAddress), 16 for an IPv6 address.
+     *
+     * @return Length of the address in bytes, or 0 if this record has no address.
+     */
+    public int getAddressLength() {
+        if (textResult != null) return 0;
+        return addressHigh == 0 && (addressLow & 0xFFFFFFFF00000000L) == IPV4_MAPPED ? 4 : 16;
+    }
+
+    /** Writes the address of this record (see getAddressLength) into a buffer, at its position.
+     *
+     * @param buffer Buffer to which the address is written.
+     */
+    public void putAddress(ByteBuffer buffer) {
+        if (getAddressLength() == 4) {
+            buffer.putInt((int) addressLow);
+        } else {
+            buffer.putLong(addressHigh);
+            buffer.putLong(addressLow);
+        }
     }
 
+    /** Returns the upper 64 bits of the address of this record, as an IPv6 address (0 for an IPv4
+     * address). Together with getAddressLow, identifies the address without creating an object.
+     */
+    long getAddressHigh() {
+        return addressHigh;
+    }
+
+    /** Returns the lower 64 bits of the address of this record, as an IPv6 address (IPv4
+     * addresses are IPv4-mapped).
+     */
+    long getAddressLow() {
+        return addressLow;
+    }
+
+    /** Returns the textual result of this record. For an address record, the text is formatted
+     * as by InetAddress.getHostAddress each time this method is called.
+     *
+     * @return The textual result.
+     */
     public String getTextResult() {
-        return textResult;
+        if (textResult != null) return textResult;
+        return getInetResult().getHostAddress();
     }
 
+    /** Returns the address result of this record. A new InetAddress is created each time this
+     * method is called.
+     *
+     * @return The address, or null if this record has no address.
+     */
     public InetAddress getInetResult() {
-        return inetResult;
+        if (textResult != null) return null;
+        ByteBuffer address = ByteBuffer.allocate(getAddressLength());
+        putAddress(address);
+        try {
+            return InetAddress.getByAddress(address.array());
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e); // Not possible, the length is valid
+        }
     }
 
     @Override
@@ -89,14 +335,15 @@ public class ResourceRecord implements Serializable {
         ResourceRecord record = (ResourceRecord) o;
 
         if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
+        if (textResult != null) return textResult.equals(record.textResult);
+        return record.textResult == null && addressHigh == record.addressHigh && addressLow == record.addressLow;
     }
 
     @Override
     public int hashCode() {
         int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
+        result = 31 * result + (textResult != null ? textResult.hashCode()
+                : 31 * Long.hashCode(addressHigh) + Long.hashCode(addressLow));
         return result;
     }
 }
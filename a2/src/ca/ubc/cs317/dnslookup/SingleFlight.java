@@ -0,0 +1,97 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.Map;
+import java.util.concurrent.*;
+
+/** Coalesces concurrent executions of the same task. While a task is running for a key, other
+ * callers asking to run a task for the same key wait for it to finish instead of running their
+ * own, and then share its outcome (e.g., the records it added to the cache).
+ *
+ * A caller never waits for a task when that could deadlock: if the task for the key is being
+ * run by the calling thread itself (a recursive lookup), or by a thread that is, directly or
+ * through other threads, waiting for a task run by the calling thread. As a last resort, waiting
+ * is bounded by a timeout, after which the caller runs the task on its own.
+ *
+ * @param <K> Type of the keys identifying the tasks.
+ */
+public class SingleFlight<K> {
+
+    private final Map<K, Flight> flights = new ConcurrentHashMap<>();
+    /** Key of the flight each thread is waiting for, to detect cycles of waiting threads. */
+    private final Map<Thread, K> waiting = new ConcurrentHashMap<>();
+    private final long timeoutMillis;
+
+    /** A task in progress, run by its owner thread. */
+    private class Flight {
+        private final Thread owner = Thread.currentThread();
+        private final CountDownLatch done = new CountDownLatch(1);
+    }
+
+    /** Creates a group of coalesced tasks.
+     *
+     * @param timeoutMillis Maximum time to wait for a task run by another thread, in milliseconds.
+     */
+    public SingleFlight(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /** Runs a task for a key, unless a task for the same key is already running, in which case
+     * this waits for it to finish.
+     *
+     * @param key  Key identifying the task.
+     * @param task Task to be run.
+     * @return True if the task was run by the caller, false if the caller waited for another one.
+     */
+    public boolean run(K key, Runnable task) {
+        Flight flight = new Flight();
+        Flight existing = flights.putIfAbsent(key, flight);
+        if (existing != null && !wouldDeadlock(existing) && await(key, existing))
+            return false;
+
+        // Register as the owner if there is no other flight left; otherwise run without sharing
+        boolean owner = existing == null || flights.putIfAbsent(key, flight) == null;
+        try {
+            task.run();
+        } finally {
+            if (owner) {
+                flights.remove(key, flight);
+                flight.done.countDown();
+            }
+        }
+        return true;
+    }
+
+    /** Returns the number of tasks currently running. */
+    public int size() {
+        return flights.size();
+    }
+
+    /** Waits for a flight run by another thread to finish.
+     *
+     * @return True if the flight finished, false if the timeout expired first.
+     */
+    private boolean await(K key, Flight flight) {
+        waiting.put(Thread.currentThread(), key);
+        try {
+            return flight.done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting.remove(Thread.currentThread());
+        }
+    }
+
+    /** Checks if waiting for a flight would close a cycle of threads waiting for each other. */
+    private boolean wouldDeadlock(Flight flight) {
+        Thread current = Thread.currentThread();
+        // Bound the walk, since the graph may change while it is followed
+        for (int steps = 0; flight != null && steps < 64; steps++) {
+            if (flight.owner == current) return true;
+            K key = waiting.get(flight.owner);
+            if (key == null) return false;
+            flight = flights.get(key);
+        }
+        return flight != null;
+    }
+}
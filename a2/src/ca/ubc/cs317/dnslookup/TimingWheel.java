@@ -0,0 +1,118 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.ObjLongConsumer;
+
+/** Hashed timing wheel used to expire items in the background. Time is divided into ticks, and
+ * each item is placed in the slot of the tick at which it is due, together with the number of
+ * full rotations of the wheel left before that tick. Scheduling an item only adds it to a
+ * lock-free queue; a single background thread moves scheduled items into their slots and, at
+ * every tick, hands the items that are due to the expiration action.
+ *
+ * @param <T> Type of the scheduled items.
+ */
+public class TimingWheel<T> {
+
+    private final long tickMillis;
+    private final int mask;
+    private final Queue<Timeout<T>>[] slots;
+    private final Queue<Timeout<T>> incoming = new ConcurrentLinkedQueue<>();
+    private final ObjLongConsumer<T> action;
+    private long currentTick;
+
+    /** Creates a timing wheel and starts the thread that advances it.
+     *
+     * @param name       Name of the background thread.
+     * @param tickMillis Duration of each tick, in milliseconds.
+     * @param slotCount  Number of slots in the wheel, rounded up to a power of two.
+     * @param action     Action performed with each item (and its deadline) once it is due.
+     */
+    public TimingWheel(String name, long tickMillis, int slotCount, ObjLongConsumer<T> action) {
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.slots = newSlots(size);
+        this.action = action;
+        this.currentTick = DNSClock.currentTimeMillis() / tickMillis;
+
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static <T> Queue<Timeout<T>>[] newSlots(int size) {
+        @SuppressWarnings("unchecked")
+        Queue<Timeout<T>>[] slots = (Queue<Timeout<T>>[]) new Queue<?>[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new ArrayDeque<>();
+        return slots;
+    }
+
+    /** Schedules an item to be handed to the expiration action at (or shortly after) a deadline.
+     * Items are never cancelled; the action is expected to ignore items that are no longer
+     * relevant.
+     *
+     * @param item     Item to be scheduled.
+     * @param deadline Time at which the item is due, based on DNSClock.
+     */
+    public void schedule(T item, long deadline) {
+        incoming.add(new Timeout<>(item, deadline));
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Catch up with every tick elapsed since the last one was processed
+            long targetTick = DNSClock.currentTimeMillis() / tickMillis;
+            while (currentTick < targetTick) {
+                currentTick++;
+                transferIncoming();
+                expireSlot(slots[(int) (currentTick & mask)]);
+            }
+        }
+    }
+
+    private void transferIncoming() {
+        Timeout<T> timeout;
+        while ((timeout = incoming.poll()) != null) {
+            long tick = Math.max(currentTick, (timeout.deadline + tickMillis - 1) / tickMillis);
+            timeout.rounds = (tick - currentTick) / slots.length;
+            slots[(int) (tick & mask)].add(timeout);
+        }
+    }
+
+    private void expireSlot(Queue<Timeout<T>> slot) {
+        for (Iterator<Timeout<T>> it = slot.iterator(); it.hasNext(); ) {
+            Timeout<T> timeout = it.next();
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                continue;
+            }
+            it.remove();
+            try {
+                action.accept(timeout.item, timeout.deadline);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private long rounds;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Creates executors running tasks on virtual threads when the JVM supports them. The project is
+ * built for Java 17, so the Java 21 factory is looked up by reflection.
+ */
+public class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /** Creates an executor running each task on a new virtual thread, if the JVM supports them
+     * (Java 21 or later), or a pool of daemon platform threads otherwise.
+     *
+     * @param name        Prefix of the names of the platform threads.
+     * @param poolThreads Number of platform threads, if virtual threads are not supported.
+     * @return A new executor.
+     */
+    public static ExecutorService newExecutor(String name, int poolThreads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            AtomicInteger threads = new AtomicInteger();
+            return Executors.newFixedThreadPool(poolThreads, task -> {
+                Thread thread = new Thread(task, name + "-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
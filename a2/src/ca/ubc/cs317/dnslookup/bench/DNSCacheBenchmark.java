@@ -0,0 +1,96 @@
+package ca.ubc.cs317.dnslookup.bench;
+
+import ca.ubc.cs317.dnslookup.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Reads, writes and traversals of a DNSCache filled with a number of nodes, each with one A
+ * record. Nodes are picked uniformly at random, so larger caches also measure cache misses of
+ * the CPU. Each size runs in its own JVM, since DNSCache is a singleton. A million nodes use about
+ * 400 MB of heap, so the largest size needs a machine with more than 5 GB of memory.
+ *
+ * The single-threaded benchmarks read or write one node per operation. The contended ones read
+ * from all available threads, or mix readers and writers on the same nodes (group readWrite).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx12g")
+@State(Scope.Benchmark)
+public class DNSCacheBenchmark {
+
+    private static final long TTL = 86400;
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int entries;
+
+    private DNSCache cache;
+    private DNSNode[] nodes;
+
+    @State(Scope.Thread)
+    public static class Picker {
+        private final SplittableRandom random = new SplittableRandom();
+
+        int next(int bound) {
+            return random.nextInt(bound);
+        }
+    }
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        cache = DNSCache.getInstance();
+        nodes = new DNSNode[entries];
+        for (int i = 0; i < entries; i++) {
+            nodes[i] = new DNSNode("host" + i + ".example" + (i % 1000) + ".com", RecordType.A);
+            cache.addResult(new ResourceRecord(nodes[i].getHostName(), RecordType.A, TTL, address(i)));
+        }
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> get(Picker picker) {
+        return cache.getCachedResults(nodes[picker.next(entries)]);
+    }
+
+    /** Replaces the record of a node with an identical one expiring later, as when it is resolved again. */
+    @Benchmark
+    public void add(Picker picker) throws UnknownHostException {
+        int i = picker.next(entries);
+        cache.addResult(new ResourceRecord(nodes[i].getHostName(), RecordType.A, TTL, address(i)));
+    }
+
+    @Benchmark
+    public void forEachNode(Blackhole blackhole) {
+        cache.forEachNode((node, records) -> blackhole.consume(records));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Set<ResourceRecord> getContended(Picker picker) {
+        return cache.getCachedResults(nodes[picker.next(entries)]);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public Set<ResourceRecord> readWriteGet(Picker picker) {
+        return get(picker);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void readWriteAdd(Picker picker) throws UnknownHostException {
+        add(picker);
+    }
+
+    private static InetAddress address(int i) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i});
+    }
+}
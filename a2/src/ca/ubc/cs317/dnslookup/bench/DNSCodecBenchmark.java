@@ -0,0 +1,87 @@
+package ca.ubc.cs317.dnslookup.bench;
+
+import ca.ubc.cs317.dnslookup.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/** Encoding of queries and decoding of responses, without any network I/O.
+ *
+ * encodeQuery is the encoding done by DNSQueryHandler.buildAndSendQuery before the query is sent,
+ * and encodeNewName the same encoding for a different name each time, so the names are not in the
+ * processor caches. decodeAndCacheResponse decodes each captured response and adds its records
+ * to the cache, as after every query; the contended variant does so from all available threads,
+ * which then update the same cache nodes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DNSCodecBenchmark {
+
+    /** Enough names that their strings do not all fit in the processor caches. */
+    private static final int NEW_NAMES = 1 << 20;
+
+    @State(Scope.Thread)
+    public static class Query {
+        final ByteBuffer buffer = ByteBuffer.allocate(DNSQueryEncoder.HEADER_SIZE +
+                DNSQueryEncoder.MAX_QUESTION_SIZE + DNSQueryEncoder.OPT_RECORD_SIZE);
+        final DNSNode node = new DNSNode("www.cs.ubc.ca", RecordType.A);
+        DNSNode[] newNodes;
+        int next;
+
+        @Setup
+        public void setup() {
+            newNodes = new DNSNode[NEW_NAMES];
+            for (int i = 0; i < NEW_NAMES; i++)
+                newNodes[i] = new DNSNode("host" + i + ".example" + (i % 100) + ".com", RecordType.A);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Response {
+        @Param({"REFERRAL", "ANSWER", "NXDOMAIN"})
+        public ResponseFixtures response;
+
+        ByteBuffer buffer;
+
+        @Setup
+        public void setup() {
+            buffer = response.buffer();
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer encodeQuery(Query query) {
+        return encode(query, query.node);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeNewName(Query query) {
+        return encode(query, query.newNodes[query.next++ & (NEW_NAMES - 1)]);
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> decodeAndCacheResponse(Response response) {
+        return DNSQueryHandler.decodeAndCacheResponse(ResponseFixtures.TRANSACTION_ID, response.buffer,
+                DNSCache.getInstance());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Set<ResourceRecord> decodeAndCacheResponseContended(Response response) {
+        return DNSQueryHandler.decodeAndCacheResponse(ResponseFixtures.TRANSACTION_ID, response.buffer,
+                DNSCache.getInstance());
+    }
+
+    private static ByteBuffer encode(Query query, DNSNode node) {
+        ByteBuffer buffer = query.buffer;
+        buffer.clear();
+        DNSQueryEncoder.encode(buffer, ResponseFixtures.TRANSACTION_ID, node, DNSQueryHandler.DEFAULT_EDNS_PAYLOAD_SIZE);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,57 @@
+package ca.ubc.cs317.dnslookup.bench;
+
+import ca.ubc.cs317.dnslookup.DNSMessageReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Decoding of a compressed name reached through a chain of compression pointers. The message
+ * holds a name "l0", then names "lN" followed by a pointer to the previous name, so the last name
+ * has depth + 1 labels and is decoded by following depth pointers. A depth of 63 is the longest
+ * chain accepted by DNSMessageReader.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DNSNameBenchmark {
+
+    private static final int HEADER_SIZE = 12;
+
+    @Param({"0", "1", "4", "16", "63"})
+    public int depth;
+
+    private final DNSMessageReader reader = new DNSMessageReader();
+    private int nameOffset;
+
+    @Setup
+    public void setup() {
+        ByteBuffer message = ByteBuffer.allocate(HEADER_SIZE + 8 * (depth + 1));
+        // Header with no question or record, so wrap reads nothing else
+        message.position(HEADER_SIZE);
+        int previous = -1;
+        for (int i = 0; i <= depth; i++) {
+            int offset = message.position();
+            String label = "l" + i;
+            message.put((byte) label.length());
+            for (int j = 0; j < label.length(); j++)
+                message.put((byte) label.charAt(j));
+            if (previous < 0)
+                message.put((byte) 0);
+            else
+                message.putShort((short) (0xC000 | previous));
+            previous = offset;
+        }
+        message.flip();
+        nameOffset = previous;
+        reader.wrap(message);
+    }
+
+    @Benchmark
+    public String decodeName() {
+        return reader.readName(nameOffset);
+    }
+}
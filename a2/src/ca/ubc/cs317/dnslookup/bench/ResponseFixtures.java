@@ -0,0 +1,47 @@
+package ca.ubc.cs317.dnslookup.bench;
+
+import java.nio.ByteBuffer;
+
+/** DNS responses used as benchmark inputs, in wire format, modelled on the responses of the root
+ * and cs.ubc.ca servers to a query of www.cs.ubc.ca (transaction ID 0x1234, with EDNS0). Names are
+ * compressed the way real servers compress them, so decoding follows the same pointers as in a
+ * live resolution.
+ */
+public enum ResponseFixtures {
+
+    /** Referral from a root server to the ca. servers: 4 NS records with A and AAAA glue. */
+    REFERRAL("12348000000100000004000903777777026373037562630263610000010001c017000200010002a300001103616e790a" +
+            "63612d73657276657273c017c017000200010002a3000004016ac02fc017000200010002a30000040178c02fc0170002" +
+            "00010002a30000040163c02fc02b000100010002a3000004c7049002c02b001c00010002a30000102001050000a70000" +
+            "0000000000000002c048000100010002a3000004c6b6a701c048001c00010002a3000010200105000083000000000000" +
+            "00000001c058000100010002a3000004c7fdfa44c058001c00010002a30000102620010a80aa00000000000000000068" +
+            "c068000100010002a3000004b99fc402c068001c00010002a30000102620010a80530000000000000000000200002904" +
+            "d0000000000000"),
+
+    /** Authoritative answer with a CNAME and 2 A records, plus the zone's NS records and glue. */
+    ANSWER("12348400000100030003000403777777026373037562630263610000010001c00c0005000100000e1000090663732d77" +
+            "7777c010c02b0001000100000e1000048e670605c02b0001000100000e1000048e670606c0100002000100000e100006" +
+            "036e7331c010c0100002000100000e100006036e7332c010c0100002000100000e100006036e7333c010c06000010001" +
+            "00000e1000048e670606c0720001000100000e100004c6a22301c0840001000100000e1000048e67060200002904d000" +
+            "0000000000"),
+
+    /** NXDOMAIN for nonexistent.cs.ubc.ca, with the zone's SOA record. */
+    NXDOMAIN("1234840300010000000100010b6e6f6e6578697374656e74026373037562630263610000010001c0180006000100000e" +
+            "100027036e7331c0180a686f73746d6173746572c01878c3dc2900002a3000000e1000093a8000000e1000002904d000" +
+            "0000000000");
+
+    public static final int TRANSACTION_ID = 0x1234;
+
+    private final byte[] message;
+
+    ResponseFixtures(String hex) {
+        message = new byte[hex.length() / 2];
+        for (int i = 0; i < message.length; i++)
+            message[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+
+    /** Returns a new read-only buffer over the response. */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(message).asReadOnlyBuffer();
+    }
+}
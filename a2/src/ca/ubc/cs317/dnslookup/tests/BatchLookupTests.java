@@ -0,0 +1,133 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Batches resolved by a function instead of real lookups, so the results are known in advance. */
+public class BatchLookupTests {
+
+    private static Set<ResourceRecord> resolve(DNSNode node) {
+        try {
+            switch (node.getHostName()) {
+                case "host1.batch.test":
+                    return Set.of(new ResourceRecord(node, 300, InetAddress.getByName("10.5.6.1")));
+                case "host2.batch.test":
+                    return Set.of(new ResourceRecord(node, 300, InetAddress.getByName("2001:db8::6")));
+                case "3.2.1.10.in-addr.arpa":
+                    return Set.of(new ResourceRecord(node, 300, "ptr,\"quoted\".batch.test"));
+                case "fail.batch.test":
+                    throw new IllegalStateException("Resolution failed");
+                default:
+                    return Collections.emptySet();
+            }
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Path write(Path directory, String... lines) throws Exception {
+        Path file = directory.resolve("names.txt");
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static final String[] NAMES = {
+            "# Names of the batch tests",
+            "host1.batch.test",
+            "",
+            "host2.batch.test AAAA   # trailing comment",
+            "10.1.2.3 PTR",
+            "missing.batch.test",
+            "fail.batch.test",
+            "too many fields here",
+            "host.batch.test BOGUS",
+            "a".repeat(64) + ".batch.test",
+    };
+
+    @Test
+    public void testCSV(@TempDir Path directory) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BatchLookup batch = new BatchLookup(BatchLookupTests::resolve,
+                node -> node.getHostName().equals("host1.batch.test"), 4, BatchLookup.Format.CSV, out);
+        BatchLookup.Summary summary = batch.run(write(directory, NAMES));
+
+        assertEquals(5, summary.getLookups());
+        assertEquals(3, summary.getInvalid());
+        assertEquals(2, summary.getUnanswered());
+        assertEquals(0.2, summary.getCacheHitRatio(), 1e-9);
+        assertEquals(5, summary.getLatency().getCount());
+
+        List<String> lines = Arrays.asList(out.toString(StandardCharsets.UTF_8).split("\n"));
+        assertEquals("name,type,ttl,data,latency_ms,cached", lines.get(0));
+        assertEquals(6, lines.size());
+        Set<String> rows = new HashSet<>();
+        for (String line : lines.subList(1, lines.size()))
+            rows.add(line.replaceFirst(",[0-9.]+,(true|false)$", ",$1"));
+        assertEquals(Set.of(
+                "host1.batch.test,A,300,10.5.6.1,true",
+                "host2.batch.test,AAAA,300,2001:db8:0:0:0:0:0:6,false",
+                "3.2.1.10.in-addr.arpa,PTR,300,\"ptr,\"\"quoted\"\".batch.test\",false",
+                "missing.batch.test,A,,,false",
+                "fail.batch.test,A,,,false"), rows);
+    }
+
+    @Test
+    public void testJSON(@TempDir Path directory) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BatchLookup batch = new BatchLookup(BatchLookupTests::resolve, node -> false, 1, BatchLookup.Format.JSON, out);
+        BatchLookup.Summary summary = batch.run(write(directory, "10.1.2.3 PTR", "missing.batch.test"));
+        assertEquals(2, summary.getLookups());
+        assertEquals(0, summary.getCacheHitRatio());
+
+        Set<String> lines = new HashSet<>();
+        for (String line : out.toString(StandardCharsets.UTF_8).split("\n"))
+            lines.add(line.replaceFirst("\"latencyMs\":[0-9.]+", "\"latencyMs\":0"));
+        assertEquals(Set.of(
+                "{\"name\":\"3.2.1.10.in-addr.arpa\",\"type\":\"PTR\",\"latencyMs\":0,\"cached\":false,\"results\":" +
+                        "[{\"type\":\"PTR\",\"ttl\":300,\"data\":\"ptr,\\\"quoted\\\".batch.test\"}]}",
+                "{\"name\":\"missing.batch.test\",\"type\":\"A\",\"latencyMs\":0,\"cached\":false,\"results\":[]}"),
+                lines);
+    }
+
+    @Test
+    public void testConcurrencyLimit(@TempDir Path directory) throws Exception {
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        Function<DNSNode, Set<ResourceRecord>> slowResolver = node -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return Collections.emptySet();
+        };
+        String[] names = new String[40];
+        for (int i = 0; i < names.length; i++)
+            names[i] = "host" + i + ".limit.batch.test";
+
+        BatchLookup batch = new BatchLookup(slowResolver, node -> false, 4, BatchLookup.Format.CSV,
+                new ByteArrayOutputStream());
+        BatchLookup.Summary summary = batch.run(write(directory, names));
+        assertEquals(40, summary.getLookups());
+        assertEquals(40, summary.getUnanswered());
+        assertTrue(maxRunning.get() > 1 && maxRunning.get() <= 4, maxRunning.get() + " lookups at once");
+        assertTrue(summary.getQueriesPerSecond() > 0);
+
+        assertThrows(IllegalArgumentException.class, () -> new BatchLookup(slowResolver, node -> false, 0,
+                BatchLookup.Format.CSV, new ByteArrayOutputStream()));
+    }
+}
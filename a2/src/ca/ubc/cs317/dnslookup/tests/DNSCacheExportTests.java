@@ -0,0 +1,113 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.*;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Exports the shared cache, filtered to the export.test domain so that records added by other
+ * tests are left out. Remaining TTLs decrease while the tests run, so they are replaced before
+ * lines are compared.
+ */
+public class DNSCacheExportTests {
+
+    private static DNSCache cache = DNSCache.getInstance();
+
+    @BeforeAll
+    public static void fillCache() throws Exception {
+        cache.addResult(new ResourceRecord("export.test", RecordType.NS, 600, "ns.export.test"));
+        cache.addResult(new ResourceRecord("a.export.test", RecordType.A, 600, InetAddress.getByName("10.5.7.1")));
+        cache.addResult(new ResourceRecord("a.export.test", RecordType.A, 600, InetAddress.getByName("10.5.7.2")));
+        cache.addResult(new ResourceRecord("a.export.test", RecordType.AAAA, 600, InetAddress.getByName("2001:db8::7")));
+        cache.addResult(new ResourceRecord("www.export.test", RecordType.CNAME, 600, "a.export.test"));
+        cache.addResult(new ResourceRecord("mail.export.test", RecordType.MX, 600, "mx.export.test"));
+        cache.addResult(new ResourceRecord("short.export.test", RecordType.A, 30, InetAddress.getByName("10.5.7.3")));
+        cache.addResult(new ResourceRecord("badexport.test", RecordType.A, 600, InetAddress.getByName("10.5.7.4")));
+        cache.addNegativeResult(new NegativeResult(new DNSNode("missing.export.test", RecordType.A), 600,
+                true, "export.test"));
+    }
+
+    private static List<String> read(Path file) throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+            lines.add(line.replaceFirst("\t[0-9]+\tIN\t", "\tTTL\tIN\t").replaceFirst("\"ttl\":[0-9]+", "\"ttl\":0"));
+        return lines;
+    }
+
+    @Test
+    public void testZoneFile(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("cache.zone");
+        DNSCacheExport.Page page = DNSCacheExport.export(cache, file, DNSCacheExport.Format.ZONE,
+                new DNSCacheExport.Filter("Export.Test.", null, 60), null, Integer.MAX_VALUE);
+        assertEquals(5, page.getNodes());
+        assertEquals(6, page.getRecords());
+        assertNull(page.getNext());
+        assertFalse(Files.exists(directory.resolve("cache.zone.tmp")));
+
+        List<String> lines = read(file);
+        assertTrue(lines.get(0).startsWith("; DNS cache export, "));
+        assertEquals(Set.of(
+                "export.test.\tTTL\tIN\tNS\tns.export.test.",
+                "a.export.test.\tTTL\tIN\tA\t10.5.7.1",
+                "a.export.test.\tTTL\tIN\tA\t10.5.7.2",
+                "a.export.test.\tTTL\tIN\tAAAA\t2001:db8:0:0:0:0:0:7",
+                "www.export.test.\tTTL\tIN\tCNAME\ta.export.test.",
+                "mail.export.test.\tTTL\tIN\tMX\t10 mx.export.test."),
+                new HashSet<>(lines.subList(1, lines.size())));
+        assertEquals(7, lines.size());
+    }
+
+    @Test
+    public void testTypeAndTTLFilters(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("cache.jsonl");
+        DNSCacheExport.Page page = DNSCacheExport.export(cache, file, DNSCacheExport.Format.JSONL,
+                new DNSCacheExport.Filter("export.test", RecordType.A, 0), null, Integer.MAX_VALUE);
+        assertEquals(2, page.getNodes());
+        assertEquals(new HashSet<>(Arrays.asList(
+                "{\"name\":\"a.export.test\",\"type\":\"A\",\"ttl\":0,\"data\":\"10.5.7.1\"}",
+                "{\"name\":\"a.export.test\",\"type\":\"A\",\"ttl\":0,\"data\":\"10.5.7.2\"}",
+                "{\"name\":\"short.export.test\",\"type\":\"A\",\"ttl\":0,\"data\":\"10.5.7.3\"}")),
+                new HashSet<>(read(file)));
+
+        // A minimum TTL above the short-lived record leaves it out
+        page = DNSCacheExport.export(cache, file, DNSCacheExport.Format.JSONL,
+                new DNSCacheExport.Filter("export.test", RecordType.A, 60), null, Integer.MAX_VALUE);
+        assertEquals(1, page.getNodes());
+        assertEquals(2, page.getRecords());
+        assertEquals(2, read(file).size());
+    }
+
+    @Test
+    public void testPages(@TempDir Path directory) throws Exception {
+        DNSCacheExport.Filter filter = new DNSCacheExport.Filter("export.test", null, 60);
+        Set<String> lines = new HashSet<>();
+        int pages = 0, nodes = 0;
+        DNSNode after = null;
+        do {
+            Path file = directory.resolve("page" + pages + ".jsonl");
+            DNSCacheExport.Page page = DNSCacheExport.export(cache, file, DNSCacheExport.Format.JSONL, filter,
+                    after, 2);
+            assertTrue(page.getNodes() <= 2);
+            for (String line : read(file))
+                assertTrue(lines.add(line), "exported twice: " + line);
+            nodes += page.getNodes();
+            pages++;
+            after = page.getNext();
+        } while (after != null);
+
+        // Five nodes in pages of two, the last one not followed by an empty page
+        assertEquals(3, pages);
+        assertEquals(5, nodes);
+        assertEquals(6, lines.size());
+        for (String line : lines)
+            assertFalse(line.contains("badexport") || line.contains("short") || line.contains("missing"), line);
+    }
+}
@@ -0,0 +1,92 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Saves the shared cache and loads it back. Loading adds to the cache, so the cache is emptied
+ * in between by evicting every node under a limit of a single byte.
+ */
+public class DNSCacheSnapshotTests {
+
+    private static DNSCache cache = DNSCache.getInstance();
+
+    private static void evictAll() throws Exception {
+        cache.setLimits(1, 1);
+        try {
+            cache.addResult(new ResourceRecord("evict.snapshot.test", RecordType.A, 300,
+                    InetAddress.getByName("10.5.5.99")));
+        } finally {
+            cache.setLimits(Long.MAX_VALUE, Long.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void testRoundTripDropsExpired(@TempDir Path directory) throws Exception {
+        DNSNode a = new DNSNode("host.snapshot.test", RecordType.A);
+        DNSNode aaaa = new DNSNode("host.snapshot.test", RecordType.AAAA);
+        DNSNode cname = new DNSNode("www.snapshot.test", RecordType.CNAME);
+        DNSNode shortLived = new DNSNode("short.snapshot.test", RecordType.A);
+        DNSNode missing = new DNSNode("missing.snapshot.test", RecordType.A);
+        DNSNode missingShort = new DNSNode("gone.snapshot.test", RecordType.A);
+        cache.addResult(new ResourceRecord(a, 600, InetAddress.getByName("10.5.5.1")));
+        cache.addResult(new ResourceRecord(a, 600, InetAddress.getByName("10.5.5.2")));
+        cache.addResult(new ResourceRecord(aaaa, 600, InetAddress.getByName("2001:db8::5")));
+        cache.addResult(new ResourceRecord(cname, 600, "host.snapshot.test"));
+        cache.addResult(new ResourceRecord(shortLived, 1, InetAddress.getByName("10.5.5.3")));
+        cache.addNegativeResult(new NegativeResult(missing, 600, true, "snapshot.test"));
+        cache.addNegativeResult(new NegativeResult(missingShort, 1, false, "snapshot.test"));
+        long expiration = cache.getCachedResults(a).iterator().next().getExpirationTime();
+
+        Path file = directory.resolve("cache.snapshot");
+        DNSCacheSnapshot.Summary saved = DNSCacheSnapshot.save(cache, file);
+        assertTrue(saved.getRecords() >= 5);
+        assertTrue(saved.getNegativeResults() >= 2);
+        assertFalse(Files.exists(directory.resolve("cache.snapshot.tmp")));
+
+        Thread.sleep(1100);
+        evictAll();
+        assertTrue(cache.getCachedResults(a).isEmpty());
+        assertNull(cache.getNegativeResult(missing));
+
+        DNSCacheSnapshot.Summary loaded = DNSCacheSnapshot.load(cache, file);
+        assertTrue(loaded.getExpired() >= 2, "expired: " + loaded.getExpired());
+        assertEquals(saved.getRecords() + saved.getNegativeResults(),
+                loaded.getRecords() + loaded.getNegativeResults() + loaded.getExpired());
+
+        // Valid entries are back with their results and expiration times, and addresses are indexed
+        Set<ResourceRecord> records = cache.getCachedResults(a);
+        assertEquals(2, records.size());
+        for (ResourceRecord record : records)
+            assertTrue(Math.abs(record.getExpirationTime() - expiration) < 1000);
+        assertEquals(a, cache.getRecordsForAddress(InetAddress.getByName("10.5.5.2")).iterator().next().getNode());
+        assertEquals(InetAddress.getByName("2001:db8::5"), cache.getCachedResults(aaaa).iterator().next().getInetResult());
+        assertEquals("host.snapshot.test", cache.getCachedResults(cname).iterator().next().getTextResult());
+        NegativeResult negative = cache.getNegativeResult(missing);
+        assertNotNull(negative);
+        assertTrue(negative.isNameError());
+        assertEquals("snapshot.test", negative.getZone());
+
+        // Entries that expired after the snapshot was saved are not loaded
+        assertTrue(cache.getCachedResults(shortLived).isEmpty());
+        assertTrue(cache.getRecordsForAddress(InetAddress.getByName("10.5.5.3")).isEmpty());
+        assertNull(cache.getNegativeResult(missingShort));
+    }
+
+    @Test
+    public void testInvalidFile(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("invalid.snapshot");
+        Files.write(file, new byte[]{1, 2, 3});
+        assertThrows(IOException.class, () -> DNSCacheSnapshot.load(cache, file));
+        Files.write(file, new byte[64]);
+        assertThrows(IOException.class, () -> DNSCacheSnapshot.load(cache, file));
+    }
+}
@@ -0,0 +1,152 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Tests of the cache on its own, without any query. The cache is a singleton shared by all
+ * tests, so each test uses names of its own domain.
+ */
+public class DNSCacheTests {
+
+    private static DNSCache cache = DNSCache.getInstance();
+
+    @Test
+    public void testNegativeResult() {
+        DNSNode node = new DNSNode("missing.negative1.test", RecordType.A);
+        cache.addNegativeResult(new NegativeResult(node, 300, true, "negative1.test"));
+
+        NegativeResult negative = cache.getNegativeResult(new DNSNode("MISSING.negative1.test.", RecordType.A));
+        assertNotNull(negative);
+        assertTrue(negative.isNameError());
+        assertEquals("negative1.test", negative.getZone());
+        assertTrue(negative.getTTL() > 295 && negative.getTTL() <= 300);
+        assertNull(cache.getNegativeResult(new DNSNode("missing.negative1.test", RecordType.AAAA)));
+    }
+
+    @Test
+    public void testNegativeResultHiddenByRecord() throws Exception {
+        DNSNode node = new DNSNode("host.negative2.test", RecordType.A);
+        cache.addNegativeResult(new NegativeResult(node, 300, false, "negative2.test"));
+        assertNotNull(cache.getNegativeResult(node));
+
+        cache.addResult(new ResourceRecord("host.negative2.test", RecordType.A, 300, InetAddress.getByName("10.5.0.1")));
+        assertNull(cache.getNegativeResult(node));
+        assertEquals(1, cache.getCachedResults(node).size());
+    }
+
+    @Test
+    public void testNegativeResultKeepsLatestExpiration() {
+        DNSNode node = new DNSNode("missing.negative3.test", RecordType.A);
+        cache.addNegativeResult(new NegativeResult(node, 600, true, "negative3.test"));
+        cache.addNegativeResult(new NegativeResult(node, 60, true, "negative3.test"));
+        assertTrue(cache.getNegativeResult(node).getTTL() > 595);
+    }
+
+    @Test
+    public void testNegativeResultExpires() throws InterruptedException {
+        DNSNode zeroTTL = new DNSNode("missing.negative4.test", RecordType.A);
+        cache.addNegativeResult(new NegativeResult(zeroTTL, 0, true, "negative4.test"));
+        assertNull(cache.getNegativeResult(zeroTTL));
+
+        DNSNode node = new DNSNode("missing.negative4.test", RecordType.MX);
+        cache.addNegativeResult(new NegativeResult(node, 1, false, "negative4.test"));
+        assertNotNull(cache.getNegativeResult(node));
+        Thread.sleep(1100);
+        assertNull(cache.getNegativeResult(node));
+    }
+
+    @Test
+    public void testNegativeResultSerialization() throws Exception {
+        DNSNode node = new DNSNode("missing.negative5.test", RecordType.AAAA);
+        NegativeResult negative = new NegativeResult(node, 300, true, "negative5.test");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(negative);
+        }
+        NegativeResult copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (NegativeResult) in.readObject();
+        }
+
+        assertEquals(node, copy.getNode());
+        assertSame(node.getHostName(), copy.getNode().getHostName());
+        assertEquals(negative.getExpirationTime(), copy.getExpirationTime());
+        assertTrue(copy.isNameError());
+        assertEquals("negative5.test", copy.getZone());
+    }
+
+    @Test
+    public void testDecodedRecordsShareNode() throws Exception {
+        DNSNode node = new DNSNode("host.shared.test", RecordType.A);
+        for (int response = 0; response < 2; response++) {
+            ByteBuffer query = ByteBuffer.allocate(512);
+            DNSQueryEncoder.encode(query, 7, node);
+            query.flip();
+            List<ResourceRecord> answers = new ArrayList<>();
+            for (int i = 0; i < 3; i++)
+                answers.add(new ResourceRecord("host.shared.test", RecordType.A, 300,
+                        InetAddress.getByName("10.5.1." + (response * 3 + i))));
+            ByteBuffer buffer = ByteBuffer.allocate(512);
+            DNSResponseEncoder.encode(buffer, query, new DNSMessageReader().wrap(query), 0,
+                    DNSResponseEncoder.NOERROR, answers, Collections.emptyList(), Collections.emptyList(), 0);
+            buffer.flip();
+            DNSQueryHandler.decodeAndCacheResponse(7, buffer, cache);
+
+            // Every record, including those of the second response, has the node of the cache key
+            DNSNode key = cache.getNode(new DNSNode("HOST.shared.test", RecordType.A));
+            assertEquals(node, key);
+            assertEquals(3, cache.getCachedResults(node).size());
+            for (ResourceRecord record : cache.getCachedResults(node))
+                assertSame(key, record.getNode());
+        }
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        int threads = 8, hosts = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    barrier.await();
+                    for (int h = 0; h < hosts; h++) {
+                        // Every thread adds its own address to each shared node, and reads it back
+                        DNSNode node = new DNSNode("host" + h + ".striped.test", RecordType.A);
+                        cache.addResult(new ResourceRecord(node, 300,
+                                InetAddress.getByName("10.5." + (10 + h) + "." + thread)));
+                        assertFalse(cache.getCachedResults(node).isEmpty());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+
+        // No record was lost, and each address is indexed under its node
+        for (int h = 0; h < hosts; h++) {
+            DNSNode node = new DNSNode("host" + h + ".striped.test", RecordType.A);
+            assertEquals(threads, cache.getCachedResults(node).size(), node.toString());
+            for (int t = 0; t < threads; t++) {
+                InetAddress address = InetAddress.getByName("10.5." + (10 + h) + "." + t);
+                assertEquals(node, cache.getRecordsForAddress(address).iterator().next().getNode());
+            }
+        }
+    }
+}
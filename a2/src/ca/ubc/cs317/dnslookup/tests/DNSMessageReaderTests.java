@@ -0,0 +1,144 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.*;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Messages are written byte by byte here, so that they can contain compression pointers and
+ * malformed names no encoder would produce.
+ */
+public class DNSMessageReaderTests {
+
+    private static final int POINTER = 0xC000;
+
+    private static ByteBuffer header(int transactionID, int flags, int questions, int answers, int authority) {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.putShort((short) transactionID).putShort((short) flags).putShort((short) questions)
+                .putShort((short) answers).putShort((short) authority).putShort((short) 0);
+        return buffer;
+    }
+
+    private static void putLabels(ByteBuffer buffer, String... labels) {
+        for (String label : labels) {
+            buffer.put((byte) label.length());
+            buffer.put(label.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void putRecordHeader(ByteBuffer buffer, RecordType type, long ttl, int rdataLength) {
+        buffer.putShort((short) type.getCode()).putShort((short) 1).putInt((int) ttl).putShort((short) rdataLength);
+    }
+
+    @Test
+    public void testCompressedNames() {
+        // Question www.reader.test, then a CNAME whose owner and target point into it
+        ByteBuffer buffer = header(0x2468, 0x8180, 1, 2, 0);
+        putLabels(buffer, "www", "reader", "test");
+        buffer.put((byte) 0);
+        buffer.putShort((short) RecordType.A.getCode()).putShort((short) 1);
+        int cname = buffer.position();
+        buffer.putShort((short) (POINTER | 12));
+        putRecordHeader(buffer, RecordType.CNAME, 300, 6);
+        int target = buffer.position();
+        putLabels(buffer, "web");
+        buffer.putShort((short) (POINTER | 16));
+        buffer.putShort((short) (POINTER | target));
+        putRecordHeader(buffer, RecordType.A, 60, 4);
+        buffer.put(new byte[]{10, 5, 6, 1});
+        buffer.flip();
+
+        DNSMessageReader reader = new DNSMessageReader().wrap(buffer);
+        assertEquals(0x2468, reader.getTransactionID());
+        assertTrue(reader.isResponse());
+        assertEquals("www.reader.test", reader.getQuestionName());
+        assertEquals(RecordType.A.getCode(), reader.getQuestionType());
+        assertEquals(1, reader.getQuestionClass());
+        assertEquals(cname, reader.getQuestionEnd());
+
+        reader.nextRecord();
+        assertEquals(cname, reader.getRecordNameOffset());
+        assertEquals("www.reader.test", reader.getRecordName());
+        assertEquals(RecordType.CNAME.getCode(), reader.getRecordType());
+        assertEquals(300, reader.getRecordTTL());
+        assertEquals(target, reader.getRDataOffset());
+        assertEquals("web.reader.test", reader.readName(target));
+        assertEquals(target + 6, reader.skipName(target));
+
+        reader.nextRecord();
+        assertEquals("web.reader.test", reader.getRecordName());
+        assertEquals(4, reader.getRDataLength());
+        assertEquals(buffer.limit(), reader.getPosition());
+        assertEquals(0, buffer.position(), "reading does not move the buffer");
+    }
+
+    @Test
+    public void testSOA() {
+        ByteBuffer buffer = header(1, 0x8183, 0, 0, 1);
+        putLabels(buffer, "reader", "test");
+        buffer.put((byte) 0);
+        putRecordHeader(buffer, RecordType.SOA, 600, 0);
+        int rdata = buffer.position();
+        putLabels(buffer, "ns");
+        buffer.putShort((short) (POINTER | 12));
+        putLabels(buffer, "hostmaster");
+        buffer.putShort((short) (POINTER | 12));
+        buffer.putInt(2024).putInt(7200).putInt(900).putInt(1209600).putInt(0xFFFFFFFF);
+        buffer.putShort(rdata - 2, (short) (buffer.position() - rdata));
+        buffer.flip();
+
+        DNSMessageReader reader = new DNSMessageReader().wrap(buffer);
+        assertNull(reader.getQuestionName());
+        assertEquals(3, reader.getResponseCode());
+        reader.nextRecord();
+        assertEquals("ns.reader.test hostmaster.reader.test 2024 7200 900 1209600 4294967295",
+                reader.readSOA(reader.getRDataOffset()));
+    }
+
+    @Test
+    public void testPointerLoop() {
+        ByteBuffer buffer = header(2, 0x8180, 1, 1, 0);
+        putLabels(buffer, "loop", "reader", "test");
+        buffer.put((byte) 0);
+        buffer.putShort((short) RecordType.CNAME.getCode()).putShort((short) 1);
+        buffer.putShort((short) (POINTER | 12));
+        putRecordHeader(buffer, RecordType.CNAME, 300, 4);
+        // Two pointers to each other
+        int rdata = buffer.position();
+        buffer.putShort((short) (POINTER | (rdata + 2)));
+        buffer.putShort((short) (POINTER | rdata));
+        buffer.flip();
+
+        DNSMessageReader reader = new DNSMessageReader().wrap(buffer);
+        reader.nextRecord();
+        assertThrows(IllegalArgumentException.class, () -> reader.readName(reader.getRDataOffset()));
+
+        // The decoder drops the response instead of looping
+        DNSQueryHandler.decodeAndCacheResponse(2, buffer, DNSCache.getInstance());
+        assertTrue(DNSCache.getInstance().getCachedResults(new DNSNode("loop.reader.test", RecordType.CNAME)).isEmpty());
+    }
+
+    @Test
+    public void testTruncatedMessages() {
+        assertThrows(IllegalArgumentException.class, () -> new DNSMessageReader().wrap(ByteBuffer.allocate(11)));
+
+        // Record data longer than the message
+        ByteBuffer buffer = header(3, 0x8180, 0, 1, 0);
+        putLabels(buffer, "short", "reader", "test");
+        buffer.put((byte) 0);
+        putRecordHeader(buffer, RecordType.A, 300, 4);
+        buffer.put(new byte[]{10, 5});
+        buffer.flip();
+        DNSMessageReader reader = new DNSMessageReader().wrap(buffer);
+        assertThrows(IndexOutOfBoundsException.class, reader::nextRecord);
+
+        // Question name cut in the middle of a label
+        ByteBuffer cut = header(4, 0, 1, 0, 0);
+        putLabels(cut, "truncated");
+        cut.limit(16);
+        assertThrows(IndexOutOfBoundsException.class, () -> new DNSMessageReader().wrap(cut));
+    }
+}
@@ -0,0 +1,88 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.DNSMetrics;
+import ca.ubc.cs317.dnslookup.RecordType;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** The metrics are shared by all tests, so each test resets them before recording its own. */
+public class DNSMetricsTests {
+
+    private static DNSMetrics metrics = DNSMetrics.getInstance();
+
+    @Test
+    public void testCounters() throws Exception {
+        metrics.reset();
+        metrics.recordCacheLookup(RecordType.A, true);
+        metrics.recordCacheLookup(RecordType.A, true);
+        metrics.recordCacheLookup(RecordType.A, false);
+        metrics.recordCacheLookup(RecordType.MX, false);
+        InetAddress first = InetAddress.getByName("192.0.2.101"), second = InetAddress.getByName("192.0.2.102");
+        metrics.recordUpstreamQuery(first);
+        metrics.recordUpstreamQuery(first);
+        metrics.recordUpstreamQuery(second);
+        metrics.recordRetry();
+        metrics.recordTimeout();
+        metrics.recordTCPFallback();
+
+        assertEquals(2, metrics.getCacheHits());
+        assertEquals(2, metrics.getCacheMisses());
+        assertEquals(0.5, metrics.getCacheHitRatio(), 1e-9);
+        assertEquals("A 2 1", metrics.getCacheHitsByType()[RecordType.A.ordinal()]);
+        assertEquals("MX 0 1", metrics.getCacheHitsByType()[RecordType.MX.ordinal()]);
+        assertEquals(3, metrics.getUpstreamQueries());
+        assertArrayEquals(new String[]{"192.0.2.101 2", "192.0.2.102 1"}, metrics.getUpstreamQueriesByServer());
+        assertEquals(1, metrics.getRetries());
+        assertEquals(1, metrics.getTimeouts());
+        assertEquals(1, metrics.getTCPFallbacks());
+        assertTrue(metrics.report().contains("Upstream queries: 3 (1 retries, 1 timeouts, 1 TCP fallbacks)"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getCacheHits());
+        assertEquals(0, metrics.getCacheHitRatio());
+        assertEquals(0, metrics.getUpstreamQueries());
+        assertEquals(0, metrics.getUpstreamQueriesByServer().length);
+        assertEquals(0, metrics.getTCPFallbacks());
+    }
+
+    @Test
+    public void testLookupLatency() {
+        metrics.reset();
+        for (int i = 1; i <= 100; i++)
+            metrics.recordLookup(i * 1_000_000L, i % 4);
+
+        assertEquals(100, metrics.getLookupCount());
+        assertEquals(50.5, metrics.getLookupLatencyMeanMillis(), 1);
+        assertEquals(50, metrics.getLookupLatencyP50Millis(), 2);
+        assertEquals(99, metrics.getLookupLatencyP99Millis(), 2);
+        assertEquals(100, metrics.getLookupLatencyMaxMillis(), 2);
+        assertEquals(3, metrics.getReferralDepthMax());
+        assertEquals(1.5, metrics.getReferralDepthMean(), 0.01);
+        metrics.reset();
+        assertEquals(0, metrics.getLookupCount());
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        metrics.registerMBean();
+        metrics.registerMBean(); // Registering twice is harmless
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(DNSMetrics.OBJECT_NAME);
+
+        metrics.reset();
+        metrics.recordTCPFallback();
+        metrics.recordLookup(1_000_000, 1);
+        assertEquals(1L, server.getAttribute(name, "TCPFallbacks"));
+        assertEquals(1L, server.getAttribute(name, "LookupCount"));
+
+        server.invoke(name, "reset", null, null);
+        assertEquals(0L, server.getAttribute(name, "TCPFallbacks"));
+        assertEquals(0L, metrics.getLookupCount());
+    }
+}
@@ -0,0 +1,70 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.DNSCache;
+import ca.ubc.cs317.dnslookup.DNSNameTable;
+import ca.ubc.cs317.dnslookup.DNSNode;
+import ca.ubc.cs317.dnslookup.RecordType;
+import ca.ubc.cs317.dnslookup.ResourceRecord;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DNSNameTableTests {
+
+    @Test
+    public void testCaseAndTrailingDot() {
+        assertEquals("www.ubc.ca", DNSNameTable.canonicalize("WWW.Ubc.CA."));
+        assertEquals("", DNSNameTable.canonicalize("."));
+        assertSame(DNSNameTable.canonicalize("www.example.com"), DNSNameTable.canonicalize("WWW.EXAMPLE.COM."));
+    }
+
+    @Test
+    public void testNodesShareCanonicalName() {
+        DNSNode lower = new DNSNode("mixed.case.test", RecordType.A);
+        DNSNode upper = new DNSNode("Mixed.CASE.test.", RecordType.A);
+        assertEquals(lower, upper);
+        assertEquals(lower.hashCode(), upper.hashCode());
+        assertSame(lower.getHostName(), upper.getHostName());
+        assertNotEquals(lower, new DNSNode("mixed.case.test", RecordType.AAAA));
+    }
+
+    @Test
+    public void testCacheLookupIgnoresCase() throws Exception {
+        DNSCache cache = DNSCache.getInstance();
+        cache.addResult(new ResourceRecord("Host.NameTable.Test.", RecordType.A, 300,
+                InetAddress.getByName("10.9.0.1")));
+        assertEquals(1, cache.getCachedResults(new DNSNode("host.nametable.test", RecordType.A)).size());
+    }
+
+    @Test
+    public void testConcurrentCanonicalization() throws Exception {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        try {
+            Future<?>[] futures = new Future<?>[threads];
+            String[][] results = new String[threads][1000];
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures[t] = executor.submit(() -> {
+                    barrier.await();
+                    for (int i = 0; i < 1000; i++) {
+                        String name = "host" + i + ".concurrent.test";
+                        results[thread][i] = DNSNameTable.canonicalize(thread % 2 == 0 ? name : name.toUpperCase());
+                    }
+                    return null;
+                });
+            }
+            for (Future<?> future : futures)
+                future.get(10, TimeUnit.SECONDS);
+            for (int i = 0; i < 1000; i++)
+                for (int t = 1; t < threads; t++)
+                    assertSame(results[0][i], results[t][i]);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
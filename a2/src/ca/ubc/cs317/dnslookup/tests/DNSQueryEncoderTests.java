@@ -0,0 +1,119 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.DNSMessageReader;
+import ca.ubc.cs317.dnslookup.DNSNode;
+import ca.ubc.cs317.dnslookup.DNSQueryEncoder;
+import ca.ubc.cs317.dnslookup.RecordType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DNSQueryEncoderTests {
+
+    /** Buffer of the size used by DNSQueryHandler, which any valid query fits in. */
+    private static ByteBuffer queryBuffer() {
+        return ByteBuffer.allocate(DNSQueryEncoder.HEADER_SIZE + DNSQueryEncoder.MAX_QUESTION_SIZE +
+                DNSQueryEncoder.OPT_RECORD_SIZE);
+    }
+
+    private static String label(int length) {
+        return "a".repeat(length);
+    }
+
+    /** Name of the given encoded size: labels of 63 bytes, then a shorter one. */
+    private static String name(int encodedSize) {
+        StringBuilder name = new StringBuilder();
+        int remaining = encodedSize - 1;
+        while (remaining > 0) {
+            int labelSize = Math.min(remaining - 1, DNSQueryEncoder.MAX_LABEL_SIZE);
+            if (name.length() > 0) name.append('.');
+            name.append(label(labelSize));
+            remaining -= labelSize + 1;
+        }
+        return name.toString();
+    }
+
+    @Test
+    public void testRoundTrip() {
+        ByteBuffer buffer = queryBuffer();
+        int length = DNSQueryEncoder.encode(buffer, 0xBEEF, new DNSNode("www.cs.ubc.ca", RecordType.AAAA));
+        assertEquals(buffer.position(), length);
+        assertEquals(DNSQueryEncoder.HEADER_SIZE + 15 + 4, length);
+        buffer.flip();
+
+        DNSMessageReader reader = new DNSMessageReader().wrap(buffer);
+        assertEquals(0xBEEF, reader.getTransactionID());
+        assertFalse(reader.isResponse());
+        assertEquals(0x0100, reader.getFlags() & 0x0100, "RD set");
+        assertEquals(1, reader.getQuestionCount());
+        assertEquals("www.cs.ubc.ca", reader.getQuestionName());
+        assertEquals(0, reader.getCount(DNSMessageReader.ADDITIONAL));
+        assertEquals(length, reader.getQuestionEnd());
+    }
+
+    @Test
+    public void testOPTRecord() {
+        ByteBuffer buffer = queryBuffer();
+        int length = DNSQueryEncoder.encode(buffer, 1, new DNSNode("www.cs.ubc.ca", RecordType.A), 1232);
+        assertEquals(DNSQueryEncoder.HEADER_SIZE + 15 + 4 + DNSQueryEncoder.OPT_RECORD_SIZE, length);
+        buffer.flip();
+
+        DNSMessageReader reader = new DNSMessageReader().wrap(buffer);
+        assertEquals(1, reader.getCount(DNSMessageReader.ADDITIONAL));
+        reader.nextRecord();
+        assertEquals("", reader.getRecordName());
+        assertEquals(DNSQueryEncoder.OPT_TYPE, reader.getRecordType());
+        assertEquals(1232, reader.getRecordClass());
+        assertEquals(0, reader.getRDataLength());
+    }
+
+    @Test
+    public void testLabelLength() {
+        String longest = label(63) + ".test";
+        DNSQueryEncoder.checkName(longest);
+        ByteBuffer buffer = queryBuffer();
+        DNSQueryEncoder.encode(buffer, 2, new DNSNode(longest, RecordType.A));
+        buffer.flip();
+        assertEquals(longest, new DNSMessageReader().wrap(buffer).getQuestionName());
+
+        // A 64-byte label would have its length read as a compression pointer
+        assertThrows(IllegalArgumentException.class, () -> DNSQueryEncoder.checkName(label(64) + ".test"));
+        assertThrows(IllegalArgumentException.class, () -> DNSQueryEncoder.checkName("test." + label(64)));
+        // Two bytes per character in UTF-8
+        assertThrows(IllegalArgumentException.class, () -> DNSQueryEncoder.checkName("\u00e9".repeat(32) + ".test"));
+    }
+
+    @Test
+    public void testNameLength() {
+        String longest = name(DNSQueryEncoder.MAX_NAME_SIZE);
+        assertEquals(253, longest.length());
+        ByteBuffer buffer = queryBuffer();
+        DNSQueryEncoder.encode(buffer, 3, new DNSNode(longest, RecordType.A), 1232);
+        assertEquals(buffer.capacity(), buffer.position(), "longest name fills the query buffer exactly");
+        buffer.flip();
+        assertEquals(longest, new DNSMessageReader().wrap(buffer).getQuestionName());
+
+        // A trailing dot does not count
+        DNSQueryEncoder.checkName(longest + ".");
+        assertThrows(IllegalArgumentException.class,
+                () -> DNSQueryEncoder.checkName(name(DNSQueryEncoder.MAX_NAME_SIZE + 1)));
+    }
+
+    @Test
+    public void testEmptyLabels() {
+        DNSQueryEncoder.checkName("");
+        DNSQueryEncoder.checkName("ubc.ca.");
+        assertThrows(IllegalArgumentException.class, () -> DNSQueryEncoder.checkName("www..ubc.ca"));
+        assertThrows(IllegalArgumentException.class, () -> DNSQueryEncoder.checkName(".ubc.ca"));
+    }
+
+    @Test
+    public void testInvalidNameNotWritten() {
+        ByteBuffer buffer = queryBuffer();
+        DNSNode tooLong = new DNSNode(label(200) + "." + label(60), RecordType.A);
+        assertThrows(IllegalArgumentException.class, () -> DNSQueryEncoder.encode(buffer, 4, tooLong, 1232));
+        assertEquals(0, buffer.position());
+    }
+}
@@ -0,0 +1,150 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.*;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DNSResponseEncoderTests {
+
+    private static ByteBuffer query(int transactionID, String name, RecordType type, int udpPayloadSize) {
+        ByteBuffer query = ByteBuffer.allocate(512);
+        DNSQueryEncoder.encode(query, transactionID, new DNSNode(name, type), udpPayloadSize);
+        query.flip();
+        return query;
+    }
+
+    private static ByteBuffer encode(ByteBuffer query, int limit, int flags, int rcode, List<ResourceRecord> answers,
+                                     List<ResourceRecord> authority, int udpPayloadSize) {
+        ByteBuffer response = ByteBuffer.allocate(limit);
+        DNSResponseEncoder.encode(response, query, new DNSMessageReader().wrap(query), flags, rcode, answers,
+                authority, Collections.emptyList(), udpPayloadSize);
+        response.flip();
+        return response;
+    }
+
+    @Test
+    public void testHeaderFlags() throws Exception {
+        ByteBuffer query = query(0x1234, "host.encoder.test", RecordType.A, 0);
+        List<ResourceRecord> answers = List.of(
+                new ResourceRecord("host.encoder.test", RecordType.A, 300, InetAddress.getByName("10.6.0.1")));
+        ByteBuffer response = encode(query, 512, DNSResponseEncoder.AUTHORITATIVE | DNSResponseEncoder.RECURSION_AVAILABLE,
+                DNSResponseEncoder.NOERROR, answers, Collections.emptyList(), 0);
+
+        DNSMessageReader reader = new DNSMessageReader().wrap(response);
+        assertEquals(0x1234, reader.getTransactionID());
+        assertTrue(reader.isResponse());
+        assertTrue(reader.isAuthoritative());
+        assertFalse(reader.isTruncated());
+        assertEquals(0x0100, reader.getFlags() & 0x0100, "RD copied from the query");
+        assertEquals(0x0080, reader.getFlags() & 0x0080, "RA set");
+        assertEquals(DNSResponseEncoder.NOERROR, reader.getResponseCode());
+        assertEquals(1, reader.getQuestionCount());
+        assertEquals("host.encoder.test", reader.getQuestionName());
+        assertEquals(1, reader.getCount(DNSMessageReader.ANSWER));
+        assertEquals(0, reader.getCount(DNSMessageReader.ADDITIONAL));
+
+        ByteBuffer error = encode(query, 512, 0, DNSResponseEncoder.NXDOMAIN, Collections.emptyList(),
+                Collections.emptyList(), 0);
+        reader.wrap(error);
+        assertFalse(reader.isAuthoritative());
+        assertEquals(0, reader.getFlags() & 0x0080);
+        assertEquals(DNSResponseEncoder.NXDOMAIN, reader.getResponseCode());
+    }
+
+    @Test
+    public void testCNAMEChainCompression() throws Exception {
+        ByteBuffer query = query(1, "www.encoder.test", RecordType.A, 0);
+        List<ResourceRecord> answers = List.of(
+                new ResourceRecord("www.encoder.test", RecordType.CNAME, 300, "web.encoder.test"),
+                new ResourceRecord("web.encoder.test", RecordType.CNAME, 300, "host.encoder.test"),
+                new ResourceRecord("host.encoder.test", RecordType.A, 300, InetAddress.getByName("10.6.0.2")));
+        ByteBuffer response = encode(query, 512, DNSResponseEncoder.RECURSION_AVAILABLE, DNSResponseEncoder.NOERROR,
+                answers, Collections.emptyList(), 0);
+
+        DNSMessageReader reader = new DNSMessageReader().wrap(response);
+        assertEquals(3, reader.getCount(DNSMessageReader.ANSWER));
+
+        // The owner of the first record points to the question
+        reader.nextRecord();
+        assertEquals(0xC000 | DNSQueryEncoder.HEADER_SIZE, response.getShort(reader.getRecordNameOffset()) & 0xFFFF);
+        assertEquals("www.encoder.test", reader.getRecordName());
+        assertEquals("web.encoder.test", reader.readName(reader.getRDataOffset()));
+        int webOffset = reader.getRDataOffset();
+
+        // The owner of each following record points to the target of the previous one
+        reader.nextRecord();
+        assertEquals(0xC000 | webOffset, response.getShort(reader.getRecordNameOffset()) & 0xFFFF);
+        assertEquals("web.encoder.test", reader.getRecordName());
+        assertEquals(RecordType.CNAME.getCode(), reader.getRecordType());
+        assertEquals("host.encoder.test", reader.readName(reader.getRDataOffset()));
+        int hostOffset = reader.getRDataOffset();
+
+        reader.nextRecord();
+        assertEquals(0xC000 | hostOffset, response.getShort(reader.getRecordNameOffset()) & 0xFFFF);
+        assertEquals("host.encoder.test", reader.getRecordName());
+        assertEquals(RecordType.A.getCode(), reader.getRecordType());
+        assertEquals(4, reader.getRDataLength());
+        assertEquals(response.limit(), reader.getPosition());
+    }
+
+    @Test
+    public void testRepeatedTargetCompressed() throws Exception {
+        ByteBuffer query = query(2, "encoder.test", RecordType.NS, 0);
+        List<ResourceRecord> answers = List.of(
+                new ResourceRecord("encoder.test", RecordType.NS, 300, "ns1.encoder.test"));
+        List<ResourceRecord> authority = List.of(
+                new ResourceRecord("encoder.test", RecordType.NS, 300, "ns1.encoder.test"));
+        ByteBuffer response = encode(query, 512, DNSResponseEncoder.RECURSION_AVAILABLE, DNSResponseEncoder.NOERROR,
+                answers, authority, 0);
+
+        DNSMessageReader reader = new DNSMessageReader().wrap(response);
+        reader.nextRecord();
+        int firstTarget = reader.getRDataOffset();
+        reader.nextRecord();
+        assertEquals(2, reader.getRDataLength());
+        assertEquals(0xC000 | firstTarget, response.getShort(reader.getRDataOffset()) & 0xFFFF);
+        assertEquals("ns1.encoder.test", reader.readName(reader.getRDataOffset()));
+    }
+
+    @Test
+    public void testTruncation() throws Exception {
+        ByteBuffer query = query(3, "big.encoder.test", RecordType.A, 0);
+        List<ResourceRecord> answers = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            answers.add(new ResourceRecord("big.encoder.test", RecordType.A, 300, InetAddress.getByName("10.6.1." + i)));
+
+        ByteBuffer response = encode(query, 512, DNSResponseEncoder.RECURSION_AVAILABLE, DNSResponseEncoder.NOERROR,
+                answers, Collections.emptyList(), 0);
+        DNSMessageReader reader = new DNSMessageReader().wrap(response);
+        assertTrue(reader.isTruncated());
+        assertEquals(0, reader.getCount(DNSMessageReader.ANSWER));
+        assertEquals(0, reader.getCount(DNSMessageReader.AUTHORITY));
+        assertEquals(reader.getQuestionEnd(), response.limit());
+
+        // The OPT record is kept in a truncated response
+        ByteBuffer ednsQuery = query(4, "big.encoder.test", RecordType.A, 1232);
+        response = encode(ednsQuery, 512, DNSResponseEncoder.RECURSION_AVAILABLE, DNSResponseEncoder.NOERROR,
+                answers, Collections.emptyList(), 1232);
+        reader.wrap(response);
+        assertTrue(reader.isTruncated());
+        assertEquals(1, reader.getCount(DNSMessageReader.ADDITIONAL));
+        reader.nextRecord();
+        assertEquals(DNSQueryEncoder.OPT_TYPE, reader.getRecordType());
+        assertEquals(1232, reader.getRecordClass());
+
+        // Each record takes 16 bytes with a compressed owner, so all of them fit in 2 KB
+        response = encode(query, 2048, DNSResponseEncoder.RECURSION_AVAILABLE, DNSResponseEncoder.NOERROR,
+                answers, Collections.emptyList(), 0);
+        reader.wrap(response);
+        assertFalse(reader.isTruncated());
+        assertEquals(100, reader.getCount(DNSMessageReader.ANSWER));
+        assertEquals(reader.getQuestionEnd() + 100 * 16, response.limit());
+    }
+}
@@ -0,0 +1,169 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.*;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Queries a DNSServer over UDP and TCP, with results taken from the cache. Aliases are answered
+ * like the resolver does, with the records of the canonical name, and names ending with
+ * ".fail.test" cannot be resolved.
+ */
+public class DNSServerTests {
+
+    private static DNSCache cache = DNSCache.getInstance();
+    private static DNSServer server;
+
+    @BeforeAll
+    public static void setup() throws IOException {
+        server = new DNSServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), cache, DNSServerTests::resolve);
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        server.close();
+    }
+
+    private static Set<ResourceRecord> resolve(DNSNode node) {
+        if (node.getHostName().endsWith(".fail.test"))
+            throw new IllegalStateException("Resolution failed");
+        DNSNode target = node;
+        for (int i = 0; i < 10; i++) {
+            Set<ResourceRecord> results = cache.getCachedResults(target);
+            if (!results.isEmpty()) return results;
+            Set<ResourceRecord> cnames = cache.getCachedResults(new DNSNode(target.getHostName(), RecordType.CNAME));
+            if (cnames.isEmpty()) break;
+            target = new DNSNode(cnames.iterator().next().getTextResult(), node.getType());
+        }
+        return Collections.emptySet();
+    }
+
+    private static ByteBuffer queryUDP(int transactionID, String name, RecordType type, int udpPayloadSize)
+            throws IOException {
+        ByteBuffer query = ByteBuffer.allocate(512);
+        DNSQueryEncoder.encode(query, transactionID, new DNSNode(name, type), udpPayloadSize);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(5000);
+            socket.send(new DatagramPacket(query.array(), query.position(), server.getAddress()));
+            byte[] response = new byte[65535];
+            DatagramPacket packet = new DatagramPacket(response, response.length);
+            socket.receive(packet);
+            return ByteBuffer.wrap(response, 0, packet.getLength()).slice();
+        }
+    }
+
+    private static ByteBuffer queryTCP(int transactionID, String name, RecordType type) throws IOException {
+        ByteBuffer query = ByteBuffer.allocate(512);
+        DNSQueryEncoder.encode(query, transactionID, new DNSNode(name, type));
+        try (Socket socket = new Socket()) {
+            socket.connect(server.getAddress(), 5000);
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeShort(query.position());
+            out.write(query.array(), 0, query.position());
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] response = new byte[in.readUnsignedShort()];
+            in.readFully(response);
+            return ByteBuffer.wrap(response);
+        }
+    }
+
+    @Test
+    public void testAnswerFromCache() throws Exception {
+        cache.addResult(new ResourceRecord("host.server1.test", RecordType.A, 300, InetAddress.getByName("10.7.0.1")));
+
+        ByteBuffer response = queryUDP(0x4321, "HOST.server1.test", RecordType.A, 0);
+        DNSMessageReader reader = new DNSMessageReader().wrap(response);
+        assertEquals(0x4321, reader.getTransactionID());
+        assertTrue(reader.isResponse());
+        assertFalse(reader.isAuthoritative());
+        assertEquals(0x0180, reader.getFlags() & 0x0180, "RD copied and RA set");
+        assertEquals(DNSResponseEncoder.NOERROR, reader.getResponseCode());
+        assertEquals(1, reader.getCount(DNSMessageReader.ANSWER));
+
+        reader.nextRecord();
+        assertEquals("host.server1.test", reader.getRecordName());
+        assertEquals(RecordType.A.getCode(), reader.getRecordType());
+        assertTrue(reader.getRecordTTL() > 290 && reader.getRecordTTL() <= 300);
+        assertEquals(10, response.get(reader.getRDataOffset()));
+        assertEquals(1, response.get(reader.getRDataOffset() + 3));
+    }
+
+    @Test
+    public void testCNAMEChain() throws Exception {
+        cache.addResult(new ResourceRecord("www.server2.test", RecordType.CNAME, 300, "web.server2.test"));
+        cache.addResult(new ResourceRecord("web.server2.test", RecordType.CNAME, 300, "host.server2.test"));
+        cache.addResult(new ResourceRecord("host.server2.test", RecordType.A, 300, InetAddress.getByName("10.7.0.2")));
+
+        ByteBuffer response = queryUDP(1, "www.server2.test", RecordType.A, 0);
+        DNSMessageReader reader = new DNSMessageReader().wrap(response);
+        assertEquals(DNSResponseEncoder.NOERROR, reader.getResponseCode());
+        assertEquals(3, reader.getCount(DNSMessageReader.ANSWER));
+
+        // Each record is owned by the name the previous one points to, starting from the question
+        String owner = reader.getQuestionName();
+        String[] types = {"CNAME", "CNAME", "A"};
+        for (String type : types) {
+            reader.nextRecord();
+            assertEquals(owner, reader.getRecordName());
+            assertEquals(RecordType.valueOf(type).getCode(), reader.getRecordType());
+            if (reader.getRecordType() == RecordType.CNAME.getCode())
+                owner = reader.readName(reader.getRDataOffset());
+        }
+        assertEquals("host.server2.test", owner);
+    }
+
+    @Test
+    public void testTruncatedOverUDP() throws Exception {
+        for (int i = 0; i < 100; i++)
+            cache.addResult(new ResourceRecord("big.server3.test", RecordType.A, 300, InetAddress.getByName("10.7.1." + i)));
+
+        DNSMessageReader reader = new DNSMessageReader().wrap(queryUDP(2, "big.server3.test", RecordType.A, 0));
+        assertTrue(reader.isTruncated());
+        assertEquals(0, reader.getCount(DNSMessageReader.ANSWER));
+
+        // A client advertising a large enough payload with EDNS0 gets every record over UDP
+        reader.wrap(queryUDP(3, "big.server3.test", RecordType.A, 4096));
+        assertFalse(reader.isTruncated());
+        assertEquals(100, reader.getCount(DNSMessageReader.ANSWER));
+
+        reader.wrap(queryTCP(4, "big.server3.test", RecordType.A));
+        assertFalse(reader.isTruncated());
+        assertEquals(4, reader.getTransactionID());
+        assertEquals(100, reader.getCount(DNSMessageReader.ANSWER));
+    }
+
+    @Test
+    public void testNegativeAnswers() throws Exception {
+        cache.addResult(new ResourceRecord("server4.test", RecordType.SOA, 300,
+                "ns.server4.test hostmaster.server4.test 1 7200 900 1209600 60"));
+        cache.addNegativeResult(new NegativeResult(new DNSNode("missing.server4.test", RecordType.A), 60,
+                true, "server4.test"));
+
+        DNSMessageReader reader = new DNSMessageReader().wrap(queryUDP(5, "missing.server4.test", RecordType.A, 0));
+        assertEquals(DNSResponseEncoder.NXDOMAIN, reader.getResponseCode());
+        assertEquals(0, reader.getCount(DNSMessageReader.ANSWER));
+        assertEquals(1, reader.getCount(DNSMessageReader.AUTHORITY));
+        reader.nextRecord();
+        assertEquals("server4.test", reader.getRecordName());
+        assertEquals(RecordType.SOA.getCode(), reader.getRecordType());
+        assertTrue(reader.getRecordTTL() <= 60);
+
+        reader.wrap(queryUDP(6, "host.fail.test", RecordType.A, 0));
+        assertEquals(DNSResponseEncoder.SERVFAIL, reader.getResponseCode());
+
+        reader.wrap(queryUDP(7, "host.server4.test", RecordType.OTHER, 0));
+        assertEquals(DNSResponseEncoder.NOTIMP, reader.getResponseCode());
+    }
+}
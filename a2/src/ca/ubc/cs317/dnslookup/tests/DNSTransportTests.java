@@ -0,0 +1,107 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.DNSTransport;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Exchanges messages with a local UDP socket standing for a DNS server. Messages are only a
+ * transaction ID followed by a marker, which is all the transport looks at.
+ */
+public class DNSTransportTests {
+
+    private static ByteBuffer message(int transactionID, int marker) {
+        ByteBuffer message = ByteBuffer.allocate(4);
+        message.putShort((short) transactionID).putShort((short) marker).flip();
+        return message;
+    }
+
+    private static InetSocketAddress address(DatagramSocket socket) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+    }
+
+    /** Receives a number of datagrams, then sends each of them back in reverse order. */
+    private static Thread echoReversed(DatagramSocket socket, int count) {
+        Thread thread = new Thread(() -> {
+            try {
+                List<DatagramPacket> received = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                    socket.receive(packet);
+                    received.add(packet);
+                }
+                for (int i = count - 1; i >= 0; i--)
+                    socket.send(received.get(i));
+            } catch (IOException ignored) {
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testConcurrentQueriesMatchedByID() throws Exception {
+        int count = 50;
+        try (DNSTransport transport = new DNSTransport();
+             DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(5000);
+            Thread echo = echoReversed(server, count);
+
+            // Every query is in flight before the first response arrives
+            List<DNSTransport.PendingQuery> queries = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                DNSTransport.PendingQuery query = transport.register(address(server));
+                queries.add(query);
+                transport.send(query, message(query.getTransactionID(), i));
+            }
+            for (int i = 0; i < count; i++) {
+                ByteBuffer response = queries.get(i).await(5000);
+                assertNotNull(response, "response to query " + i);
+                assertEquals(queries.get(i).getTransactionID(), response.getShort(0) & 0xFFFF);
+                assertEquals(i, response.getShort(2));
+            }
+            echo.join(5000);
+        }
+    }
+
+    @Test
+    public void testResponseFromOtherServerIgnored() throws Exception {
+        try (DNSTransport transport = new DNSTransport();
+             DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramSocket other = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(5000);
+            DNSTransport.PendingQuery query = transport.register(address(server));
+            transport.send(query, message(query.getTransactionID(), 1));
+            DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+            server.receive(packet);
+
+            // Same transaction ID, but not from the server the query was sent to
+            byte[] spoofed = message(query.getTransactionID(), 2).array();
+            other.send(new DatagramPacket(spoofed, spoofed.length, packet.getSocketAddress()));
+            assertNull(query.await(200));
+
+            server.send(packet);
+            assertEquals(1, query.await(5000).getShort(2));
+        }
+    }
+
+    @Test
+    public void testCloseFailsPendingQueries() throws Exception {
+        DNSTransport transport = new DNSTransport();
+        try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            DNSTransport.PendingQuery query = transport.register(address(server));
+            transport.send(query, message(query.getTransactionID(), 1));
+            transport.close();
+            assertThrows(IOException.class, () -> query.await(5000));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.*;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EvictionPolicyTests {
+
+    private static class TestNode extends EvictionPolicy.Node {
+        private TestNode(String key) {
+            super(key);
+        }
+    }
+
+    @Test
+    public void testPopularNodesSurviveScan() {
+        EvictionPolicy policy = new EvictionPolicy(100, Long.MAX_VALUE);
+        Set<EvictionPolicy.Node> evicted = new HashSet<>();
+        EvictionPolicy.Evictor evictor = evicted::add;
+
+        List<TestNode> popular = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            TestNode node = new TestNode("popular" + i);
+            popular.add(node);
+            policy.recordWrite(node, 1, 100, evictor);
+        }
+        for (int access = 0; access < 5; access++)
+            for (TestNode node : popular)
+                policy.recordAccess(node);
+
+        // Names seen once each are rejected instead of displacing the popular ones
+        for (int i = 0; i < 1000; i++) {
+            policy.recordWrite(new TestNode("once" + i), 1, 100, evictor);
+            assertTrue(policy.stats().getRecords() <= 100);
+        }
+        // Only the popular node still in the window when the scan starts can lose a tie
+        int popularEvicted = 0;
+        for (TestNode node : popular)
+            if (evicted.contains(node)) popularEvicted++;
+        assertTrue(popularEvicted <= 1, popularEvicted + " popular nodes evicted");
+
+        DNSCacheStats stats = policy.stats();
+        assertEquals(100, stats.getRecords());
+        assertEquals(1000, stats.getEvictionCount());
+        assertEquals(1000, stats.getEvictedRecords());
+        assertTrue(stats.getRejectedCount() >= 999, stats.toString());
+    }
+
+    @Test
+    public void testByteLimit() {
+        EvictionPolicy policy = new EvictionPolicy(Long.MAX_VALUE, 1000);
+        List<EvictionPolicy.Node> evicted = new ArrayList<>();
+        List<TestNode> nodes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            TestNode node = new TestNode("bytes" + i);
+            nodes.add(node);
+            policy.recordWrite(node, 1, 100, evicted::add);
+            assertTrue(policy.stats().getBytes() <= 1000);
+        }
+        assertEquals(10, evicted.size());
+        assertEquals(1000, policy.stats().getEvictedBytes());
+
+        // A node removed for another reason is no longer counted, and is never evicted
+        policy.remove(nodes.get(19));
+        assertEquals(900, policy.stats().getBytes());
+        policy.recordWrite(nodes.get(19), 1, 100, evicted::add);
+        assertEquals(900, policy.stats().getBytes());
+    }
+
+    @Test
+    public void testCacheWithinLimits() throws Exception {
+        DNSCache cache = DNSCache.getInstance();
+        long records = cache.getStats().getRecords();
+        long evictions = cache.getStats().getEvictionCount();
+        cache.setLimits(records + 10, Long.MAX_VALUE);
+        try {
+            for (int i = 0; i < 50; i++)
+                cache.addResult(new ResourceRecord("host" + i + ".evicted.test", RecordType.A, 300,
+                        InetAddress.getByName("10.5.4." + i)));
+            DNSCacheStats stats = cache.getStats();
+            assertTrue(stats.getRecords() <= records + 10, stats.toString());
+            assertTrue(stats.getEvictionCount() - evictions >= 40, stats.toString());
+
+            // An evicted node is no longer found, nor are its addresses
+            int cached = 0;
+            for (int i = 0; i < 50; i++) {
+                boolean found = !cache.getCachedResults(new DNSNode("host" + i + ".evicted.test", RecordType.A)).isEmpty();
+                assertEquals(found, !cache.getRecordsForAddress(InetAddress.getByName("10.5.4." + i)).isEmpty());
+                if (found) cached++;
+            }
+            assertTrue(cached <= 10);
+        } finally {
+            cache.setLimits(Long.MAX_VALUE, Long.MAX_VALUE);
+        }
+    }
+}
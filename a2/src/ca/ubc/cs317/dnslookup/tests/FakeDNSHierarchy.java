@@ -0,0 +1,595 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/** In-process fake of the DNS hierarchy, for tests and load tests that must be reproducible and run
+ * without network access. Zones (the root zone "", TLDs, and zones below them) are served by fake
+ * authoritative servers, each bound to its own loopback address (e.g. 127.53.0.1) on a common UDP
+ * and TCP port. The resolver is pointed at the hierarchy with DNSQueryHandler.setServerPort and
+ * the address of a root server. On Linux, every 127.x.x.x address can be bound; other systems may
+ * need loopback aliases to be configured first.
+ *
+ * Servers answer like real authoritative servers: a query for a name below a delegation gets a
+ * referral (NS records, and A records as glue for nameservers inside the delegated zone only), a
+ * query for a name of the zone gets an authoritative answer, following CNAME chains within the
+ * zone, and a query for a missing name or type gets NXDOMAIN or NODATA with the zone's SOA record.
+ * Responses larger than 512 bytes, or than the EDNS0 payload size of the query, are truncated, and
+ * queries are also answered over TCP. Each server can be given a latency, a packet loss rate, or
+ * be made unresponsive.
+ */
+public class FakeDNSHierarchy implements Closeable {
+
+    public static final long DEFAULT_TTL = 3600;
+    public static final long DEFAULT_NEGATIVE_TTL = 300;
+
+    private static final int MAX_MESSAGE_SIZE = 65535;
+    private static final int MIN_UDP_PAYLOAD = 512;
+    private static final int SERVER_UDP_PAYLOAD = 1232;
+    private static final int MAX_CNAME_CHAIN = 8;
+    private static final int TCP_IDLE_TIMEOUT_MILLIS = 10000;
+
+    private final int port;
+    private final Map<InetAddress, Server> servers = new ConcurrentHashMap<>();
+    private final Map<String, Zone> zones = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService delayedResponses = Executors.newScheduledThreadPool(2, task -> {
+        Thread thread = new Thread(task, "fake-dns-delay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService connections = VirtualThreads.newExecutor("fake-dns-tcp", 16);
+
+    /** Creates an empty hierarchy. Servers are started as zones are assigned to them.
+     *
+     * @param port UDP and TCP port every server listens on.
+     */
+    public FakeDNSHierarchy(int port) {
+        this.port = port;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /** Returns a zone, creating it (with no record) if needed.
+     *
+     * @param name Name of the zone, e.g. "" for the root zone, or "example.test".
+     */
+    public Zone zone(String name) {
+        return zones.computeIfAbsent(DNSNameTable.canonicalize(name), Zone::new);
+    }
+
+    /** Returns the server listening on an address, starting it if needed.
+     *
+     * @param address Loopback address of the server, in dotted form.
+     * @throws IOException if the address could not be bound.
+     */
+    public synchronized Server server(String address) throws IOException {
+        InetAddress inetAddress = InetAddress.getByName(address);
+        Server server = servers.get(inetAddress);
+        if (server == null) {
+            server = new Server(inetAddress);
+            servers.put(inetAddress, server);
+        }
+        return server;
+    }
+
+    /** Adds a record to the deepest zone enclosing its name.
+     *
+     * @throws IllegalArgumentException if no zone encloses the name, or the data is invalid.
+     */
+    public void addRecord(String name, RecordType type, long ttl, String data) {
+        name = DNSNameTable.canonicalize(name);
+        Zone zone = null;
+        for (String suffix = name; suffix != null && zone == null; suffix = parent(suffix))
+            zone = zones.get(suffix);
+        if (zone == null)
+            throw new IllegalArgumentException("No zone encloses " + name);
+        zone.addRecord(name, type, ttl, data);
+    }
+
+    /** Returns the names with an A, AAAA or CNAME record, in sorted order, e.g. to build a list of
+     * names to resolve in a load test.
+     */
+    public List<String> getHostNames() {
+        Set<String> names = new TreeSet<>();
+        for (Zone zone : zones.values())
+            zone.records.forEach((node, data) -> {
+                if (node.getType() == RecordType.A || node.getType() == RecordType.AAAA ||
+                        node.getType() == RecordType.CNAME)
+                    names.add(node.getHostName());
+            });
+        return new ArrayList<>(names);
+    }
+
+    /** Stops every server. */
+    @Override
+    public void close() {
+        for (Server server : servers.values())
+            server.close();
+        delayedResponses.shutdownNow();
+        connections.shutdownNow();
+    }
+
+    /** Builds a synthetic hierarchy: two root servers (127.53.0.1 and 127.53.0.2) serving TLDs
+     * "tld0", "tld1"..., each served by two TLD servers (127.53.1.x), and zones "zone0.tldT",
+     * "zone1.tldT"... spread over eight hosting servers (127.53.2.1 to 127.53.2.8), two per zone.
+     * Every zone has:
+     * <ul>
+     *     <li>hosts "host0", "host1"... with an A record each;</li>
+     *     <li>"www", a CNAME to "web", itself a CNAME to "host0";</li>
+     *     <li>"big", with 100 A records, so its responses are truncated over UDP, even with EDNS0.</li>
+     * </ul>
+     * The nameservers of every tenth zone (zone9, zone19...) are named in zone0 of the same TLD,
+     * so referrals to them have no glue. Any other name gets NXDOMAIN.
+     *
+     * @param port         UDP and TCP port of the servers.
+     * @param tlds         Number of TLDs.
+     * @param zonesPerTld  Number of zones in each TLD.
+     * @param hostsPerZone Number of hosts in each zone.
+     * @return The hierarchy, with its servers running.
+     * @throws IOException if an address could not be bound.
+     */
+    public static FakeDNSHierarchy synthetic(int port, int tlds, int zonesPerTld, int hostsPerZone) throws IOException {
+        FakeDNSHierarchy dns = new FakeDNSHierarchy(port);
+        Zone root = dns.zone("");
+        root.addNameserver("a.root-servers.test", "127.53.0.1");
+        root.addNameserver("b.root-servers.test", "127.53.0.2");
+
+        int address = 0;
+        for (int t = 0; t < tlds; t++) {
+            String tldName = "tld" + t;
+            Zone tld = dns.zone(tldName);
+            tld.addNameserver("a.nic." + tldName, "127.53.1." + (2 * t % 254 + 1));
+            tld.addNameserver("b.nic." + tldName, "127.53.1." + (2 * t % 254 + 2));
+
+            for (int z = 0; z < zonesPerTld; z++) {
+                String zoneName = "zone" + z + "." + tldName;
+                Zone zone = dns.zone(zoneName);
+                String first = "127.53.2." + (z % 8 + 1), second = "127.53.2." + ((z + 1) % 8 + 1);
+                if (z % 10 == 9) {
+                    // Out-of-zone nameservers, resolved through zone0 of the TLD
+                    Zone zone0 = dns.zone("zone0." + tldName);
+                    zone.addNameserver("ns1-zone" + z + "." + zone0.getName(), null);
+                    zone.addNameserver("ns2-zone" + z + "." + zone0.getName(), null);
+                    zone0.addRecord("ns1-zone" + z + "." + zone0.getName(), RecordType.A, DEFAULT_TTL, first);
+                    zone0.addRecord("ns2-zone" + z + "." + zone0.getName(), RecordType.A, DEFAULT_TTL, second);
+                    zone.serveFrom(dns.server(first));
+                    zone.serveFrom(dns.server(second));
+                } else {
+                    zone.addNameserver("ns1." + zoneName, first);
+                    zone.addNameserver("ns2." + zoneName, second);
+                }
+
+                for (int h = 0; h < hostsPerZone; h++, address++)
+                    zone.addRecord("host" + h + "." + zoneName, RecordType.A, DEFAULT_TTL, hostAddress(address));
+                zone.addRecord("www." + zoneName, RecordType.CNAME, DEFAULT_TTL, "web." + zoneName);
+                zone.addRecord("web." + zoneName, RecordType.CNAME, DEFAULT_TTL, "host0." + zoneName);
+                for (int i = 0; i < 100; i++)
+                    zone.addRecord("big." + zoneName, RecordType.A, DEFAULT_TTL, "10.255.0." + i);
+            }
+        }
+        return dns;
+    }
+
+    /** Runs a synthetic hierarchy until the process is terminated, for load tests of the resolver
+     * running in another process (e.g. with -port and -batch).
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 4) {
+            System.err.println("Invalid call. Usage:");
+            System.err.println("\tjava ca.ubc.cs317.dnslookup.tests.FakeDNSHierarchy port tlds zonesPerTld hostsPerZone " +
+                    "[latencyMillis [lossPercent [namesFile]]]");
+            System.err.println("where latencyMillis and lossPercent apply to every server, and namesFile " +
+                    "receives the names of the hierarchy, one per line.");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        FakeDNSHierarchy dns = synthetic(port, Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]));
+        long latency = args.length > 4 ? Long.parseLong(args[4]) : 0;
+        double loss = args.length > 5 ? Double.parseDouble(args[5]) / 100 : 0;
+        for (Server server : dns.servers.values())
+            server.setLatency(latency, latency / 2).setLossRate(loss);
+        if (args.length > 6)
+            Files.write(Paths.get(args[6]), dns.getHostNames());
+
+        System.out.printf("Serving %d zones from %d servers on port %d. Root servers: 127.53.0.1, 127.53.0.2%n",
+                dns.zones.size(), dns.servers.size(), port);
+        Thread.currentThread().join();
+    }
+
+    /** Returns the parent of a name, or null for the root. */
+    private static String parent(String name) {
+        if (name.isEmpty()) return null;
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    /** Checks if a name is a zone or one of its subdomains. */
+    private static boolean isWithin(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    private static String hostAddress(int i) {
+        return "10." + ((i >> 16) & 0xFF) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF);
+    }
+
+    /** A zone and its records. Zones are delegated from their closest enclosing zone. */
+    public class Zone {
+        private final String name;
+        private final Map<DNSNode, List<FakeRecord>> records = new ConcurrentHashMap<>();
+        /** Names with records, and their ancestors within the zone (which exist, with no record). */
+        private final Set<String> names = ConcurrentHashMap.newKeySet();
+        private final List<String> nameservers = new CopyOnWriteArrayList<>();
+        private volatile long negativeTTL = DEFAULT_NEGATIVE_TTL;
+        private volatile boolean nameserversInAnswers = false;
+
+        private Zone(String name) {
+            this.name = name;
+            names.add(name);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Adds a nameserver of the zone, and starts serving the zone from its address.
+         *
+         * @param nsName  Name of the nameserver.
+         * @param address Address of the nameserver, which is also added as an A record of the
+         *                zone enclosing nsName; or null if the A record is added separately.
+         * @return This zone.
+         * @throws IOException if the address could not be bound.
+         */
+        public Zone addNameserver(String nsName, String address) throws IOException {
+            nsName = DNSNameTable.canonicalize(nsName);
+            nameservers.add(nsName);
+            addRecord(name, RecordType.NS, DEFAULT_TTL, nsName);
+            if (address != null) {
+                FakeDNSHierarchy.this.addRecord(nsName, RecordType.A, DEFAULT_TTL, address);
+                serveFrom(server(address));
+            }
+            return this;
+        }
+
+        /** Serves the zone from a server, without adding a nameserver record. */
+        public Zone serveFrom(Server server) {
+            server.zones.add(this);
+            return this;
+        }
+
+        /** Sets the TTL of the negative answers (NXDOMAIN and NODATA) of the zone. */
+        public Zone setNegativeTTL(long ttl) {
+            negativeTTL = ttl;
+            return this;
+        }
+
+        /** Also returns the NS records of the zone in the authority section of its answers, as
+         * many servers do, instead of an empty authority section.
+         */
+        public Zone setNameserversInAnswers(boolean nameserversInAnswers) {
+            this.nameserversInAnswers = nameserversInAnswers;
+            return this;
+        }
+
+        /** Removes the records of a name and type from this zone, e.g. to change an answer. The
+         * name itself still exists, so it gets NODATA if no other record is added.
+         *
+         * @return This zone.
+         */
+        public Zone removeRecords(String name, RecordType type) {
+            records.remove(new DNSNode(name, type));
+            return this;
+        }
+
+        /** Adds a record to this zone.
+         *
+         * @param name Owner name of the record, within the zone.
+         * @param type Type of the record.
+         * @param ttl  TTL of the record, in seconds.
+         * @param data IP address (A and AAAA), or name (CNAME, NS and MX).
+         * @return This zone.
+         * @throws IllegalArgumentException if the name is not in the zone, or the address is invalid.
+         */
+        public Zone addRecord(String name, RecordType type, long ttl, String data) {
+            name = DNSNameTable.canonicalize(name);
+            if (!isWithin(name, this.name))
+                throw new IllegalArgumentException(name + " is not in zone " + this.name);
+            records.computeIfAbsent(new DNSNode(name, type), node -> new CopyOnWriteArrayList<>())
+                    .add(new FakeRecord(name, type, ttl, data));
+            for (String ancestor = name; !ancestor.equals(this.name); ancestor = parent(ancestor))
+                names.add(ancestor);
+            return this;
+        }
+
+        private List<FakeRecord> get(String name, RecordType type) {
+            return records.getOrDefault(new DNSNode(name, type), Collections.emptyList());
+        }
+
+        private ResourceRecord soa() {
+            String primary = nameservers.isEmpty() ? "ns.invalid" : nameservers.get(0);
+            String text = primary + " hostmaster." + (name.isEmpty() ? "root" : name) + " 1 7200 900 1209600 " + negativeTTL;
+            return new ResourceRecord(name, RecordType.SOA, negativeTTL, text);
+        }
+    }
+
+    /** A fake authoritative server, listening on one address for UDP and TCP queries. */
+    public class Server {
+        private final InetAddress address;
+        private final DatagramChannel udp;
+        private final ServerSocket tcp;
+        private final Set<Zone> zones = ConcurrentHashMap.newKeySet();
+        private final LongAdder queries = new LongAdder();
+        private volatile long latencyMillis = 0;
+        private volatile long jitterMillis = 0;
+        private volatile double lossRate = 0;
+        private volatile boolean dead = false;
+
+        private Server(InetAddress address) throws IOException {
+            this.address = address;
+            InetSocketAddress socketAddress = new InetSocketAddress(address, port);
+            udp = DatagramChannel.open();
+            try {
+                udp.bind(socketAddress);
+                tcp = new ServerSocket();
+                tcp.setReuseAddress(true);
+                tcp.bind(socketAddress);
+            } catch (IOException e) {
+                udp.close();
+                throw e;
+            }
+            Thread udpThread = new Thread(this::receiveUDP, "fake-dns-udp-" + address.getHostAddress());
+            udpThread.setDaemon(true);
+            udpThread.start();
+            Thread tcpThread = new Thread(this::acceptTCP, "fake-dns-tcp-" + address.getHostAddress());
+            tcpThread.setDaemon(true);
+            tcpThread.start();
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /** Delays every response by a latency, plus a random jitter of up to jitterMillis. */
+        public Server setLatency(long latencyMillis, long jitterMillis) {
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            return this;
+        }
+
+        /** Drops a fraction of the UDP queries, between 0 and 1, without answering them. */
+        public Server setLossRate(double lossRate) {
+            this.lossRate = lossRate;
+            return this;
+        }
+
+        /** Stops answering queries (UDP queries are dropped, TCP connections closed), or resumes. */
+        public Server setDead(boolean dead) {
+            this.dead = dead;
+            return this;
+        }
+
+        /** Returns the number of queries received, including those dropped. */
+        public long getQueryCount() {
+            return queries.sum();
+        }
+
+        private void close() {
+            try {
+                udp.close();
+            } catch (IOException ignored) {
+            }
+            try {
+                tcp.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private long delayMillis() {
+            long jitter = jitterMillis;
+            return latencyMillis + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+        }
+
+        private void receiveUDP() {
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+            try {
+                while (true) {
+                    buffer.clear();
+                    SocketAddress client = udp.receive(buffer);
+                    buffer.flip();
+                    queries.increment();
+                    if (dead || ThreadLocalRandom.current().nextDouble() < lossRate) continue;
+
+                    ByteBuffer response = answer(this, buffer, false);
+                    if (response == null) continue;
+                    long delay = delayMillis();
+                    if (delay > 0)
+                        delayedResponses.schedule(() -> send(response, client), delay, TimeUnit.MILLISECONDS);
+                    else
+                        send(response, client);
+                }
+            } catch (ClosedChannelException ignored) {
+                // Server was closed
+            } catch (IOException e) {
+                System.err.println("Fake DNS server " + address.getHostAddress() + " stopped (" + e.getMessage() + ").");
+            }
+        }
+
+        private void send(ByteBuffer response, SocketAddress client) {
+            try {
+                udp.send(response, client);
+            } catch (IOException ignored) {
+                // Closed, or client unreachable
+            }
+        }
+
+        private void acceptTCP() {
+            try {
+                while (true) {
+                    Socket socket = tcp.accept();
+                    connections.execute(() -> serveConnection(socket));
+                }
+            } catch (IOException | RejectedExecutionException ignored) {
+                // Server was closed
+            }
+        }
+
+        private void serveConnection(Socket socket) {
+            try (Socket s = socket) {
+                s.setSoTimeout(TCP_IDLE_TIMEOUT_MILLIS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                while (!dead) {
+                    byte[] query = new byte[in.readUnsignedShort()];
+                    in.readFully(query);
+                    queries.increment();
+                    ByteBuffer response = answer(this, ByteBuffer.wrap(query), true);
+                    if (response == null) continue;
+                    Thread.sleep(delayMillis());
+                    out.writeShort(response.remaining());
+                    out.write(response.array(), response.position(), response.remaining());
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException ignored) {
+                // Connection closed by the client, idle, or server closed
+            }
+        }
+    }
+
+    /** Builds the response of a server to a query, or returns null if it should not be answered. */
+    private ByteBuffer answer(Server server, ByteBuffer query, boolean tcp) {
+        if (query.limit() < DNSQueryEncoder.HEADER_SIZE || (query.get(2) & 0x80) != 0)
+            return null;
+
+        DNSMessageReader reader = new DNSMessageReader();
+        int udpPayloadSize = 0;
+        try {
+            reader.wrap(query);
+            int records = reader.getCount(DNSMessageReader.ANSWER) + reader.getCount(DNSMessageReader.AUTHORITY)
+                    + reader.getCount(DNSMessageReader.ADDITIONAL);
+            for (int i = 0; i < records; i++) {
+                reader.nextRecord();
+                if (reader.getRecordType() == DNSQueryEncoder.OPT_TYPE)
+                    udpPayloadSize = Math.max(MIN_UDP_PAYLOAD, reader.getRecordClass());
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return respond(query, null, 0, DNSResponseEncoder.FORMERR, Collections.emptyList(),
+                    Collections.emptyList(), Collections.emptyList(), tcp, 0);
+        }
+        List<ResourceRecord> answers = new ArrayList<>(), authority = new ArrayList<>(), additional = new ArrayList<>();
+        if (((reader.getFlags() >> 11) & 0xF) != 0 || reader.getQuestionCount() != 1)
+            return respond(query, reader, 0, DNSResponseEncoder.NOTIMP, answers, authority, additional, tcp, udpPayloadSize);
+
+        String name = DNSNameTable.canonicalize(reader.getQuestionName());
+        RecordType type = RecordType.getByCode(reader.getQuestionType());
+
+        // Deepest zone of the server enclosing the name
+        Zone zone = null;
+        for (String suffix = name; suffix != null && zone == null; suffix = parent(suffix)) {
+            Zone candidate = zones.get(suffix);
+            if (candidate != null && server.zones.contains(candidate))
+                zone = candidate;
+        }
+        if (zone == null)
+            return respond(query, reader, 0, DNSResponseEncoder.REFUSED, answers, authority, additional, tcp, udpPayloadSize);
+
+        // Shallowest zone delegated below it that encloses the name, if any
+        Zone delegated = null;
+        for (String suffix = name; !suffix.equals(zone.name); suffix = parent(suffix)) {
+            Zone candidate = zones.get(suffix);
+            if (candidate != null && !candidate.nameservers.isEmpty())
+                delegated = candidate;
+        }
+        if (delegated != null) {
+            for (FakeRecord ns : delegated.get(delegated.name, RecordType.NS)) {
+                authority.add(ns.toResourceRecord());
+                if (isWithin(ns.data, delegated.name))
+                    for (FakeRecord glue : delegated.get(ns.data, RecordType.A))
+                        additional.add(glue.toResourceRecord());
+            }
+            return respond(query, reader, 0, DNSResponseEncoder.NOERROR, answers, authority, additional, tcp, udpPayloadSize);
+        }
+
+        String target = name;
+        for (int i = 0; i < MAX_CNAME_CHAIN && isWithin(target, zone.name); i++) {
+            List<FakeRecord> matches = zone.get(target, type);
+            if (!matches.isEmpty()) {
+                for (FakeRecord record : matches)
+                    answers.add(record.toResourceRecord());
+                break;
+            }
+            List<FakeRecord> cnames = type == RecordType.CNAME ? Collections.emptyList() : zone.get(target, RecordType.CNAME);
+            if (cnames.isEmpty()) break;
+            answers.add(cnames.get(0).toResourceRecord());
+            target = cnames.get(0).data;
+        }
+        if (!answers.isEmpty()) {
+            if (zone.nameserversInAnswers)
+                for (FakeRecord ns : zone.get(zone.name, RecordType.NS))
+                    authority.add(ns.toResourceRecord());
+            return respond(query, reader, DNSResponseEncoder.AUTHORITATIVE, DNSResponseEncoder.NOERROR,
+                    answers, authority, additional, tcp, udpPayloadSize);
+        }
+
+        authority.add(zone.soa());
+        return respond(query, reader, DNSResponseEncoder.AUTHORITATIVE,
+                zone.names.contains(name) ? DNSResponseEncoder.NOERROR : DNSResponseEncoder.NXDOMAIN,
+                answers, authority, additional, tcp, udpPayloadSize);
+    }
+
+    private static ByteBuffer respond(ByteBuffer query, DNSMessageReader reader, int flags, int rcode,
+                                      List<ResourceRecord> answers, List<ResourceRecord> authority,
+                                      List<ResourceRecord> additional, boolean tcp, int udpPayloadSize) {
+        int maxSize = tcp ? MAX_MESSAGE_SIZE : Math.max(MIN_UDP_PAYLOAD, udpPayloadSize);
+        ByteBuffer response = ByteBuffer.allocate(maxSize);
+        DNSResponseEncoder.encode(response, query, reader, flags, rcode, answers, authority, additional,
+                udpPayloadSize > 0 ? SERVER_UDP_PAYLOAD : 0);
+        response.flip();
+        return response;
+    }
+
+    /** A record of a zone, with a fixed TTL. ResourceRecords are created from it for each
+     * response, since their TTL counts down from their creation.
+     */
+    private static class FakeRecord {
+        private final String name;
+        private final RecordType type;
+        private final long ttl;
+        private final String data;
+        private final InetAddress address;
+
+        private FakeRecord(String name, RecordType type, long ttl, String data) {
+            this.name = name;
+            this.type = type;
+            this.ttl = ttl;
+            if (type == RecordType.A || type == RecordType.AAAA) {
+                try {
+                    this.address = InetAddress.getByName(data);
+                } catch (UnknownHostException e) {
+                    throw new IllegalArgumentException("Invalid address " + data);
+                }
+                this.data = data;
+            } else {
+                this.address = null;
+                this.data = DNSNameTable.canonicalize(data);
+            }
+        }
+
+        private ResourceRecord toResourceRecord() {
+            return address != null
+                    ? new ResourceRecord(name, type, ttl, address)
+                    : new ResourceRecord(name, type, ttl, data);
+        }
+    }
+}
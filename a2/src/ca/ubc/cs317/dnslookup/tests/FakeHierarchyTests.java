@@ -0,0 +1,451 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.*;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Resolution against a FakeDNSHierarchy, so these tests run offline and always give the same
+ * results. Each test resolves names of its own zone, since the cache is shared by all tests.
+ */
+public class FakeHierarchyTests {
+
+    private static final int PORT = 10053;
+
+    private static FakeDNSHierarchy dns;
+    private static InetAddress root;
+    private static DNSCache cache = DNSCache.getInstance();
+
+    @BeforeAll
+    public static void setup() throws Exception {
+        dns = FakeDNSHierarchy.synthetic(PORT, 2, 20, 5);
+        root = InetAddress.getByName("127.53.0.1");
+        DNSQueryHandler.setServerPort(PORT);
+        DNSQueryHandler.openSocket();
+        DNSLookupService.setRootServer(root);
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        DNSQueryHandler.setServerPort(53);
+        dns.close();
+    }
+
+    @Test
+    public void testReferrals() {
+        DNSLookupService.retrieveResultsFromServer(new DNSNode("host1.zone1.tld0", RecordType.A), root);
+        Set<ResourceRecord> results = cache.getCachedResults(new DNSNode("host1.zone1.tld0", RecordType.A));
+        assertEquals(1, results.size());
+        assertFalse(cache.getCachedResults(new DNSNode("zone1.tld0", RecordType.NS)).isEmpty());
+    }
+
+    @Test
+    public void testCNAMEChain() {
+        DNSLookupService.retrieveResultsFromServer(new DNSNode("www.zone2.tld0", RecordType.A), root);
+        assertEquals("web.zone2.tld0", cache.getCachedResults(new DNSNode("www.zone2.tld0", RecordType.CNAME))
+                .iterator().next().getTextResult());
+        assertEquals(1, cache.getCachedResults(new DNSNode("host0.zone2.tld0", RecordType.A)).size());
+    }
+
+    @Test
+    public void testMissingGlue() {
+        DNSLookupService.retrieveResultsFromServer(new DNSNode("host2.zone9.tld0", RecordType.A), root);
+        assertEquals(1, cache.getCachedResults(new DNSNode("host2.zone9.tld0", RecordType.A)).size());
+    }
+
+    @Test
+    public void testTruncatedOverTCP() {
+        DNSLookupService.retrieveResultsFromServer(new DNSNode("big.zone3.tld0", RecordType.A), root);
+        assertEquals(100, cache.getCachedResults(new DNSNode("big.zone3.tld0", RecordType.A)).size());
+    }
+
+    @Test
+    public void testNXDOMAIN() {
+        DNSNode node = new DNSNode("missing.zone4.tld0", RecordType.A);
+        DNSLookupService.retrieveResultsFromServer(node, root);
+        NegativeResult negative = cache.getNegativeResult(node);
+        assertNotNull(negative);
+        assertTrue(negative.isNameError());
+        assertEquals("zone4.tld0", negative.getZone());
+    }
+
+    @Test
+    public void testNODATA() {
+        DNSNode node = new DNSNode("host0.zone5.tld0", RecordType.MX);
+        DNSLookupService.retrieveResultsFromServer(node, root);
+        NegativeResult negative = cache.getNegativeResult(node);
+        assertNotNull(negative);
+        assertFalse(negative.isNameError());
+    }
+
+    @Test
+    public void testReverseFromForward() throws Exception {
+        DNSLookupService.retrieveResultsFromServer(new DNSNode("host3.zone6.tld0", RecordType.A), root);
+        InetAddress address = cache.getCachedResults(new DNSNode("host3.zone6.tld0", RecordType.A))
+                .iterator().next().getInetResult();
+        String reverseName = DNSReverseName.of(address);
+        assertEquals(address, DNSReverseName.toAddress(reverseName));
+        assertEquals(reverseName, DNSReverseName.forQuery(address.getHostAddress(), RecordType.PTR));
+
+        Set<ResourceRecord> forward = cache.getRecordsForAddress(address);
+        assertEquals(1, forward.size());
+        assertEquals("host3.zone6.tld0", forward.iterator().next().getHostName());
+    }
+
+    @Test
+    public void testReverseFromSeveralNames() throws Exception {
+        // Names cached directly: the fake hierarchy has no in-addr.arpa zone, so a PTR record can
+        // only come from the forward records
+        InetAddress address = InetAddress.getByName("10.77.4.1");
+        for (String name : new String[]{"one.reverse.test", "two.reverse.test", "three.reverse.test"})
+            cache.addResult(new ResourceRecord(name, RecordType.A, 600, address));
+        assertEquals(3, cache.getIndexedNodes(address));
+        DNSNode node = new DNSNode(DNSReverseName.of(address), RecordType.PTR);
+
+        Set<String> names = new HashSet<>();
+        for (ResourceRecord record : DNSLookupService.lookup(node)) {
+            assertEquals(node, record.getNode());
+            assertTrue(record.getTTL() <= 600);
+            names.add(record.getTextResult());
+        }
+        assertEquals(Set.of("one.reverse.test", "two.reverse.test", "three.reverse.test"), names);
+    }
+
+    @Test
+    public void testReverseAfterForwardExpires() throws Exception {
+        InetAddress address = InetAddress.getByName("10.77.4.2");
+        cache.addResult(new ResourceRecord("short.reverse.test", RecordType.A, 1, address));
+        assertEquals(1, cache.getIndexedNodes(address));
+
+        // Once the forward record expires, the address is no longer indexed and the reverse
+        // lookup goes to the servers, which know nothing about it
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getIndexedNodes(address) > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        assertEquals(0, cache.getIndexedNodes(address));
+        assertTrue(cache.getRecordsForAddress(address).isEmpty());
+        assertTrue(DNSLookupService.lookup(new DNSNode(DNSReverseName.of(address), RecordType.PTR)).isEmpty());
+    }
+
+    @Test
+    public void testReverseAfterForwardEvicted() throws Exception {
+        InetAddress address = InetAddress.getByName("10.77.4.3");
+        cache.addResult(new ResourceRecord("evicted.reverse.test", RecordType.A, 600, address));
+        assertEquals(1, cache.getIndexedNodes(address));
+
+        // A limit of a single byte evicts every node, the forward record with the others
+        cache.setLimits(1, 1);
+        try {
+            cache.addResult(new ResourceRecord("evict.reverse.test", RecordType.A, 600,
+                    InetAddress.getByName("10.77.4.99")));
+        } finally {
+            cache.setLimits(Long.MAX_VALUE, Long.MAX_VALUE);
+        }
+        assertTrue(cache.getCachedResults(new DNSNode("evicted.reverse.test", RecordType.A)).isEmpty());
+        assertEquals(0, cache.getIndexedNodes(address));
+        assertTrue(DNSLookupService.lookup(new DNSNode(DNSReverseName.of(address), RecordType.PTR)).isEmpty());
+    }
+
+    @Test
+    public void testPartialReverseNameNotAnsweredLocally() throws Exception {
+        // 4.77.10.in-addr.arpa designates a network, not the address 10.77.4.0
+        InetAddress address = InetAddress.getByName("10.77.4.0");
+        cache.addResult(new ResourceRecord("network.reverse.test", RecordType.A, 600, address));
+        DNSNode partial = new DNSNode("4.77.10.in-addr.arpa", RecordType.PTR);
+        assertNull(DNSReverseName.toAddress(partial.getHostName()));
+        assertNull(DNSReverseName.toAddress("0." + partial.getHostName() + ".extra"));
+
+        assertTrue(DNSLookupService.lookup(partial).isEmpty());
+        assertTrue(cache.getCachedResults(partial).isEmpty());
+        // The complete name of the address is still answered from the forward record
+        assertEquals("network.reverse.test", DNSLookupService.lookup(new DNSNode("0." + partial.getHostName(),
+                RecordType.PTR)).iterator().next().getTextResult());
+    }
+
+    @Test
+    public void testPrefetchChangedAnswer() throws Exception {
+        // The answers of this zone carry its NS records in their authority section
+        FakeDNSHierarchy.Zone zone = dns.zone("refresh.test").setNameserversInAnswers(true)
+                .addNameserver("ns1.refresh.test", "127.53.3.1")
+                .addRecord("host.refresh.test", RecordType.A, 10, "10.77.0.1");
+        FakeDNSHierarchy.Server server = dns.server("127.53.3.1");
+        DNSNode node = new DNSNode("host.refresh.test", RecordType.A);
+        InetAddress newAddress = InetAddress.getByName("10.77.0.2");
+
+        // The first record is due for a refresh half a second after it is cached
+        DNSLookupService.setPrefetch(95);
+        try {
+            DNSLookupService.retrieveResultsFromServer(node, root);
+            Thread.sleep(600);
+            zone.removeRecords("host.refresh.test", RecordType.A)
+                    .addRecord("host.refresh.test", RecordType.A, 3600, "10.77.0.2");
+            long queries = server.getQueryCount();
+
+            // Reading the node often enough starts a refresh, which gets the new answer
+            for (int i = 0; i < 5; i++)
+                cache.getCachedResults(node);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cache.getRecordsForAddress(newAddress).isEmpty() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            Thread.sleep(200);
+
+            // The refresh stopped at the authoritative answer instead of querying its nameservers again
+            assertTrue(server.getQueryCount() - queries <= 3, (server.getQueryCount() - queries) + " queries");
+        } finally {
+            DNSLookupService.setPrefetch(0);
+        }
+
+        // The new answer replaced the old one as a whole
+        Set<ResourceRecord> results = cache.getCachedResults(node);
+        assertEquals(1, results.size());
+        assertEquals("10.77.0.2", results.iterator().next().getTextResult());
+        assertTrue(cache.getRecordsForAddress(InetAddress.getByName("10.77.0.1")).isEmpty());
+    }
+
+    @Test
+    public void testDeadServer() throws Exception {
+        // zone1.tld1 is served by 127.53.2.2 and 127.53.2.3; only the second one answers
+        FakeDNSHierarchy.Server dead = dns.server("127.53.2.2").setDead(true);
+        try {
+            DNSLookupService.retrieveResultsFromServer(new DNSNode("host0.zone1.tld1", RecordType.A), root);
+            assertEquals(1, cache.getCachedResults(new DNSNode("host0.zone1.tld1", RecordType.A)).size());
+            assertTrue(dns.server("127.53.2.3").getQueryCount() > 0);
+        } finally {
+            dead.setDead(false);
+        }
+    }
+
+    @Test
+    public void testParallelQueriesToSlowServer() throws Exception {
+        // zone7.tld0 is served by 127.53.2.8 and 127.53.2.1; the first one is ranked fastest but
+        // now answers after 2 seconds, so the second one gets the query after the stagger delay
+        FakeDNSHierarchy.Server slow = dns.server("127.53.2.8").setLatency(2000, 0);
+        FakeDNSHierarchy.Server fast = dns.server("127.53.2.1");
+        for (int i = 0; i < 3; i++) {
+            NameServerStats.getInstance().recordResponse(slow.getAddress(), 1_000_000);
+            NameServerStats.getInstance().recordResponse(fast.getAddress(), 20_000_000);
+        }
+        long fastQueries = fast.getQueryCount();
+        DNSLookupService.setParallelQueries(true, 100);
+        try {
+            long start = System.nanoTime();
+            DNSLookupService.retrieveResultsFromServer(new DNSNode("host0.zone7.tld0", RecordType.A), root);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            assertEquals(1, cache.getCachedResults(new DNSNode("host0.zone7.tld0", RecordType.A)).size());
+            assertTrue(elapsedMillis < 1000, elapsedMillis + " ms");
+            assertTrue(fast.getQueryCount() > fastQueries);
+        } finally {
+            DNSLookupService.setParallelQueries(false, 200);
+            slow.setLatency(0, 0);
+        }
+    }
+
+    @Test
+    public void testConcurrentLookupsCoalesced() throws Exception {
+        // coalesce.test has a server of its own, slowed down so every lookup starts while the first
+        // query is in flight. Its round trip time is seeded well above the latency, so that the
+        // query is not retransmitted whatever the other tests taught the resolver.
+        dns.zone("coalesce.test").addNameserver("ns1.coalesce.test", "127.53.3.3")
+                .addRecord("host.coalesce.test", RecordType.A, 3600, "10.77.3.1");
+        FakeDNSHierarchy.Server server = dns.server("127.53.3.3").setLatency(300, 0);
+        NameServerStats.getInstance().recordResponse(server.getAddress(), 1_000_000_000);
+        DNSNode node = new DNSNode("host.coalesce.test", RecordType.A);
+        long queries = server.getQueryCount();
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        try {
+            List<Future<Set<ResourceRecord>>> lookups = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+                lookups.add(executor.submit(() -> {
+                    barrier.await();
+                    return DNSLookupService.lookup(node);
+                }));
+            for (Future<Set<ResourceRecord>> lookup : lookups)
+                assertEquals(1, lookup.get(10, TimeUnit.SECONDS).size());
+        } finally {
+            executor.shutdown();
+            server.setLatency(0, 0);
+        }
+        assertEquals(1, server.getQueryCount() - queries);
+    }
+
+    @Test
+    public void testEDNSAvoidsTCP() throws Exception {
+        // 40 A records take about 700 bytes: more than 512, but less than the default EDNS0 payload
+        FakeDNSHierarchy.Zone zone = dns.zone("edns.test").addNameserver("ns1.edns.test", "127.53.3.2");
+        for (int i = 0; i < 40; i++) {
+            zone.addRecord("medium1.edns.test", RecordType.A, 3600, "10.77.1." + i);
+            zone.addRecord("medium2.edns.test", RecordType.A, 3600, "10.77.2." + i);
+        }
+        DNSMetrics metrics = DNSMetrics.getInstance();
+
+        long fallbacks = metrics.getTCPFallbacks();
+        DNSLookupService.retrieveResultsFromServer(new DNSNode("medium1.edns.test", RecordType.A), root);
+        assertEquals(40, cache.getCachedResults(new DNSNode("medium1.edns.test", RecordType.A)).size());
+        assertEquals(fallbacks, metrics.getTCPFallbacks());
+
+        // Without EDNS0, the response is truncated at 512 bytes and the query retried over TCP
+        DNSQueryHandler.setEDNSPayloadSize(0);
+        try {
+            DNSLookupService.retrieveResultsFromServer(new DNSNode("medium2.edns.test", RecordType.A), root);
+        } finally {
+            DNSQueryHandler.setEDNSPayloadSize(DNSQueryHandler.DEFAULT_EDNS_PAYLOAD_SIZE);
+        }
+        assertEquals(40, cache.getCachedResults(new DNSNode("medium2.edns.test", RecordType.A)).size());
+        assertEquals(fallbacks + 1, metrics.getTCPFallbacks());
+    }
+
+    private static long queryCount(String... addresses) throws Exception {
+        long queries = 0;
+        for (String address : addresses)
+            queries += dns.server(address).getQueryCount();
+        return queries;
+    }
+
+    @Test
+    public void testLookupStartsAtClosestZone() throws Exception {
+        String[] roots = {"127.53.0.1", "127.53.0.2"};
+        String[] tld1 = {"127.53.1.3", "127.53.1.4"};
+        String[] zone11 = {"127.53.2.4", "127.53.2.5"};
+        assertEquals(1, DNSLookupService.lookup(new DNSNode("host0.zone11.tld1", RecordType.A)).size());
+
+        // The nameservers of zone11.tld1 are cached, so neither the root nor the TLD is queried
+        long rootQueries = queryCount(roots), tldQueries = queryCount(tld1), zoneQueries = queryCount(zone11);
+        assertEquals(1, DNSLookupService.lookup(new DNSNode("host1.zone11.tld1", RecordType.A)).size());
+        assertEquals(rootQueries, queryCount(roots));
+        assertEquals(tldQueries, queryCount(tld1));
+        assertEquals(zoneQueries + 1, queryCount(zone11));
+
+        // A sibling zone starts at the TLD, whose nameservers are cached
+        assertEquals(1, DNSLookupService.lookup(new DNSNode("host0.zone12.tld1", RecordType.A)).size());
+        assertEquals(rootQueries, queryCount(roots));
+        assertEquals(tldQueries + 1, queryCount(tld1));
+    }
+
+    @Test
+    public void testRetransmissionBackoff() throws Exception {
+        FakeDNSHierarchy.Server server = dns.server("127.53.2.7").setDead(true);
+        NameServerStats.ServerStats stats = NameServerStats.getInstance().get(server.getAddress());
+        DNSMetrics metrics = DNSMetrics.getInstance();
+        long queries = server.getQueryCount(), retries = metrics.getRetries();
+        int timeouts = stats.getConsecutiveTimeouts();
+        double rto = stats.getRTO();
+        try {
+            DNSServerResponse response = DNSQueryHandler.buildAndSendQuery(null, server.getAddress(),
+                    new DNSNode("host0.zone13.tld1", RecordType.A), System.nanoTime() + 3_000_000_000L);
+            assertTrue(response.isTimeout());
+
+            // Each try but the first is a retransmission, after a timeout that doubled the RTO
+            long tries = server.getQueryCount() - queries;
+            assertTrue(tries >= 2 && tries <= 3, tries + " tries");
+            assertEquals(tries - 1, metrics.getRetries() - retries);
+            assertEquals(timeouts + tries, stats.getConsecutiveTimeouts());
+            assertEquals(Math.min(5000, rto * (1L << tries)), stats.getRTO(), 1e-9);
+        } finally {
+            server.setDead(false);
+            NameServerStats.getInstance().recordResponse(server.getAddress(), 1_000_000);
+        }
+    }
+
+    @Test
+    public void testLookupBudget() throws Exception {
+        // zone13.tld1 is served by 127.53.2.6 and 127.53.2.7, neither of which answers
+        FakeDNSHierarchy.Server first = dns.server("127.53.2.6").setDead(true);
+        FakeDNSHierarchy.Server second = dns.server("127.53.2.7").setDead(true);
+        // Their measured RTT makes each of them worth waiting for about a second, without a budget
+        NameServerStats.getInstance().recordResponse(first.getAddress(), 400_000_000);
+        NameServerStats.getInstance().recordResponse(second.getAddress(), 400_000_000);
+        DNSLookupService.setLookupBudget(300);
+        try {
+            long start = System.nanoTime();
+            assertTrue(DNSLookupService.lookup(new DNSNode("host1.zone13.tld1", RecordType.A)).isEmpty());
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            assertTrue(elapsedMillis < 1000, elapsedMillis + " ms");
+        } finally {
+            DNSLookupService.setLookupBudget(DNSLookupService.DEFAULT_LOOKUP_BUDGET_MILLIS);
+            first.setDead(false);
+            second.setDead(false);
+            NameServerStats.getInstance().recordResponse(first.getAddress(), 1_000_000);
+            NameServerStats.getInstance().recordResponse(second.getAddress(), 1_000_000);
+        }
+    }
+
+    private static List<RecordedEvent> events(List<RecordedEvent> events, String type, String name) {
+        List<RecordedEvent> result = new ArrayList<>();
+        for (RecordedEvent event : events)
+            if (event.getEventType().getName().equals("ca.ubc.cs317.dnslookup." + type)
+                    && (name == null || name.equals(event.getString("name"))))
+                result.add(event);
+        return result;
+    }
+
+    @Test
+    public void testFlightRecorderEvents(@TempDir Path directory) throws Exception {
+        // zone14.tld1 is served by 127.53.2.7 and 127.53.2.8, with glue
+        DNSNode node = new DNSNode("host0.zone14.tld1", RecordType.A);
+        Path file = directory.resolve("dns.jfr");
+        try (Recording recording = new Recording()) {
+            for (String type : new String[]{"Query", "Decode", "CacheLookup", "CacheInsert", "Referral"})
+                recording.enable("ca.ubc.cs317.dnslookup." + type).withThreshold(Duration.ZERO);
+            recording.start();
+            assertEquals(1, DNSLookupService.lookup(node).size());
+            assertEquals(1, DNSLookupService.lookup(node).size());
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+
+        // The first lookup misses the cache, the second one hits it
+        List<RecordedEvent> lookups = events(events, "CacheLookup", node.getHostName());
+        assertEquals(2, lookups.size(), lookups.toString());
+        assertFalse(lookups.get(0).getBoolean("hit"));
+        assertTrue(lookups.get(1).getBoolean("hit"));
+
+        // The query answered by the nameservers of the zone, and the decoding of its response
+        RecordedEvent answer = null;
+        for (RecordedEvent query : events(events, "Query", node.getHostName()))
+            if (query.getString("server").startsWith("127.53.2.") && !query.getBoolean("timedOut"))
+                answer = query;
+        assertNotNull(answer, events.toString());
+        assertEquals("A", answer.getString("type"));
+        assertFalse(answer.getBoolean("tcp"));
+        assertTrue(answer.getInt("querySize") > 12);
+        assertTrue(answer.getInt("responseSize") > answer.getInt("querySize"));
+        RecordedEvent decode = null;
+        for (RecordedEvent event : events(events, "Decode", null))
+            if (event.getInt("transactionID") == answer.getInt("transactionID"))
+                decode = event;
+        assertNotNull(decode);
+        assertEquals(answer.getInt("responseSize"), decode.getInt("responseSize"));
+        assertEquals(0, decode.getInt("rcode"));
+        assertTrue(decode.getInt("records") >= 1);
+
+        assertFalse(events(events, "CacheInsert", node.getHostName()).isEmpty());
+        RecordedEvent referral = null;
+        for (RecordedEvent event : events(events, "Referral", node.getHostName()))
+            if (event.getString("zone").equals("zone14.tld1"))
+                referral = event;
+        assertNotNull(referral, events.toString());
+        assertEquals(2, referral.getInt("nameservers"));
+        assertEquals(2, referral.getInt("glue"));
+        assertTrue(referral.getBoolean("answered"));
+    }
+}
@@ -0,0 +1,105 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.NameServerStats;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** The statistics table is shared by all tests, so each test uses its own server addresses
+ * (from the 192.0.2.0/24 documentation range, never queried by other tests).
+ */
+public class NameServerStatsTests {
+
+    private static NameServerStats stats = NameServerStats.getInstance();
+
+    @Test
+    public void testSmoothedRTT() throws Exception {
+        NameServerStats.ServerStats server = stats.get(InetAddress.getByName("192.0.2.1"));
+        assertEquals(-1, server.getSRTT());
+
+        stats.recordResponse(InetAddress.getByName("192.0.2.1"), 100_000_000);
+        assertEquals(100, server.getSRTT(), 1e-9);
+        assertEquals(50, server.getRTTVar(), 1e-9);
+
+        stats.recordResponse(InetAddress.getByName("192.0.2.1"), 20_000_000);
+        assertEquals(0.875 * 100 + 0.125 * 20, server.getSRTT(), 1e-9);
+        assertEquals(0.75 * 50 + 0.25 * 80, server.getRTTVar(), 1e-9);
+        assertEquals(2, server.getResponses());
+    }
+
+    @Test
+    public void testFastestServerFirst() throws Exception {
+        InetAddress slow = InetAddress.getByName("192.0.2.11");
+        InetAddress fast = InetAddress.getByName("192.0.2.12");
+        InetAddress medium = InetAddress.getByName("192.0.2.13");
+        stats.recordResponse(slow, 300_000_000);
+        stats.recordResponse(fast, 5_000_000);
+        stats.recordResponse(medium, 50_000_000);
+
+        // Another server is occasionally tried first, so only most orderings put the fastest first
+        int fastFirst = 0;
+        for (int i = 0; i < 200; i++) {
+            List<InetAddress> ordered = stats.order(Arrays.asList(slow, fast, medium));
+            assertEquals(3, ordered.size());
+            if (ordered.get(0).equals(fast)) fastFirst++;
+        }
+        assertTrue(fastFirst > 150, "fastest server first in " + fastFirst + " of 200 orderings");
+    }
+
+    @Test
+    public void testUnhealthyServerLast() throws Exception {
+        InetAddress failing = InetAddress.getByName("192.0.2.21");
+        InetAddress healthy = InetAddress.getByName("192.0.2.22");
+        stats.recordResponse(failing, 1_000_000);
+        stats.recordResponse(healthy, 200_000_000);
+        for (int i = 0; i < 3; i++)
+            stats.recordTimeout(failing);
+        assertFalse(stats.get(failing).isHealthy());
+        assertEquals(3, stats.get(failing).getConsecutiveTimeouts());
+
+        int healthyFirst = 0;
+        for (int i = 0; i < 200; i++)
+            if (stats.order(Arrays.asList(failing, healthy)).get(0).equals(healthy)) healthyFirst++;
+        assertTrue(healthyFirst > 150, "healthy server first in " + healthyFirst + " of 200 orderings");
+
+        // A single answer makes the server healthy again
+        stats.recordResponse(failing, 1_000_000);
+        assertTrue(stats.get(failing).isHealthy());
+    }
+
+    @Test
+    public void testDuplicatesRemoved() throws Exception {
+        InetAddress server = InetAddress.getByName("192.0.2.31");
+        assertEquals(List.of(server), stats.order(Arrays.asList(server, server)));
+    }
+
+    @Test
+    public void testRTOBackoff() throws Exception {
+        InetAddress address = InetAddress.getByName("192.0.2.41");
+        NameServerStats.ServerStats server = stats.get(address);
+        assertEquals(400, server.getRTO(), 1e-9, "initial RTO");
+
+        // SRTT 10 ms + 4 RTTVAR of 5 ms is below the 50 ms lower bound
+        stats.recordResponse(address, 10_000_000);
+        assertEquals(50, server.getRTO(), 1e-9);
+
+        // Each consecutive timeout doubles the RTO, up to 5 seconds
+        double rto = server.getRTO();
+        for (int i = 0; i < 6; i++) {
+            stats.recordTimeout(address);
+            assertEquals(Math.min(5000, 2 * rto), server.getRTO(), 1e-9);
+            rto = server.getRTO();
+        }
+        stats.recordTimeout(address);
+        assertEquals(5000, server.getRTO(), 1e-9);
+
+        // An answer ends the backoff
+        stats.recordResponse(address, 10_000_000);
+        assertEquals(0, server.getConsecutiveTimeouts());
+        assertTrue(server.getRTO() < 100);
+    }
+}
@@ -0,0 +1,51 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.ObjectPool;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ObjectPoolTests {
+
+    @Test
+    public void testReuseAcrossThreads() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        ObjectPool<ByteBuffer> pool = new ObjectPool<>(2, () -> {
+            created.incrementAndGet();
+            return ByteBuffer.allocateDirect(512);
+        });
+
+        // Every task runs on a new thread, as in batch lookups, and still gets the same buffer
+        AtomicReference<ByteBuffer> first = new AtomicReference<>();
+        for (int i = 0; i < 10; i++) {
+            Thread thread = new Thread(() -> {
+                ByteBuffer buffer = pool.acquire();
+                first.compareAndSet(null, buffer);
+                assertSame(first.get(), buffer);
+                pool.release(buffer);
+            });
+            thread.start();
+            thread.join();
+        }
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void testCapacity() {
+        ObjectPool<Object> pool = new ObjectPool<>(2, Object::new);
+        Object a = pool.acquire(), b = pool.acquire(), c = pool.acquire();
+        assertNotSame(a, b);
+        assertNotSame(b, c);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2, pool.getIdle());
+        assertSame(a, pool.acquire());
+        assertSame(b, pool.acquire());
+        assertEquals(0, pool.getIdle());
+    }
+}
@@ -0,0 +1,84 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.SingleFlight;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SingleFlightTests {
+
+    @Test
+    public void testConcurrentCallersShareTask() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>(10000);
+        AtomicInteger runs = new AtomicInteger();
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch started = new CountDownLatch(1);
+        try {
+            // The first caller holds the flight until every other caller has joined it
+            Future<Boolean> owner = executor.submit(() -> flights.run("key", () -> {
+                runs.incrementAndGet();
+                started.countDown();
+                long deadline = System.currentTimeMillis() + 5000;
+                while (waitingThreads(executor) < threads - 1 && System.currentTimeMillis() < deadline)
+                    Thread.onSpinWait();
+            }));
+            started.await();
+            List<Future<Boolean>> waiters = new ArrayList<>();
+            for (int i = 1; i < threads; i++)
+                waiters.add(executor.submit(() -> flights.run("key", runs::incrementAndGet)));
+
+            assertTrue(owner.get(10, TimeUnit.SECONDS));
+            for (Future<Boolean> waiter : waiters)
+                assertFalse(waiter.get(10, TimeUnit.SECONDS));
+            assertEquals(1, runs.get());
+            assertEquals(0, flights.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static int waitingThreads(ExecutorService executor) {
+        return ((ThreadPoolExecutor) executor).getActiveCount() - 1;
+    }
+
+    @Test
+    public void testRecursiveCallRuns() {
+        SingleFlight<String> flights = new SingleFlight<>(10000);
+        AtomicInteger runs = new AtomicInteger();
+        // A task that needs the result of its own key runs it again instead of waiting for itself
+        assertTrue(flights.run("key", () -> {
+            runs.incrementAndGet();
+            assertTrue(flights.run("key", runs::incrementAndGet));
+        }));
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>(100);
+        CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+        Thread owner = new Thread(() -> flights.run("key", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        }));
+        owner.start();
+        started.await();
+
+        // The caller gives up waiting for the stuck task, and runs its own
+        AtomicInteger runs = new AtomicInteger();
+        assertTrue(flights.run("key", runs::incrementAndGet));
+        assertEquals(1, runs.get());
+        release.countDown();
+        owner.join(5000);
+        assertEquals(0, flights.size());
+    }
+}
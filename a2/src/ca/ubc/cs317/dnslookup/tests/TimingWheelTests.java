@@ -0,0 +1,63 @@
+package ca.ubc.cs317.dnslookup.tests;
+
+import ca.ubc.cs317.dnslookup.DNSClock;
+import ca.ubc.cs317.dnslookup.TimingWheel;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimingWheelTests {
+
+    @Test
+    public void testItemsExpireInDeadlineOrder() throws InterruptedException {
+        Map<String, Long> expired = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(3);
+        TimingWheel<String> wheel = new TimingWheel<>("test-wheel", 10, 64, (item, deadline) -> {
+            expired.put(item, DNSClock.currentTimeMillis());
+            done.countDown();
+        });
+
+        long start = DNSClock.currentTimeMillis();
+        wheel.schedule("late", start + 300);
+        wheel.schedule("early", start + 50);
+        wheel.schedule("middle", start + 150);
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(expired.get("early") < expired.get("middle"));
+        assertTrue(expired.get("middle") < expired.get("late"));
+        assertTrue(expired.get("early") >= start + 50);
+        assertTrue(expired.get("late") >= start + 300);
+    }
+
+    @Test
+    public void testItemsWaitForFullRotations() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        long[] expiredAt = new long[1];
+        // 4 slots of 10 ms: an item due in 200 ms goes around the wheel 5 times before expiring
+        TimingWheel<String> wheel = new TimingWheel<>("test-wheel", 10, 4, (item, deadline) -> {
+            expiredAt[0] = DNSClock.currentTimeMillis();
+            done.countDown();
+        });
+
+        long start = DNSClock.currentTimeMillis();
+        wheel.schedule("item", start + 200);
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(expiredAt[0] >= start + 200, "expired " + (expiredAt[0] - start) + " ms after scheduling");
+    }
+
+    @Test
+    public void testPastDeadlineExpiresAtNextTick() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        TimingWheel<String> wheel = new TimingWheel<>("test-wheel", 10, 64, (item, deadline) -> done.countDown());
+
+        wheel.schedule("item", DNSClock.currentTimeMillis() - 1000);
+
+        assertTrue(done.await(500, TimeUnit.MILLISECONDS));
+    }
+}